@@ -1,31 +1,49 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates, each over a single column, can be computed
+ * at once, grouped by any number of columns.
+ * <p>
+ * Tuples are streamed from the child straight into a {@link HashAggregator},
+ * which computes all aggregates in a single pass and spills to disk when the
+ * groups do not fit in the aggregation memory budget.
+ * <p>
+ * When the child is a scan of a heap file, optionally under filters, and the
+ * file is large enough, the scan is split into page ranges that are
+ * aggregated in parallel on a fork-join pool. Every worker thread keeps its
+ * own partial aggregate, so workers never contend on a shared hash table, and
+ * the partials are merged into the final aggregate once the scan is done.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
-    
+
+    /** Default number of bytes of groups an Aggregate keeps in memory. */
+    public static final long DEFAULT_AGGREGATE_MEMORY = 16L * 1024 * 1024;
+
+    private static long aggregateMemory = DEFAULT_AGGREGATE_MEMORY;
+
+    /** Smallest number of pages a parallel scan task is split into. */
+    static final int MIN_PAGES_PER_TASK = 16;
+
+    private static int parallelism = Integer.getInteger("simpledb.Aggregate.parallelism", 1);
+    private static ForkJoinPool pool;
+
     private OpIterator child;
-    private final int afield;
-    private final int gfield;
-    private final Aggregator.Op aop;
-    private Aggregator aggregator;
+    private final int[] afields;
+    private final int[] gfields;
+    private final Aggregator.Op[] aops;
     private OpIterator aggregateIt;
 
     /**
      * Constructor.
-     * 
-     * Implementation hint: depending on the type of afield, you will want to
-     * construct an {@link IntegerAggregator} or {@link StringAggregator} to help
-     * you with your implementation of readNext().
-     * 
-     * 
+     *
      * @param child
      *            The OpIterator that is feeding us tuples.
      * @param afield
@@ -37,248 +55,357 @@ public class Aggregate extends Operator {
      *            The aggregation operator to use
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
-    	
-    	this.child = child;
-    	this.afield = afield;
-    	this.gfield = gfield;
-    	this.aop = aop;
-    	
-    	
-    	Type gfieldType;
-    	int gfieldModified;
-    	if (this.gfield == -1){
-    		
-    		gfieldModified = Aggregator.NO_GROUPING;
-    		
-    		gfieldType = Type.INT_TYPE;
-    	}
-    		
-    	else {
-    		gfieldType = child.getTupleDesc().getFieldType(gfield);
-    		gfieldModified = this.gfield;
-    	}
-
-		Type afieldType = child.getTupleDesc().getFieldType(afield);
-		
-		switch (afieldType) {
-		
-		case INT_TYPE:
-			this.aggregator = new IntegerAggregator(gfieldModified, gfieldType, afield, aop);
-			break;
-		case STRING_TYPE:
-			this.aggregator = new StringAggregator(gfieldModified, gfieldType, afield, aop);
-			break;
-		default:
-			throw new UnsupportedOperationException("unsupported operation");
-
-		}
-    		
-    		
-    	
-	
+        this(child, new int[] { afield },
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[] { gfield },
+                new Aggregator.Op[] { aop });
     }
 
     /**
-     * @return If this aggregate is accompanied by a groupby, return the groupby
-     *         field index in the <b>INPUT</b> tuples. If not, return
+     * Constructor for several aggregates over a composite group key.
+     *
+     * @param child
+     *            The OpIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param gfields
+     *            The columns over which we are grouping the result; empty if
+     *            there is no grouping
+     * @param aops
+     *            The aggregation operator to apply to each of afields
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        if (afields.length == 0 || afields.length != aops.length)
+            throw new IllegalArgumentException("need one operator per aggregate field");
+        this.child = child;
+        this.afields = afields.clone();
+        this.gfields = gfields.clone();
+        this.aops = aops.clone();
+        // fail early if an aggregate is not supported for its field type
+        newAggregator();
+    }
+
+    public static long getAggregateMemory() {
+        return aggregateMemory;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setAggregateMemory(long bytes) {
+        Aggregate.aggregateMemory = bytes;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetAggregateMemory() {
+        Aggregate.aggregateMemory = DEFAULT_AGGREGATE_MEMORY;
+    }
+
+    /**
+     * @return the number of threads a single Aggregate may use; set with the
+     *         system property simpledb.Aggregate.parallelism, 1 by default,
+     *         so that aggregates run on the thread of the query unless
+     *         parallelism is asked for
+     */
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setParallelism(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        Aggregate.parallelism = threads;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetParallelism() {
+        Aggregate.parallelism = Integer.getInteger("simpledb.Aggregate.parallelism", 1);
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null || pool.getParallelism() != parallelism) {
+            if (pool != null)
+                pool.shutdown();
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    private HashAggregator newAggregator() {
+        return newAggregator(aggregateMemory);
+    }
+
+    private HashAggregator newAggregator(long memoryBudget) {
+        return new HashAggregator(child.getTupleDesc(), gfields, afields, aops, memoryBudget);
+    }
+
+    /**
+     * @return If this aggregate is accompanied by a groupby, return the first
+     *         groupby field index in the <b>INPUT</b> tuples. If not, return
      *         {@link simpledb.Aggregator#NO_GROUPING}
      * */
     public int groupField() {
-    	
-    	return gfield;
-	
+        return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+    }
+
+    /**
+     * @return the indexes of the groupby fields in the <b>INPUT</b> tuples;
+     *         empty if there is no grouping
+     */
+    public int[] groupFields() {
+        return gfields.clone();
     }
 
     /**
      * @return If this aggregate is accompanied by a group by, return the name
-     *         of the groupby field in the <b>OUTPUT</b> tuples. If not, return
-     *         null;
+     *         of the first groupby field in the <b>OUTPUT</b> tuples. If not,
+     *         return null;
      * */
     public String groupFieldName() {
-    	
-    	if(gfield == Aggregator.NO_GROUPING){
-    		
-    		return null;
-    		
-    	}
-    	else {
-    		return getTupleDesc().getFieldName(gfield);
-    	}
-    	
-    
-	
+        return gfields.length == 0 ? null : groupFieldName(0);
     }
 
     /**
-     * @return the aggregate field
+     * @return the name of the i-th groupby field in the <b>OUTPUT</b> tuples
+     */
+    public String groupFieldName(int i) {
+        return child.getTupleDesc().getFieldName(gfields[i]);
+    }
+
+    /**
+     * @return the field of the first aggregate
      * */
     public int aggregateField() {
-    	return afield;
-	
+        return afields[0];
     }
 
     /**
-     * @return return the name of the aggregate field in the <b>OUTPUT</b>
-     *         tuples
+     * @return the fields of all aggregates, in output order
+     */
+    public int[] aggregateFields() {
+        return afields.clone();
+    }
+
+    /**
+     * @return return the name of the field of the first aggregate in the
+     *         <b>INPUT</b> tuples
      * */
     public String aggregateFieldName() {
-    	return child.getTupleDesc().getFieldName(afield);
-	
+        return aggregateFieldName(0);
+    }
+
+    /**
+     * @return the name of the field of the i-th aggregate in the
+     *         <b>INPUT</b> tuples
+     */
+    public String aggregateFieldName(int i) {
+        return child.getTupleDesc().getFieldName(afields[i]);
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the operator of the first aggregate
      * */
     public Aggregator.Op aggregateOp() {
-    	
-    	return aop;
-	
+        return aops[0];
     }
 
-	public static String nameOfAggregatorOp(Aggregator.Op aop) {
-		return aop.toString();
-	}
+    /**
+     * @return the operators of all aggregates, in output order
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
+    }
+
+    public static String nameOfAggregatorOp(Aggregator.Op aop) {
+        return aop.toString();
+    }
 
     public void open() throws NoSuchElementException, DbException,
-	    TransactionAbortedException {
-    	
-    	super.open();
-    	child.open();
-    	
-    	while (child.hasNext()){
-    		aggregator.mergeTupleIntoGroup(child.next());
-    	}
-    	child.close();
-    	
-    	OpIterator iterator = (OpIterator) aggregator.iterator();
-    	iterator.open();
-    	
-    	List<Tuple> tuples = new ArrayList<Tuple>();
-    	
-    	while(iterator.hasNext()){
-    		tuples.add(iterator.next());
-    	}
-    	
-    	this.aggregateIt = new TupleIterator(getTupleDesc(), tuples);
-    	aggregateIt.open();
-    
-	
+            TransactionAbortedException {
+        super.open();
+        HashAggregator aggregator = parallelism > 1 ? aggregateInParallel() : null;
+        if (aggregator == null) {
+            aggregator = newAggregator();
+            child.open();
+            while (child.hasNext()) {
+                aggregator.mergeTupleIntoGroup(child.next());
+            }
+            child.close();
+        }
+        aggregateIt = aggregator.iterator();
+        aggregateIt.open();
+    }
+
+    /**
+     * Aggregates the child with a parallel scan if it is a, possibly
+     * filtered, scan of a large enough heap file.
+     *
+     * @return the aggregate, or null if the child cannot be scanned in
+     *         parallel
+     */
+    private HashAggregator aggregateInParallel() throws DbException,
+            TransactionAbortedException {
+        ArrayList<Predicate> filters = new ArrayList<Predicate>();
+        OpIterator it = child;
+        while (it instanceof Filter) {
+            filters.add(((Filter) it).getPredicate());
+            it = ((Filter) it).getChildren()[0];
+        }
+        if (!(it instanceof SeqScan))
+            return null;
+        SeqScan scan = (SeqScan) it;
+        // the filters index the fields the scan returns, the heap file
+        // iterator those of the table
+        int[] projection = scan.getProjection();
+        ArrayList<Predicate> preds = new ArrayList<Predicate>();
+        for (Predicate p : filters) {
+            preds.add(projection == null ? p
+                    : new Predicate(projection[p.getField()], p.getOp(), p.getOperand()));
+        }
+        preds.addAll(Arrays.asList(scan.getPredicates()));
+        DbFile file = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        if (!(file instanceof HeapFile))
+            return null;
+        int start = scan.getStartPage();
+        int end = scan.getEndPage() < 0 ? ((HeapFile) file).numPages()
+                : Math.min(scan.getEndPage(), ((HeapFile) file).numPages());
+        if (end - start < 2 * MIN_PAGES_PER_TASK)
+            return null;
+
+        ParallelScan ps = new ParallelScan((HeapFile) file, scan.getTransactionId(),
+                preds.toArray(new Predicate[preds.size()]), scan.getProjection(),
+                aggregateMemory / parallelism);
+        try {
+            pool().invoke(ps.new ScanTask(start, end));
+        } catch (RuntimeException e) {
+            for (Throwable c = e; c != null; c = c.getCause()) {
+                if (c instanceof TransactionAbortedException)
+                    throw (TransactionAbortedException) c;
+                if (c instanceof DbException)
+                    throw (DbException) c;
+            }
+            throw e;
+        }
+        HashAggregator aggregator = newAggregator();
+        for (HashAggregator partial : ps.partials.values())
+            aggregator.merge(partial);
+        return aggregator;
+    }
+
+    /** State shared by the tasks of one parallel scan. */
+    private class ParallelScan {
+        final HeapFile file;
+        final TransactionId tid;
+        final Predicate[] preds;
+        final int[] projection;
+        final long partialMemory;
+        // a partial aggregate per worker thread, only ever touched by that thread
+        final ConcurrentHashMap<Thread, HashAggregator> partials =
+                new ConcurrentHashMap<Thread, HashAggregator>();
+
+        ParallelScan(HeapFile file, TransactionId tid, Predicate[] preds, int[] projection,
+                long partialMemory) {
+            this.file = file;
+            this.tid = tid;
+            this.preds = preds;
+            this.projection = projection;
+            this.partialMemory = partialMemory;
+        }
+
+        /** Aggregates pages start (inclusive) to end (exclusive). */
+        class ScanTask extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final int start;
+            private final int end;
+
+            ScanTask(int start, int end) {
+                this.start = start;
+                this.end = end;
+            }
+
+            protected void compute() {
+                if (end - start >= 2 * MIN_PAGES_PER_TASK) {
+                    int mid = (start + end) >>> 1;
+                    invokeAll(new ScanTask(start, mid), new ScanTask(mid, end));
+                    return;
+                }
+                HashAggregator partial = partials.get(Thread.currentThread());
+                if (partial == null) {
+                    partial = newAggregator(partialMemory);
+                    partials.put(Thread.currentThread(), partial);
+                }
+                // the predicates are evaluated on the page data by the scan
+                DbFileIterator it = file.iterator(tid, start, end, preds, projection);
+                try {
+                    it.open();
+                    while (it.hasNext())
+                        partial.mergeTupleIntoGroup(it.next());
+                } catch (DbException e) {
+                    throw new RuntimeException(e);
+                } catch (TransactionAbortedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    it.close();
+                }
+            }
+        }
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate. If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns the next tuple. The first fields are the fields by which we are
+     * grouping, if any, followed by one field per aggregate holding its
+     * result. Should return null if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-    	
-    	if(aggregateIt.hasNext()){
-    	   return aggregateIt.next();
-    	}
-    	
-    	else {
-    		return null;
-    	}
-    	
-	
+        if (aggregateIt.hasNext())
+            return aggregateIt.next();
+        return null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-    	
-    	aggregateIt.rewind();
-	
+        aggregateIt.rewind();
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
-     * 
-     * The name of an aggregate column should be informative. For example:
+     * Returns the TupleDesc of this Aggregate. The group by fields, if any,
+     * come first, followed by one INT_TYPE field per aggregate.
+     *
+     * The name of an aggregate column is informative:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
      * given in the constructor, and child_td is the TupleDesc of the child
      * iterator.
      */
     public TupleDesc getTupleDesc() {
-    	
-    	String value = aop.toString() + "(" + child.getTupleDesc().getFieldName(afield) + ")";
-    	
-    	if (gfield == Aggregator.NO_GROUPING){
-    		
-    		return new TupleDesc(new Type[]{Type.INT_TYPE}, new String[]{value});
-    	
-    	} else {
-    		
-    		Type[] types = new Type[2];
-    		
-    		types[0] = child.getTupleDesc().getFieldType(gfield);
-    		
-    		types[1] = Type.INT_TYPE;
-    		
-    		String[] strings = new String[2];
-    		
-    		strings[0] = child.getTupleDesc().getFieldName(gfield);
-    		
-    		strings[1] = value;
-    		
-    		return new TupleDesc(types, strings);
-    		
-    	}
-	
+        TupleDesc childTd = child.getTupleDesc();
+        Type[] types = new Type[gfields.length + afields.length];
+        String[] names = new String[types.length];
+        for (int i = 0; i < gfields.length; i++) {
+            types[i] = childTd.getFieldType(gfields[i]);
+            names[i] = childTd.getFieldName(gfields[i]);
+        }
+        for (int a = 0; a < afields.length; a++) {
+            types[gfields.length + a] = Type.INT_TYPE;
+            names[gfields.length + a] = aops[a].toString() + "("
+                    + childTd.getFieldName(afields[a]) + ")";
+        }
+        return new TupleDesc(types, names);
     }
 
     public void close() {
-	// some code goes here
-    	super.close();
-    	if(aggregateIt != null){
-    		aggregateIt.close();
-    	}
+        super.close();
+        if (aggregateIt != null) {
+            aggregateIt.close();
+            aggregateIt = null;
+        }
     }
 
     @Override
     public OpIterator[] getChildren() {
-	
-    	return new OpIterator[]{child};
-    	
+        return new OpIterator[] { child };
     }
 
     @Override
     public void setChildren(OpIterator[] children) {
-    	
-    	this.child = children[0];
-    	
-    	Type gfieldType;
-    	int gfieldModified;
-    	if (this.gfield == -1){
-    		gfieldType = Type.INT_TYPE;
-    		gfieldModified = Aggregator.NO_GROUPING;
-    	}
-    		
-    	else {
-    		gfieldType = child.getTupleDesc().getFieldType(gfield);
-    		gfieldModified = this.gfield;
-    	}
-
-		Type afieldType = child.getTupleDesc().getFieldType(afield);
-		
-		switch (afieldType) {
-		
-		case INT_TYPE:
-			this.aggregator = new IntegerAggregator(gfieldModified, gfieldType, afield, aop);
-			break;
-		case STRING_TYPE:
-			this.aggregator = new StringAggregator(gfieldModified, gfieldType, afield, aop);
-			break;
-		default:
-			throw new UnsupportedOperationException("unsupported operation");
-
-		}
-    	
-    	
-	
+        this.child = children[0];
     }
-    
+
 }
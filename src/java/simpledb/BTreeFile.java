@@ -69,6 +69,16 @@ public class BTreeFile implements DbFile {
 		return td;
 	}
 
+	/**
+	 * Returns the page size of this file. B+ tree pages are laid out for the
+	 * default page size, apart from the root pointer page.
+	 *
+	 * @see BufferPool#getPageSize()
+	 */
+	public int getPageSize() {
+		return BufferPool.getPageSize();
+	}
+
 	/**
 	 * Read a page from the file on disk. This should not be called directly
 	 * but should be called from the BufferPool via getPage()
@@ -203,36 +213,54 @@ public class BTreeFile implements DbFile {
 			return leafPage;
 		case BTreePageId.INTERNAL:
 			BTreeInternalPage internalPage = (BTreeInternalPage) this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-			Iterator<BTreeEntry> it = internalPage.iterator();
-
-			if (!it.hasNext()) {
-				throw new DbException("There is no way this search gonna happen");
-			}
-			if (f == null) {
-				return findLeafPage(tid, dirtypages, it.next().getLeftChild(), perm, f);
+			// the page is only latched while the child is chosen, not while
+			// the search descends into it
+			BTreePageId child;
+			Latch latch = Database.getBufferPool().latch(pid, false);
+			try {
+				child = findChild(internalPage, f);
+			} finally {
+				latch.release();
 			}
+			return findLeafPage(tid, dirtypages, child, perm, f);
 
+		case BTreePageId.HEADER:
+		case BTreePageId.ROOT_PTR:
+		default:
+			throw new DbException("");
+		}
 
-			BTreeEntry currentEntry = null;
 
-			while (it.hasNext()) {
 
-				currentEntry = it.next();
-				if (currentEntry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
-					return findLeafPage(tid, dirtypages, currentEntry.getLeftChild(), perm, f);
-				}
-			}
+	}
 
-			return findLeafPage(tid, dirtypages, currentEntry.getRightChild(), perm, f);
+	/**
+	 * Returns the child of an internal page whose subtree holds the left-most
+	 * entries possibly matching the key field f, or the left-most child if f
+	 * is null.
+	 */
+	private BTreePageId findChild(BTreeInternalPage internalPage, Field f) throws DbException {
+		Iterator<BTreeEntry> it = internalPage.iterator();
 
-		case BTreePageId.HEADER:
-		case BTreePageId.ROOT_PTR:
-		default:
-			throw new DbException("");
+		if (!it.hasNext()) {
+			throw new DbException("There is no way this search gonna happen");
+		}
+		if (f == null) {
+			return it.next().getLeftChild();
 		}
 
 
+		BTreeEntry currentEntry = null;
 
+		while (it.hasNext()) {
+
+			currentEntry = it.next();
+			if (currentEntry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+				return currentEntry.getLeftChild();
+			}
+		}
+
+		return currentEntry.getRightChild();
 	}
 
 	/**
@@ -253,6 +281,33 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
 	}
 
+	/**
+	 * Find and lock the right-most leaf page in the B+ tree. It locks all internal
+	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the
+	 * leaf node with permission perm. Used by the reverse iterator.
+	 *
+	 * @param tid - the transaction id
+	 * @param pid - the current page being searched
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @return the right-most leaf page
+	 */
+	BTreeLeafPage findLastLeafPage(TransactionId tid, BTreePageId pid, Permissions perm)
+					throws DbException, TransactionAbortedException {
+		while (pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage internalPage = (BTreeInternalPage) Database.getBufferPool().getPage(
+					tid, pid, Permissions.READ_ONLY);
+			Iterator<BTreeEntry> it = internalPage.reverseIterator();
+			if (!it.hasNext()) {
+				throw new DbException("empty internal page " + pid);
+			}
+			pid = it.next().getRightChild();
+		}
+		if (pid.pgcateg() != BTreePageId.LEAF) {
+			throw new DbException("unexpected page category in " + pid);
+		}
+		return (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, perm);
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -587,13 +642,31 @@ public class BTreeFile implements DbFile {
 		}
 
 		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
+		Latch latch = Database.getBufferPool().latch(leafPage.getId(), true);
+		try {
+			leafPage.insertTuple(t);
+		} finally {
+			latch.release();
+		}
 
 		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
 		dirtyPagesArr.addAll(dirtypages.values());
 		return dirtyPagesArr;
 	}
 
+	/**
+	 * Insert a tuple from the iterator into the B+ tree; the tuples of a
+	 * batch may land on any leaf, so they are inserted one per call.
+	 *
+	 * @see DbFile#insertTuples
+	 */
+	public ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		if (!tuples.hasNext())
+			return new ArrayList<Page>();
+		return insertTuple(tid, tuples.next());
+	}
+
 	/**
 	 * Handle the case when a B+ tree page becomes less than half full due to deletions.
 	 * If one of its siblings has extra tuples/entries, redistribute those tuples/entries.
@@ -1092,7 +1165,12 @@ public class BTreeFile implements DbFile {
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-		page.deleteTuple(t);
+		Latch latch = Database.getBufferPool().latch(pageId, true);
+		try {
+			page.deleteTuple(t);
+		} finally {
+			latch.release();
+		}
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
@@ -1342,6 +1420,18 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	/**
+	 * Get an iterator for all tuples in this B+ tree file in descending key order.
+	 * This method will acquire a read lock on the affected pages of the file, and
+	 * may block until the lock can be acquired.
+	 *
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file, largest key first
+	 */
+	public DbFileIterator reverseIterator(TransactionId tid) {
+		return new BTreeReverseFileIterator(this, tid);
+	}
+
 }
 
 /**
@@ -1424,6 +1514,92 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	}
 }
 
+/**
+ * Helper class that implements the Java Iterator for tuples on a BTreeFile in
+ * descending key order, following left sibling pointers
+ */
+class BTreeReverseFileIterator extends AbstractDbFileIterator {
+
+	Iterator<Tuple> it = null;
+	BTreeLeafPage curp = null;
+
+	TransactionId tid;
+	BTreeFile f;
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 */
+	public BTreeReverseFileIterator(BTreeFile f, TransactionId tid) {
+		this.f = f;
+		this.tid = tid;
+	}
+
+	/**
+	 * Open this iterator by getting a reverse iterator on the last leaf page
+	 */
+	public void open() throws DbException, TransactionAbortedException {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+		BTreePageId root = rootPtr.getRootId();
+		if (root == null) {
+			curp = null;
+			it = null;
+			return;
+		}
+		curp = f.findLastLeafPage(tid, root, Permissions.READ_ONLY);
+		it = curp.reverseIterator();
+	}
+
+	/**
+	 * Read the previous tuple either from the current page if it has more tuples or
+	 * from the previous page by following the left sibling pointer.
+	 *
+	 * @return the next tuple in descending order, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		if (it != null && !it.hasNext())
+			it = null;
+
+		while (it == null && curp != null) {
+			BTreePageId prevp = curp.getLeftSiblingId();
+			if(prevp == null) {
+				curp = null;
+			}
+			else {
+				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+						prevp, Permissions.READ_ONLY);
+				it = curp.reverseIterator();
+				if (!it.hasNext())
+					it = null;
+			}
+		}
+
+		if (it == null)
+			return null;
+		return it.next();
+	}
+
+	/**
+	 * rewind this iterator back to the end of the tuples
+	 */
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	/**
+	 * close the iterator
+	 */
+	public void close() {
+		super.close();
+		it = null;
+		curp = null;
+	}
+}
+
 /**
  * Helper class that implements the DbFileIterator for search tuples on a
  * B+ Tree File
@@ -2,7 +2,11 @@ package simpledb;
 
 import java.util.NoSuchElementException;
 
-public class BTreeReverseScan {
+/**
+ * BTreeReverseScan is an operator which reads tuples in descending key
+ * order according to a predicate
+ */
+public class BTreeReverseScan implements OpIterator {
 	
 	private static final long serialVersionUID = 1L;
 
@@ -11,6 +15,8 @@ public class BTreeReverseScan {
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
 	private transient DbFileIterator it;
+	private transient Tuple nextTuple = null;
+	private int keyField;
 	private String tablename;
 	private String alias;
 
@@ -72,12 +78,11 @@ public class BTreeReverseScan {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
-			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
-		}
-		else {
-			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
-		}
+		// the predicate, if any, is checked by this scan as tuples come back in
+		// descending order; see readNext()
+		BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+		this.keyField = f.keyField();
+		this.it = f.reverseIterator(tid);
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
 		Type[] newTypes = new Type[myTd.numFields()];
@@ -119,19 +124,46 @@ public class BTreeReverseScan {
 	public boolean hasNext() throws TransactionAbortedException, DbException {
 		if (!isOpen)
 			throw new IllegalStateException("iterator is closed");
-		return it.hasNext();
+		if (nextTuple == null)
+			nextTuple = readNext();
+		return nextTuple != null;
 	}
 
 	public Tuple next() throws NoSuchElementException,
 	TransactionAbortedException, DbException {
-		if (!isOpen)
-			throw new IllegalStateException("iterator is closed");
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Tuple t = nextTuple;
+		nextTuple = null;
+		return t;
+	}
 
-		return it.next();
+	/**
+	 * Return the next tuple in descending order that matches the index
+	 * predicate, or null once no further tuple can match.
+	 */
+	private Tuple readNext() throws TransactionAbortedException, DbException {
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (ipred == null)
+				return t;
+			Field key = t.getField(keyField);
+			if (key.compare(ipred.getOp(), ipred.getField()))
+				return t;
+			Predicate.Op op = ipred.getOp();
+			if ((op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ
+					|| op == Predicate.Op.EQUALS)
+					&& key.compare(Predicate.Op.LESS_THAN, ipred.getField())) {
+				// every remaining key is smaller still
+				return null;
+			}
+		}
+		return null;
 	}
 
 	public void close() {
 		it.close();
+		nextTuple = null;
 		isOpen = false;
 	}
 
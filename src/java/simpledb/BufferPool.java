@@ -1,11 +1,13 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
@@ -20,11 +22,38 @@ import java.util.concurrent.atomic.AtomicInteger;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Dirty pages may be evicted before their transaction commits (STEAL), once
+ * their update is forced to the log; an abort, or recovery, undoes them from
+ * the log.
+ * <p>
+ * Pages are cached in {@link Frame}s. A cache hit takes no lock beyond the
+ * transaction's page lock; a miss loads the page under the lock of its frame
+ * only, and eviction gives recently used pages a second chance and skips
+ * frames that are pinned or busy. Writing a page to disk holds the log's
+ * monitor, which is taken before the lock of the page's frame, and a shared
+ * {@link Latch} on the page, so that it is not written half modified.
+ * <p>
+ * Tables may have pages of different sizes (see {@link DbFile#getPageSize()}).
+ * The size of the pool is counted in pages of the default page size, and a
+ * larger page takes as many of them as it spans.
+ * <p>
+ * Optionally, heap file pages are kept off-heap: once read, they are moved to
+ * buffers of a {@link FrameArena}, one per page size, and interpreted in
+ * place there, and are copied back to the heap when they leave the pool, so
+ * the buffers can be reused.
+ * <p>
+ * Optionally too, clean heap file pages evicted from the pool are kept in a
+ * {@link CompressedPageCache}, a second tier a miss looks in before reading
+ * the page from disk.
+ * <p>
+ * What the pool does is counted by its {@link BufferPoolMetrics}, which are
+ * registered as an MBean.
  * 
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
-    /** Bytes per page, including header. */
+    /** Bytes per page, including header, of the files that do not choose their page size. */
     private static final int DEFAULT_PAGE_SIZE = 4096;
 
     private static int pageSize = DEFAULT_PAGE_SIZE;
@@ -33,30 +62,60 @@ public class BufferPool {
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+
+    private static boolean offHeap = Boolean.getBoolean("simpledb.BufferPool.offHeap");
+
+    private static long compressedCacheSize = Long.getLong("simpledb.BufferPool.compressedCache", 0);
     
-    private int numPages;
+    private volatile int numPages;
     
-    private ConcurrentHashMap<PageId, Page> bufferPool;
+    private final ConcurrentHashMap<PageId, Frame> frames;
     
-    private AtomicInteger currentNumPages;
+    // pages of the default size taken by the frames holding a page or
+    // reserved for one being loaded
+    private final AtomicInteger currentNumPages;
     
     private final LockManager lockManager;
 
+    // pages written to disk while dirty, by eviction or flushAllPages; if
+    // their transaction aborts, they are undone from the before images in
+    // the log
+    private final Set<PageId> stolen = ConcurrentHashMap.newKeySet();
+
+    // the buffers heap file pages are read into, by page size, if they are
+    // kept off-heap
+    private final ConcurrentHashMap<Integer, FrameArena> arenas;
+
+    // the second tier evicted pages are kept in, compressed, or null
+    private final CompressedPageCache compressed;
+
+    private final BufferPoolMetrics metrics;
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, off-heap if
+     * {@link #isOffHeap()}, and keeps the pages it evicts compressed in
+     * {@link #getCompressedCacheSize()} bytes.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
         // some code goes here
     	this.numPages = numPages;
-    	this.bufferPool = new ConcurrentHashMap<>();
+    	this.frames = new ConcurrentHashMap<>();
     	this.currentNumPages = new AtomicInteger(0);
     	this.lockManager = new LockManager();
+    	this.arenas = offHeap ? new ConcurrentHashMap<>() : null;
+    	this.compressed = compressedCacheSize > 0 ? new CompressedPageCache(compressedCacheSize) : null;
+    	this.metrics = new BufferPoolMetrics(this);
+    	this.metrics.register();
     			
     			
     }
     
+    /**
+     * @return the default page size, that of the files that do not choose
+     *         their own, in pages of which the size of the pool is counted
+     */
     public static int getPageSize() {
       return pageSize;
     }
@@ -71,6 +130,126 @@ public class BufferPool {
     	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
     }
 
+    /**
+     * @return true if new buffer pools keep the pages of heap files in
+     *         direct memory rather than on the Java heap; set with the
+     *         system property simpledb.BufferPool.offHeap
+     */
+    public static boolean isOffHeap() {
+    	return offHeap;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setOffHeap(boolean offHeap) {
+    	BufferPool.offHeap = offHeap;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetOffHeap() {
+    	BufferPool.offHeap = Boolean.getBoolean("simpledb.BufferPool.offHeap");
+    }
+
+    /**
+     * @return the number of bytes of direct memory new buffer pools keep
+     *         the clean pages they evict in, compressed, or 0 to not keep
+     *         them; set with the system property
+     *         simpledb.BufferPool.compressedCache
+     */
+    public static long getCompressedCacheSize() {
+    	return compressedCacheSize;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setCompressedCacheSize(long compressedCacheSize) {
+    	BufferPool.compressedCacheSize = compressedCacheSize;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetCompressedCacheSize() {
+    	BufferPool.compressedCacheSize = Long.getLong("simpledb.BufferPool.compressedCache", 0);
+    }
+
+    /**
+     * @return the maximum number of pages in this buffer pool
+     */
+    public int getNumPages() {
+    	return numPages;
+    }
+
+    /**
+     * Resizes the pool while it is in use. Growing takes effect at once.
+     * Shrinking evicts pages, those the replacement policy picks, until the
+     * pool holds no more than numPages pages, without blocking the threads
+     * that read cached pages; pages that are pinned or busy are left for the
+     * next page requests to evict, which evict until the pool fits in its
+     * size again. Off-heap, the memory of the frames no longer needed is
+     * given back.
+     *
+     * @param numPages the new maximum number of pages in this buffer pool
+     * @return false if pages are left to evict
+     */
+    public synchronized boolean setNumPages(int numPages) throws DbException {
+    	if (numPages < 1)
+    		throw new DbException("a buffer pool holds at least one page");
+    	this.numPages = numPages;
+    	boolean shrunk = true;
+    	while (currentNumPages.get() > numPages) {
+    		if (!evictPage()) {
+    			shrunk = false;
+    			break;
+    		}
+    	}
+    	if (arenas != null) {
+    		for (FrameArena arena : arenas.values())
+    			arena.trim((long) numPages * pageSize);
+    	}
+    	return shrunk;
+    }
+
+    /**
+     * @return the counters of this buffer pool
+     */
+    public BufferPoolMetrics getMetrics() {
+    	return metrics;
+    }
+
+    /**
+     * @return for each table with pages in the pool, the number of its pages
+     *         the pool holds and how many of them are dirty
+     */
+    Map<Integer, int[]> residency() {
+    	HashMap<Integer, int[]> residency = new HashMap<>();
+    	for (Frame frame : frames.values()) {
+    		Page page = frame.page;
+    		if (page == null)
+    			continue;
+    		int[] counts = residency.computeIfAbsent(frame.pid.getTableId(), id -> new int[2]);
+    		counts[0]++;
+    		if (page.isDirty() != null)
+    			counts[1]++;
+    	}
+    	return residency;
+    }
+
+    /**
+     * @return the second tier of the pool, or null
+     */
+    CompressedPageCache getCompressedCache() {
+    	return compressed;
+    }
+
+    /**
+     * @return the number of bytes of direct memory the pool holds pages in
+     */
+    public long getOffHeapBytes() {
+    	long bytes = compressed == null ? 0 : compressed.getCapacity();
+    	if (arenas != null) {
+    		for (FrameArena arena : arenas.values())
+    			bytes += arena.getCapacity();
+    	}
+    	return bytes;
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -90,23 +269,333 @@ public class BufferPool {
         throws TransactionAbortedException, DbException {
 
 		lockManager.acquireLock(tid, pid, perm);
-		// TODO maybe not exceptions ???
-		if (!bufferPool.containsKey(pid)) {
-			Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-			if (currentNumPages.intValue() >= this.numPages) {
+		Frame frame = frames.get(pid);
+		if (frame != null) {
+			Page page = frame.page;
+			if (page != null) {
+				frame.referenced = true;
+				frame.uses++;
+				frame.counters.hits.increment();
+				return page;
+			}
+		}
+		metrics.of(pid.getTableId()).misses.increment();
+		return load(pid, null);
+	}
+
+    /**
+     * Adds a page its file has just allocated to the buffer pool, without
+     * reading it from disk, and returns it with a READ_WRITE lock held by tid.
+     * The file must hold the page as an empty page on disk, so that it does
+     * not matter whether the frame or a later read of the page is used.
+     *
+     * @param tid the ID of the transaction that allocated the page
+     * @param page the new, empty page
+     */
+    public Page getNewPage(TransactionId tid, Page page)
+        throws TransactionAbortedException, DbException {
+
+		lockManager.acquireLock(tid, page.getId(), Permissions.READ_WRITE);
+		// a scan may have read the empty page from disk in the meantime
+		return load(page.getId(), page);
+	}
+
+    /**
+     * Returns the cached page pid, reading it from disk, or using newPage if
+     * it is not null, when it is not cached.
+     */
+	private Page load(PageId pid, Page newPage) throws DbException {
+		while (true) {
+			Frame frame = frames.computeIfAbsent(pid, this::newFrame);
+			Page page = frame.page;
+			if (page != null) {
+				frame.referenced = true;
+				frame.uses++;
+				return page;
+			}
+			frame.pin();
+			frame.lock.lock();
+			try {
+				if (frames.get(pid) != frame)
+					continue; // evicted while we waited
+				if (frame.page == null) {
+					// only the first loader gets here; the others wait for it.
+					// Frames being loaded are never flushed, so no thread that
+					// holds the log's monitor waits for this lock while
+					// evicting a dirty page takes that monitor
+					try {
+						reserve(frame.slots);
+					} catch (DbException e) {
+						frames.remove(pid, frame);
+						throw e;
+					}
+					try {
+						if (newPage == null) {
+							read(frame);
+						} else {
+							if (compressed != null)
+								compressed.discard(pid);
+							frame.page = newPage;
+						}
+					} catch (RuntimeException e) {
+						currentNumPages.addAndGet(-frame.slots);
+						frames.remove(pid, frame);
+						throw e;
+					}
+				}
+				frame.referenced = true;
+				frame.uses++;
+				return frame.page;
+			} finally {
+				frame.lock.unlock();
+				frame.unpin();
+			}
+		}
+	}
 
-				evictPage();
+	private Frame newFrame(PageId pid) {
+		int size = Database.getCatalog().getPageSize(pid.getTableId());
+		return new Frame(pid, metrics.of(pid.getTableId()),
+				Math.max(1, (size + pageSize - 1) / pageSize));
+	}
+
+    /**
+     * Reads the page of frame from the second tier, or else from its file,
+     * and moves it to a buffer of the arena if the pool is off-heap and the
+     * page is a heap file page.
+     */
+	private void read(Frame frame) {
+		byte[] data = compressed == null ? null : compressed.remove(frame.pid);
+		if (data != null) {
+			try {
+				cache(frame, new HeapPage((HeapPageId) frame.pid, data));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
 			}
+			frame.counters.compressedHits.increment();
+			return;
+		}
+		cache(frame, Database.getCatalog().getDatabaseFile(frame.pid.getTableId()).readPage(frame.pid));
+		frame.counters.reads.increment();
+	}
 
-			bufferPool.put(pid, page);
-			currentNumPages.incrementAndGet();
-			return page;
+    /**
+     * Caches page, just read, in frame.
+     */
+	private void cache(Frame frame, Page page) {
+		if (arenas != null && page instanceof HeapPage) {
+			// the page read is short-lived garbage; the cached copy is not
+			ByteBuffer buffer = arenas.computeIfAbsent(((HeapPage) page).pageSize,
+					FrameArena::new).allocate();
+			((HeapPage) page).attach(buffer);
+			frame.buffer = buffer;
+		}
+		frame.page = page;
+	}
 
+    /**
+     * Replaces the page of frame, whose lock the caller holds, giving the
+     * arena buffer the old page read back to the arena.
+     */
+	private void replace(Frame frame, Page page) {
+		if (frame.buffer == null) {
+			frame.page = page;
+			return;
+		}
+		// readers latch the page, and none of them may read the buffer anymore
+		long stamp = frame.latch.writeLock();
+		try {
+			release(frame);
+			frame.page = page;
+		} finally {
+			frame.latch.unlockWrite(stamp);
 		}
+	}
 
-		return bufferPool.get(pid);
+    /**
+     * Copies the page of frame to the heap if it reads a buffer of the
+     * arena in place, and gives the buffer back. No thread may be reading
+     * the page through the frame.
+     */
+	private void release(Frame frame) {
+		ByteBuffer buffer = frame.buffer;
+		if (buffer == null)
+			return;
+		frame.buffer = null;
+		// whoever still holds the page, e.g. after it was evicted, can read it
+		((HeapPage) frame.page).detach();
+		arenas.get(buffer.capacity()).free(buffer);
 	}
-   
+
+    /**
+     * Caches page, replacing the version of it that is cached, if any.
+     */
+	private void install(Page page) throws DbException {
+		PageId pid = page.getId();
+		while (true) {
+			Frame frame = frames.computeIfAbsent(pid, this::newFrame);
+			boolean reserved = false;
+			if (frame.page == null) {
+				reserve(frame.slots);
+				reserved = true;
+			}
+			frame.lock.lock();
+			try {
+				if (frames.get(pid) != frame) {
+					if (reserved)
+						currentNumPages.addAndGet(-frame.slots);
+					continue;
+				}
+				if (frame.page != null && reserved)
+					currentNumPages.addAndGet(-frame.slots);
+				if (frame.page != page)
+					replace(frame, page);
+				frame.referenced = true;
+				return;
+			} finally {
+				frame.lock.unlock();
+			}
+		}
+	}
+
+    /**
+     * Takes the slots for a new page, evicting pages until they are free.
+     */
+	private void reserve(int slots) throws DbException {
+		while (!reserveFree(slots)) {
+			if (!evictPage()) {
+				metrics.evictionFailed();
+				throw new DbException("no page to evict");
+			}
+		}
+	}
+
+    /**
+     * Takes the slots for a new page if they are free.
+     */
+	private boolean reserveFree(int slots) {
+		while (true) {
+			int n = currentNumPages.get();
+			if (n + slots > this.numPages)
+				return false;
+			if (currentNumPages.compareAndSet(n, n + slots))
+				return true;
+		}
+	}
+
+    /**
+     * Caches the pages pids that are not cached yet, as long as the pool has
+     * free slots: no page is evicted for them. The pages are consecutive
+     * pages of one file, in order, and those of a heap file are read at once
+     * (see {@link HeapFile#readPages}). Threads requesting one of them in
+     * the meantime wait for it to be read.
+     *
+     * @param pids the IDs of the pages to cache
+     * @return false if the pool filled up before every page was cached
+     */
+	boolean prefetch(List<PageId> pids) {
+		if (pids.isEmpty())
+			return true;
+		DbFile file = Database.getCatalog().getDatabaseFile(pids.get(0).getTableId());
+		ArrayList<Frame> loading = new ArrayList<>();
+		boolean full = false;
+		try {
+			for (PageId pid : pids) {
+				if (frames.containsKey(pid))
+					continue;
+				// locked before it is published, so it is read only once
+				Frame frame = newFrame(pid);
+				if (!reserveFree(frame.slots)) {
+					full = true;
+					break;
+				}
+				frame.lock.lock();
+				if (frames.putIfAbsent(pid, frame) != null) {
+					frame.lock.unlock();
+					currentNumPages.addAndGet(-frame.slots);
+					continue;
+				}
+				// read from disk, where it is the same
+				if (compressed != null)
+					compressed.discard(pid);
+				loading.add(frame);
+			}
+			if (file instanceof HeapFile) {
+				// one read per run of consecutive pages among those not cached
+				int start = 0;
+				for (int i = 1; i <= loading.size(); i++) {
+					if (i < loading.size() && loading.get(i).pid.getPageNumber()
+							== loading.get(i - 1).pid.getPageNumber() + 1)
+						continue;
+					Page[] pages = ((HeapFile) file).readPages(
+							loading.get(start).pid.getPageNumber(), i - start);
+					for (int j = start; j < i; j++) {
+						cache(loading.get(j), pages[j - start]);
+						loading.get(j).counters.reads.increment();
+					}
+					start = i;
+				}
+			} else {
+				for (Frame frame : loading) {
+					cache(frame, file.readPage(frame.pid));
+					frame.counters.reads.increment();
+				}
+			}
+		} finally {
+			for (Frame frame : loading) {
+				if (frame.page == null) {
+					// not read; whoever waits for it reads it
+					currentNumPages.addAndGet(-frame.slots);
+					frames.remove(frame.pid, frame);
+				}
+				frame.lock.unlock();
+			}
+		}
+		return !full;
+	}
+
+    /**
+     * @return the IDs of the pages the pool holds, those requested most
+     *         often first
+     */
+	List<PageId> hottestPages() {
+		// the counts are read once, since they change while they are sorted
+		ArrayList<Map.Entry<PageId, Integer>> resident = new ArrayList<>();
+		for (Frame frame : frames.values()) {
+			if (frame.page != null)
+				resident.add(new java.util.AbstractMap.SimpleEntry<>(frame.pid, frame.uses));
+		}
+		resident.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+		ArrayList<PageId> pids = new ArrayList<>(resident.size());
+		for (Map.Entry<PageId, Integer> e : resident)
+			pids.add(e.getKey());
+		return pids;
+	}
+
+    /**
+     * Latches page pid, shared to read its contents or exclusive to modify
+     * them, until the returned latch is released. The calling transaction
+     * must hold the matching lock on the page.
+     *
+     * @param pid the ID of the page to latch
+     * @param exclusive true to modify the page
+     * @return the latch to release once the page operation is done
+     */
+    public Latch latch(PageId pid, boolean exclusive) {
+        // pinned atomically with the lookup, so the frame is not evicted
+        Frame frame = frames.computeIfPresent(pid, (k, f) -> {
+            f.pin();
+            return f;
+        });
+        return new Latch(frame, exclusive);
+    }
+
+    /**
+     * @return true if page pid is cached
+     */
+    boolean holdsPage(PageId pid) {
+        return cachedPage(pid) != null;
+    }
 
     /**
      * Releases the lock on a page.
@@ -163,12 +652,13 @@ public class BufferPool {
     			Set<PageId> dirtyPages = lockManager.getDirtiedPages(tid);
     			
     			for (PageId pid: dirtyPages) {
-    				Page page = this.bufferPool.get(pid);
+    				Page page = cachedPage(pid);
     				
-    				if (tid.equals(page.isDirty())) {
+    				if (page != null && tid.equals(page.isDirty())) {
     					flushPage(pid);
     					page.setBeforeImage();
     				}
+    				stolen.remove(pid);
     			}
     			
     			
@@ -178,13 +668,30 @@ public class BufferPool {
     			
     			Set<PageId> dirtyPages = lockManager.getDirtiedPages(tid);
     			
+    			// the before image of a page is its last committed version, so
+    			// the pages are restored without reading them from disk; pages
+    			// flushed since they were dirtied were rolled back on disk and
+    			// discarded by the log
+    			boolean undoStolen = false;
     			for (PageId pid: dirtyPages) {
-    				bufferPool.remove(pid);
-    				try {
-    					getPage(tid, pid, Permissions.READ_ONLY);
-    				} catch (Exception e) {
-    					e.printStackTrace();
+    				Frame frame = frames.get(pid);
+    				Page page = frame == null ? null : frame.page;
+    				if (page != null && tid.equals(page.isDirty())) {
+    					frame.lock.lock();
+    					try {
+    						if (frame.page == page)
+    							replace(frame, page.getBeforeImage());
+    					} finally {
+    						frame.lock.unlock();
+    					}
     				}
+    				undoStolen |= stolen.contains(pid);
+    			}
+    			// stolen pages the log has not rolled back yet, i.e. if the
+    			// transaction did not abort through LogFile.logAbort
+    			if (undoStolen) {
+    				Database.getLogFile().rollback(tid);
+    				stolen.removeAll(dirtyPages);
     			}
     			
     			
@@ -225,12 +732,60 @@ public class BufferPool {
 
 		for (Page page : pages) {
 			page.markDirty(true, tid);
-			bufferPool.put(page.getId(), page);
+			install(page);
 
 		}
 
 	}
 
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid, as {@link #insertTuple} does for a single tuple. The table is
+     * looked up once, and the file fills whole pages at a time (see
+     * {@link DbFile#insertTuples}), so the pages are locked, fetched and
+     * marked dirty once per page rather than once per tuple.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     * @return the number of tuples added
+     */
+	public int insertTuples(TransactionId tid, int tableId, Iterator<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+
+		DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+		CountingIterator it = new CountingIterator(tuples);
+
+		while (it.hasNext()) {
+			ArrayList<Page> pages = file.insertTuples(tid, it);
+			for (Page page : pages) {
+				page.markDirty(true, tid);
+				install(page);
+			}
+		}
+		return it.count;
+	}
+
+	/** Counts the tuples the file takes from the batch. */
+	private static class CountingIterator implements Iterator<Tuple> {
+		private final Iterator<Tuple> tuples;
+		int count = 0;
+
+		CountingIterator(Iterator<Tuple> tuples) {
+			this.tuples = tuples;
+		}
+
+		public boolean hasNext() {
+			return tuples.hasNext();
+		}
+
+		public Tuple next() {
+			Tuple t = tuples.next();
+			count++;
+			return t;
+		}
+	}
+
     /**
      * Remove the specified tuple from the buffer pool.
      * Will acquire a write lock on the page the tuple is removed from and any
@@ -253,31 +808,22 @@ public class BufferPool {
 		ArrayList<Page> pages = file.deleteTuple(tid, t);
 
 		for (Page page : pages) {
-			page.markDirty(false, tid);
-			bufferPool.put(page.getId(), page);
+			page.markDirty(true, tid);
+			install(page);
 		}
 	}
 
     /**
      * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     *     break simpledb if running in NO STEAL mode.
+     * NB: this writes uncommitted data to disk, which is undone from the log
+     *     like that of evicted pages if its transaction aborts.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-    	    Iterator<PageId> it = this.bufferPool.keySet().iterator();
-    	    
-    	    while (it.hasNext()) {
-    	    	
-    	    		PageId pageId = it.next();
-    	    		
-    	    		flushPage(pageId);
-    	    		
-    	    		
-    	    	
+    	    for (PageId pid : frames.keySet()) {
+    	    		flushPage(pid);
     	    }
-    	
 
     }
 
@@ -289,47 +835,102 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-	public synchronized void discardPage(PageId pid) {
+	public void discardPage(PageId pid) {
 		// some code goes here
 		// not necessary for lab1
-		if (bufferPool.containsKey(pid)) {
-			bufferPool.remove(pid);
-			currentNumPages.decrementAndGet();
+		// the rollback calling this holds the log's monitor, so this does
+		// not wait for the frame's lock; a concurrent flush sees the flag
+		if (compressed != null)
+			compressed.discard(pid);
+		Frame frame = frames.remove(pid);
+		if (frame != null) {
+			frame.discarded = true;
+			if (frame.page != null)
+				currentNumPages.addAndGet(-frame.slots);
+			if (frame.buffer != null) {
+				long stamp = frame.latch.writeLock();
+				try {
+					release(frame);
+				} finally {
+					frame.latch.unlockWrite(stamp);
+				}
+			}
 		}
+		stolen.remove(pid);
+	}
+
+    /**
+     * Returns the cached version of page pid, or null if it is not cached.
+     */
+	private Page cachedPage(PageId pid) {
+		Frame frame = frames.get(pid);
+		return frame == null ? null : frame.page;
 	}
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-	private synchronized void flushPage(PageId pid) throws IOException {
+	private void flushPage(PageId pid) throws IOException {
 
 		// some code goes here
 		// not necessary for lab1
 
-		if (bufferPool.containsKey(pid)) {
-			Page flushPage = bufferPool.get(pid);
-			TransactionId tid = flushPage.isDirty();
-			if (tid != null) {
-                
-				Database.getLogFile().logWrite(tid, flushPage.getBeforeImage(), flushPage);
-			    Database.getLogFile().force();
-				DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+		Frame frame = frames.get(pid);
+		if (frame == null || frame.page == null)
+			return; // nothing to flush in a page being loaded
+		synchronized (Database.getLogFile()) {
+			frame.pin();
+			frame.lock.lock();
+			try {
+				write(frame, true);
+			} finally {
+				frame.lock.unlock();
+				frame.unpin();
+			}
+		}
+    	
+    }
 
-				file.writePage(flushPage);
+    /**
+     * Writes the page of frame to disk if it is dirty, after logging and
+     * forcing its update. The caller holds the log's monitor and the
+     * frame's lock.
+     *
+     * @param wait false to give up if the page is latched exclusively
+     * @return false if the page was not written because it was latched
+     */
+	private boolean write(Frame frame, boolean wait) throws IOException {
+		long stamp = wait ? frame.latch.readLock() : frame.latch.tryReadLock();
+		if (stamp == 0)
+			return false;
+		try {
+			Page page = frame.page;
+			TransactionId tid = page == null ? null : page.isDirty();
+			if (tid == null || frame.discarded)
+				return true;
 
-				flushPage.markDirty(false, tid);
+			long start = System.nanoTime();
+			Database.getLogFile().logWrite(tid, page.getBeforeImage(), page);
+			Database.getLogFile().force();
+			DbFile file = Database.getCatalog().getDatabaseFile(frame.pid.getTableId());
 
-				bufferPool.put(pid, flushPage);
-			}
+			file.writePage(page);
+			frame.counters.writes.increment();
+			frame.counters.flushed(System.nanoTime() - start);
+			// uncommitted until its transaction completes
+			stolen.add(frame.pid);
 
+			page.markDirty(false, tid);
+			return true;
+		} finally {
+			frame.latch.unlockRead(stamp);
 		}
-    	
-    }
+	}
 
     /** Write all pages of the specified transaction to disk.
      */
-	public synchronized void flushPages(TransactionId tid) throws IOException {
+	public void flushPages(TransactionId tid) throws IOException {
 		
 		
 
@@ -338,8 +939,10 @@ public class BufferPool {
 		for (PageId pid: dirtyPages) {
 			flushPage(pid);
 			
-			Page page = this.bufferPool.get(pid);
-			page.setBeforeImage();
+			// stolen pages were written when they were evicted
+			Page page = cachedPage(pid);
+			if (page != null)
+				page.setBeforeImage();
 			
 			
 			
@@ -351,46 +954,102 @@ public class BufferPool {
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Unreferenced clean pages go first, then any clean page, and a dirty
+     * page is only stolen when there is no clean one.
+     *
+     * @return false if every page is pinned or busy
      */
-	private synchronized void evictPage() throws DbException {
+	private boolean evictPage() throws DbException {
 
-		
-		Iterator<PageId> keyIterator = bufferPool.keySet().iterator();
-		
-		PageId pid = null;
-		
-		while(keyIterator.hasNext()) {
-			pid = keyIterator.next();
-			if (bufferPool.get(pid).isDirty() == null) {
-				
-				break;
+		ArrayList<Frame> dirty = new ArrayList<>();
+		for (int pass = 0; pass < 2; pass++) {
+			for (Frame frame : frames.values()) {
+				Page page = frame.page;
+				if (page == null || frame.isPinned())
+					continue;
+				if (pass == 0 && frame.referenced) {
+					frame.referenced = false;
+					continue;
+				}
+				if (page.isDirty() != null) {
+					if (pass == 1)
+						dirty.add(frame);
+					continue;
+				}
+				if (evict(frame))
+					return true;
 			}
 		}
-		
-		
-		
-		if (pid == null || bufferPool.get(pid).isDirty() != null) {
-			throw new DbException("");
+		for (Frame frame : dirty) {
+			// writing the page needs the log's monitor before the frame's lock
+			synchronized (Database.getLogFile()) {
+				if (evict(frame))
+					return true;
+			}
+		}
+		return false;
+    }
+
+    /**
+     * Keeps the clean page of frame, which is being evicted, in the second
+     * tier, unless it is latched exclusively to be modified; an older
+     * version of it is dropped either way.
+     */
+	private void compress(Frame frame, Page page) {
+		long stamp = frame.latch.tryReadLock();
+		if (stamp == 0) {
+			compressed.discard(frame.pid);
+			return;
 		}
-		
 		try {
-			flushPage(pid);
-			
-		} catch (Exception e) {
-			e.getStackTrace();
-			throw new DbException("Failed to evict");
+			compressed.put(frame.pid, page.getPageData());
+		} finally {
+			frame.latch.unlockRead(stamp);
 		}
-		
-		
-		lockManager.releasePage(null, pid);
-		bufferPool.remove(pid);
-		currentNumPages.decrementAndGet();
-
+	}
 
-	
-    }
-    		
-    
+	private boolean evict(Frame frame) throws DbException {
+		if (!frame.lock.tryLock())
+			return false;
+		try {
+			Page page = frame.page;
+			if (page == null || frame.isPinned() || frames.get(frame.pid) != frame)
+				return false;
+			if (page.isDirty() != null) {
+				if (!Thread.holdsLock(Database.getLogFile()))
+					return false;
+				try {
+					// logs the update and forces the log before writing the page
+					if (!write(frame, false))
+						return false;
+				} catch (IOException e) {
+					throw new DbException("Failed to evict: " + e.getMessage());
+				}
+			}
+			// kept before it leaves the pool, so that no newer version of it
+			// can be kept first
+			if (compressed != null && page instanceof HeapPage)
+				compress(frame, page);
+			// locks are held until the transaction completes: the transaction
+			// that dirtied a stolen page must keep others from reading the
+			// uncommitted data on disk, and one may be in the middle of
+			// updating a page it has not marked dirty yet
+			// latching pins the frame atomically with looking it up
+			boolean[] removed = new boolean[1];
+			frames.computeIfPresent(frame.pid, (k, f) -> {
+				if (f != frame || f.isPinned())
+					return f;
+				removed[0] = true;
+				return null;
+			});
+			if (!removed[0])
+				return false;
+			release(frame);
+			currentNumPages.addAndGet(-frame.slots);
+			frame.counters.evictions.increment();
+			return true;
+		} finally {
+			frame.lock.unlock();
+		}
+	}
 }
-
-
@@ -0,0 +1,280 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * BufferPoolMetrics counts what a {@link BufferPool} does, per table: page
+ * requests served from memory or not, pages read and written, evictions,
+ * and how long flushing a page takes.
+ * <p>
+ * Counters are striped {@link LongAdder}s, and every frame of the pool keeps
+ * the counters of its table, so counting a hit costs an uncontended add.
+ * Residency and dirty pages are not counted but computed from the pool when
+ * they are asked for.
+ */
+public class BufferPoolMetrics implements BufferPoolMetricsMBean {
+
+    /** The name the metrics of the current buffer pool are registered under. */
+    public static final String OBJECT_NAME = "simpledb:type=BufferPool";
+
+    /** Number of buckets of the flush latency histograms. */
+    public static final int LATENCY_BUCKETS = 24;
+
+    /** The counters of one table. */
+    static class Counters {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder reads = new LongAdder();
+        final LongAdder writes = new LongAdder();
+        final LongAdder evictions = new LongAdder();
+        final LongAdder compressedHits = new LongAdder();
+        final LongAdder[] flushLatency = new LongAdder[LATENCY_BUCKETS];
+
+        Counters() {
+            for (int i = 0; i < LATENCY_BUCKETS; i++)
+                flushLatency[i] = new LongAdder();
+        }
+
+        void flushed(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            flushLatency[Math.min(bucket, LATENCY_BUCKETS - 1)].increment();
+        }
+    }
+
+    private final BufferPool pool;
+    private final ConcurrentHashMap<Integer, Counters> tables = new ConcurrentHashMap<>();
+    private final LongAdder evictionFailures = new LongAdder();
+
+    BufferPoolMetrics(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return the counters of table tableId
+     */
+    Counters of(int tableId) {
+        return tables.computeIfAbsent(tableId, id -> new Counters());
+    }
+
+    void evictionFailed() {
+        evictionFailures.increment();
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, in place of
+     * those of an earlier buffer pool.
+     */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            synchronized (BufferPoolMetrics.class) {
+                if (server.isRegistered(name))
+                    server.unregisterMBean(name);
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            // the metrics are still available from the pool
+        }
+    }
+
+    private long sum(java.util.function.Function<Counters, LongAdder> counter) {
+        long total = 0;
+        for (Counters c : tables.values())
+            total += counter.apply(c).sum();
+        return total;
+    }
+
+    /** @return the hits of table tableId */
+    public long getHits(int tableId) {
+        return count(tableId, c -> c.hits);
+    }
+
+    /** @return the misses of table tableId */
+    public long getMisses(int tableId) {
+        return count(tableId, c -> c.misses);
+    }
+
+    /** @return the pages of table tableId read from disk */
+    public long getReads(int tableId) {
+        return count(tableId, c -> c.reads);
+    }
+
+    /** @return the pages of table tableId written to disk */
+    public long getWrites(int tableId) {
+        return count(tableId, c -> c.writes);
+    }
+
+    /** @return the pages of table tableId evicted */
+    public long getEvictions(int tableId) {
+        return count(tableId, c -> c.evictions);
+    }
+
+    /** @return the pages of table tableId read from the compressed cache */
+    public long getCompressedHits(int tableId) {
+        return count(tableId, c -> c.compressedHits);
+    }
+
+    /** @return the flush latency histogram of table tableId */
+    public long[] getFlushLatencyHistogram(int tableId) {
+        Counters c = tables.get(tableId);
+        return c == null ? new long[LATENCY_BUCKETS] : histogram(c.flushLatency);
+    }
+
+    // reads do not create counters, so that tables only show up in the
+    // dump once the pool has seen their pages
+    private long count(int tableId, java.util.function.Function<Counters, LongAdder> counter) {
+        Counters c = tables.get(tableId);
+        return c == null ? 0 : counter.apply(c).sum();
+    }
+
+    private static long[] histogram(LongAdder[] buckets) {
+        long[] counts = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < LATENCY_BUCKETS; i++)
+            counts[i] = buckets[i].sum();
+        return counts;
+    }
+
+    @Override
+    public int getCapacity() {
+        return pool.getNumPages();
+    }
+
+    @Override
+    public void setCapacity(int capacity) throws DbException {
+        pool.setNumPages(capacity);
+    }
+
+    @Override
+    public int getResidentPages() {
+        int resident = 0;
+        for (int[] counts : pool.residency().values())
+            resident += counts[0];
+        return resident;
+    }
+
+    @Override
+    public int getDirtyPages() {
+        int dirty = 0;
+        for (int[] counts : pool.residency().values())
+            dirty += counts[1];
+        return dirty;
+    }
+
+    @Override
+    public long getHits() {
+        return sum(c -> c.hits);
+    }
+
+    @Override
+    public long getMisses() {
+        return sum(c -> c.misses);
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = getHits();
+        long requests = hits + getMisses();
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public long getReads() {
+        return sum(c -> c.reads);
+    }
+
+    @Override
+    public long getWrites() {
+        return sum(c -> c.writes);
+    }
+
+    @Override
+    public long getEvictions() {
+        return sum(c -> c.evictions);
+    }
+
+    @Override
+    public long getCompressedHits() {
+        return sum(c -> c.compressedHits);
+    }
+
+    @Override
+    public int getCompressedPages() {
+        CompressedPageCache compressed = pool.getCompressedCache();
+        return compressed == null ? 0 : compressed.size();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        CompressedPageCache compressed = pool.getCompressedCache();
+        return compressed == null ? 0 : compressed.getCompressionRatio();
+    }
+
+    @Override
+    public long getEvictionFailures() {
+        return evictionFailures.sum();
+    }
+
+    @Override
+    public long[] getFlushLatencyHistogram() {
+        long[] counts = new long[LATENCY_BUCKETS];
+        for (Counters c : tables.values()) {
+            for (int i = 0; i < LATENCY_BUCKETS; i++)
+                counts[i] += c.flushLatency[i].sum();
+        }
+        return counts;
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        Map<Integer, int[]> residency = pool.residency();
+        sb.append(String.format("%d of %d pages resident, %d dirty, hit ratio %.3f, %d eviction failures%n",
+                getResidentPages(), getCapacity(), getDirtyPages(), getHitRatio(),
+                getEvictionFailures()));
+        if (pool.getCompressedCache() != null)
+            sb.append(String.format("%d pages compressed %.2fx, %d hits%n", getCompressedPages(),
+                    getCompressionRatio(), getCompressedHits()));
+        sb.append(String.format("%-20s %10s %10s %10s %10s %10s %8s %8s%n", "table", "hits",
+                "misses", "reads", "writes", "evictions", "resident", "dirty"));
+        TreeMap<String, Integer> names = new TreeMap<>();
+        for (Integer tableId : tables.keySet())
+            names.put(tableName(tableId), tableId);
+        for (Map.Entry<String, Integer> e : names.entrySet()) {
+            Counters c = tables.get(e.getValue());
+            int[] counts = residency.getOrDefault(e.getValue(), new int[2]);
+            sb.append(String.format("%-20s %10d %10d %10d %10d %10d %8d %8d%n", e.getKey(),
+                    c.hits.sum(), c.misses.sum(), c.reads.sum(), c.writes.sum(),
+                    c.evictions.sum(), counts[0], counts[1]));
+        }
+        sb.append("flush latency (us):");
+        long[] histogram = getFlushLatencyHistogram();
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            if (histogram[i] == 0)
+                continue;
+            String bucket = i == 0 ? "<1" : i == LATENCY_BUCKETS - 1
+                    ? ">=" + (1L << (i - 1)) : "<" + (1L << i);
+            sb.append(' ').append(bucket).append(':').append(histogram[i]);
+        }
+        sb.append(String.format("%n"));
+        return sb.toString();
+    }
+
+    private static String tableName(int tableId) {
+        try {
+            return Database.getCatalog().getTableName(tableId);
+        } catch (NoSuchElementException e) {
+            // dropped, or a file that was never added to the catalog
+            return Integer.toString(tableId);
+        }
+    }
+}
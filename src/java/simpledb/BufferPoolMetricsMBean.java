@@ -0,0 +1,70 @@
+package simpledb;
+
+/**
+ * The management interface of {@link BufferPoolMetrics}, under which the
+ * metrics of the current buffer pool are registered with the platform MBean
+ * server as {@value BufferPoolMetrics#OBJECT_NAME}. Counters are totals over
+ * all tables; {@link #dump()} breaks them down per table.
+ */
+public interface BufferPoolMetricsMBean {
+
+    /** @return the number of pages the pool may hold */
+    int getCapacity();
+
+    /**
+     * Resizes the pool, see {@link BufferPool#setNumPages(int)}.
+     *
+     * @param capacity the number of pages the pool may hold
+     */
+    void setCapacity(int capacity) throws DbException;
+
+    /** @return the number of pages the pool holds */
+    int getResidentPages();
+
+    /** @return the number of dirty pages the pool holds */
+    int getDirtyPages();
+
+    /** @return the number of page requests served from the pool */
+    long getHits();
+
+    /** @return the number of page requests that had to wait for a read */
+    long getMisses();
+
+    /** @return the fraction of page requests served from the pool */
+    double getHitRatio();
+
+    /** @return the number of pages read from disk */
+    long getReads();
+
+    /** @return the number of pages written to disk */
+    long getWrites();
+
+    /** @return the number of pages evicted */
+    long getEvictions();
+
+    /** @return the number of pages read from the compressed cache */
+    long getCompressedHits();
+
+    /** @return the number of evicted pages held by the compressed cache */
+    int getCompressedPages();
+
+    /**
+     * @return the size of the pages of the compressed cache over their
+     *         compressed size
+     */
+    double getCompressionRatio();
+
+    /** @return the number of times no page could be evicted */
+    long getEvictionFailures();
+
+    /**
+     * @return the number of page flushes, including forcing the log, whose
+     *         latency in microseconds fell in [2^(i-1), 2^i) for each i, the
+     *         first bucket counting flushes under a microsecond and the last
+     *         one the longer flushes
+     */
+    long[] getFlushLatencyHistogram();
+
+    /** @return the metrics, broken down per table, as a printable table */
+    String dump();
+}
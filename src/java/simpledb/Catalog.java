@@ -155,6 +155,16 @@ public class Catalog {
         
     }
 
+    /**
+     * Returns the page size of the specified table, that of its DbFile;
+     * tables may use pages of different sizes.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public int getPageSize(int tableid) throws NoSuchElementException {
+        return getDatabaseFile(tableid).getPageSize();
+    }
+
     public String getPrimaryKey(int tableid) {
         // some code goes here
     	
@@ -192,6 +202,9 @@ public class Catalog {
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * A table whose pages are not of the default size is followed by its page
+     * size, e.g. <code>name (field type, ...) pagesize 65536</code>, and a
+     * table stored compressed by <code>compressed</code>.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -232,14 +245,29 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                int pageSize = BufferPool.getPageSize();
+                boolean compressed = false;
+                String[] options = line.substring(line.indexOf(")") + 1).trim().split("\\s+");
+                for (int i = 0; i < options.length; i++) {
+                    if (options[i].equalsIgnoreCase("pagesize")) {
+                        pageSize = Integer.parseInt(options[++i]);
+                    } else if (options[i].equalsIgnoreCase("compressed")) {
+                        compressed = true;
+                    } else if (options[i].length() > 0) {
+                        System.out.println("Unknown table option " + options[i]);
+                        System.exit(0);
+                    }
+                }
+                File dataFile = new File(baseFolder+"/"+name + ".dat");
+                HeapFile tabHf = compressed ? new CompressedHeapFile(dataFile, t, pageSize)
+                        : new HeapFile(dataFile, t, pageSize);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
         }
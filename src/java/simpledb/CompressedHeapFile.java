@@ -0,0 +1,210 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * CompressedHeapFile is a {@link HeapFile} whose pages are compressed on
+ * disk with {@link LzCodec}. Pages of padded string fields and of empty slots
+ * are mostly zeros, so the file is several times smaller than the pages it
+ * holds, and scanning it cold reads that much less.
+ * <p>
+ * Each page is stored in a slot of its own size, which the
+ * {@link PageOffsetMap} next to the data file records. A page is written to
+ * free space and the map then pointed at it, so a crash between the two
+ * leaves the page as it was; the slot it leaves is reused. Pages that do not
+ * compress are stored as they are. A data file that exists without a map,
+ * such as one written by {@link HeapFileEncoder}, is taken to hold
+ * uncompressed pages; they are compressed as they are written back.
+ * <p>
+ * Pages are read and written whole as for a HeapFile, so the buffer pool
+ * and the log see the same pages as for an uncompressed table.
+ */
+public class CompressedHeapFile extends HeapFile {
+
+	private final PageOffsetMap offsets;
+
+	/**
+	 * Constructs a compressed heap file backed by the specified file, with
+	 * pages of pageSize bytes once decompressed.
+	 *
+	 * @param f
+	 *            the file that stores the on-disk backing store for this heap
+	 *            file.
+	 * @param pageSize the number of bytes per page
+	 */
+	public CompressedHeapFile(File f, TupleDesc td, int pageSize) {
+		super(f, td, pageSize);
+		try {
+			this.offsets = new PageOffsetMap(new File(f.getPath() + ".pmap"));
+			if (!offsets.getFile().exists() && f.length() > 0)
+				offsets.setContiguous((int) ((f.length() + pageSize - 1) / pageSize), pageSize);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to load the page map of " + f + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Constructs a compressed heap file backed by the specified file, with
+	 * pages of the default page size.
+	 */
+	public CompressedHeapFile(File f, TupleDesc td) {
+		this(f, td, BufferPool.getPageSize());
+	}
+
+	/**
+	 * Returns the map of where the pages of this file are stored.
+	 */
+	public PageOffsetMap getPageOffsetMap() {
+		return this.offsets;
+	}
+
+	// see DbFile.java for javadocs
+	public Page readPage(PageId pid) {
+		int pgNo = pid.getPageNumber();
+		long offset;
+		int length;
+		synchronized (offsets) {
+			if (pgNo >= offsets.size())
+				throw new RuntimeException("Page " + pgNo + " is past the end of " + getFile());
+			offset = offsets.getOffset(pgNo);
+			length = offsets.getLength(pgNo);
+		}
+		byte[] data = new byte[length];
+		try {
+			RandomAccessFile raf = new RandomAccessFile(getFile(), "r");
+			try {
+				raf.seek(offset);
+				raf.readFully(data);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to read page " + pgNo + " of " + getFile() + ": "
+					+ e.getMessage());
+		}
+		return decode(pgNo, data, 0, length);
+	}
+
+	/**
+	 * Reads count consecutive pages. Pages written one after the other are
+	 * stored one after the other, so when the run is not much larger than
+	 * the pages are on disk it is read with a single read, else page by page.
+	 *
+	 * @see HeapFile#readPages
+	 */
+	public HeapPage[] readPages(int pgNo, int count) {
+		long first = Long.MAX_VALUE;
+		long last = 0;
+		long[] starts = new long[count];
+		int[] lengths = new int[count];
+		synchronized (offsets) {
+			if (pgNo + count > offsets.size())
+				throw new RuntimeException("Page " + (pgNo + count - 1) + " is past the end of "
+						+ getFile());
+			for (int i = 0; i < count; i++) {
+				starts[i] = offsets.getOffset(pgNo + i);
+				lengths[i] = offsets.getLength(pgNo + i);
+				if (lengths[i] > 0) {
+					first = Math.min(first, starts[i]);
+					last = Math.max(last, starts[i] + lengths[i]);
+				}
+			}
+		}
+		HeapPage[] pages = new HeapPage[count];
+		if (first == Long.MAX_VALUE || last - first > (long) count * getPageSize()) {
+			for (int i = 0; i < count; i++)
+				pages[i] = (HeapPage) readPage(new HeapPageId(getId(), pgNo + i));
+			return pages;
+		}
+		byte[] data = new byte[(int) (last - first)];
+		try {
+			RandomAccessFile raf = new RandomAccessFile(getFile(), "r");
+			try {
+				raf.seek(first);
+				raf.readFully(data);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to read pages " + pgNo + " to "
+					+ (pgNo + count - 1) + " of " + getFile() + ": " + e.getMessage());
+		}
+		for (int i = 0; i < count; i++)
+			pages[i] = decode(pgNo + i, data, (int) (starts[i] - first), lengths[i]);
+		return pages;
+	}
+
+	private HeapPage decode(int pgNo, byte[] data, int offset, int length) {
+		int pageSize = getPageSize();
+		byte[] page;
+		if (length == 0) {
+			page = HeapPage.createEmptyPageData(pageSize);
+		} else if (length == pageSize) {
+			page = Arrays.copyOfRange(data, offset, offset + length);
+		} else {
+			page = new byte[pageSize];
+			byte[] compressed = offset == 0 ? data : Arrays.copyOfRange(data, offset, offset + length);
+			try {
+				if (LzCodec.decompress(compressed, length, page) != pageSize)
+					throw new IllegalArgumentException("short page");
+			} catch (IllegalArgumentException e) {
+				throw new RuntimeException("Page " + pgNo + " of " + getFile() + " is corrupt: "
+						+ e.getMessage());
+			}
+		}
+		try {
+			return new HeapPage(new HeapPageId(getId(), pgNo), page);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to parse page " + pgNo + " of " + getFile() + ": "
+					+ e.getMessage());
+		}
+	}
+
+	// see DbFile.java for javadocs
+	public void writePage(Page page) throws IOException {
+		int pgNo = page.getId().getPageNumber();
+		byte[] data = page.getPageData();
+		byte[] compressed = new byte[LzCodec.maxCompressedLength(data.length)];
+		int length = LzCodec.compress(data, data.length, compressed);
+		if (length >= data.length) {
+			compressed = data;
+			length = data.length;
+		}
+
+		long offset = offsets.allocate(length);
+		boolean written = false;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(getFile(), "rw");
+			try {
+				raf.seek(offset);
+				raf.write(compressed, 0, length);
+			} finally {
+				raf.close();
+			}
+			written = true;
+		} finally {
+			if (!written)
+				offsets.release(offset, length);
+		}
+		// only once the data is on disk, so that the map never points at
+		// a page that was not written whole
+		offsets.set(pgNo, offset, length);
+	}
+
+	/**
+	 * Returns the number of pages in this file, which is the number of pages
+	 * its map records.
+	 */
+	public int numPages() {
+		return offsets.size();
+	}
+
+	/**
+	 * Adds an empty page to the map. Nothing is written to the data file
+	 * until the page is.
+	 */
+	protected int allocatePage() throws IOException {
+		return offsets.add();
+	}
+}
@@ -0,0 +1,161 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * CompressedPageCache is the second tier of the {@link BufferPool}: it keeps
+ * clean heap file pages evicted from the pool, compressed with
+ * {@link LzCodec}, so that requesting one of them again costs decompressing
+ * it rather than reading it from disk.
+ * <p>
+ * The compressed pages are stored in a fixed amount of direct memory, cut
+ * into blocks of {@link #BLOCK_SIZE} bytes; a page takes as many blocks as it
+ * compresses to, wherever they are, so the memory does not fragment. When
+ * the blocks run out, the least recently cached pages are dropped. A page
+ * leaves the cache when it is requested again, so that it is held by one
+ * tier only.
+ * <p>
+ * Pages only enter and leave the cache on misses of the pool, which read or
+ * write pages anyway, so the cache is guarded by a single lock.
+ */
+class CompressedPageCache {
+
+    /** The unit the memory of the cache is allocated in. */
+    static final int BLOCK_SIZE = 256;
+
+    /** A cached page: its compressed length and the blocks holding it. */
+    private static class Entry {
+        final int length;
+        final int pageSize;
+        final int[] blocks;
+
+        Entry(int length, int pageSize, int[] blocks) {
+            this.length = length;
+            this.pageSize = pageSize;
+            this.blocks = blocks;
+        }
+    }
+
+    private final ByteBuffer memory;
+    // numbers of the free blocks, a stack of the first freeBlocks of them
+    private final int[] free;
+    private int freeBlocks;
+    // in the order the pages were cached in
+    private final LinkedHashMap<PageId, Entry> entries = new LinkedHashMap<>();
+    private long pageBytes;
+    private long compressedBytes;
+
+    /**
+     * @param capacity the number of bytes of direct memory the cache holds
+     *        compressed pages in
+     */
+    CompressedPageCache(long capacity) {
+        int blocks = (int) Math.min(capacity / BLOCK_SIZE, Integer.MAX_VALUE / BLOCK_SIZE);
+        this.memory = ByteBuffer.allocateDirect(blocks * BLOCK_SIZE);
+        this.free = new int[blocks];
+        for (int i = 0; i < blocks; i++)
+            free[i] = blocks - 1 - i;
+        this.freeBlocks = blocks;
+    }
+
+    /**
+     * @return the number of bytes of direct memory of the cache
+     */
+    long getCapacity() {
+        return memory.capacity();
+    }
+
+    /**
+     * Caches the data of a clean page, replacing the version of it that is
+     * cached, if any, and dropping the least recently cached pages if there
+     * is no room for it.
+     *
+     * @param pid the ID of the page
+     * @param data the page data, as written to disk
+     */
+    void put(PageId pid, byte[] data) {
+        byte[] compressed = new byte[LzCodec.maxCompressedLength(data.length)];
+        int length = LzCodec.compress(data, data.length, compressed);
+        int needed = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        synchronized (this) {
+            drop(entries.remove(pid));
+            if (needed > free.length)
+                return;
+            Iterator<Entry> oldest = entries.values().iterator();
+            while (freeBlocks < needed) {
+                Entry e = oldest.next();
+                oldest.remove();
+                drop(e);
+            }
+            ByteBuffer view = memory.duplicate();
+            int[] blocks = new int[needed];
+            for (int i = 0; i < needed; i++) {
+                blocks[i] = free[--freeBlocks];
+                int offset = i * BLOCK_SIZE;
+                view.position(blocks[i] * BLOCK_SIZE);
+                view.put(compressed, offset, Math.min(BLOCK_SIZE, length - offset));
+            }
+            entries.put(pid, new Entry(length, data.length, blocks));
+            pageBytes += data.length;
+            compressedBytes += length;
+        }
+    }
+
+    /**
+     * Takes page pid out of the cache.
+     *
+     * @return the page data, or null if the page is not cached
+     */
+    byte[] remove(PageId pid) {
+        byte[] compressed;
+        Entry e;
+        synchronized (this) {
+            e = entries.remove(pid);
+            if (e == null)
+                return null;
+            compressed = new byte[e.length];
+            ByteBuffer view = memory.duplicate();
+            for (int i = 0; i < e.blocks.length; i++) {
+                int offset = i * BLOCK_SIZE;
+                view.position(e.blocks[i] * BLOCK_SIZE);
+                view.get(compressed, offset, Math.min(BLOCK_SIZE, e.length - offset));
+            }
+            drop(e);
+        }
+        byte[] data = new byte[e.pageSize];
+        LzCodec.decompress(compressed, compressed.length, data);
+        return data;
+    }
+
+    /**
+     * Drops page pid, whose data on disk changed, if it is cached.
+     */
+    synchronized void discard(PageId pid) {
+        drop(entries.remove(pid));
+    }
+
+    private void drop(Entry e) {
+        if (e == null)
+            return;
+        for (int block : e.blocks)
+            free[freeBlocks++] = block;
+        pageBytes -= e.pageSize;
+        compressedBytes -= e.length;
+    }
+
+    /**
+     * @return the number of pages cached
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the size of the pages cached over their compressed size
+     */
+    synchronized double getCompressionRatio() {
+        return compressedBytes == 0 ? 0 : (double) pageBytes / compressedBytes;
+    }
+}
@@ -43,6 +43,25 @@ public interface DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts tuples from the iterator to the file on behalf of transaction,
+     * as a batch. The file may stop before the iterator is exhausted, e.g.
+     * once a page is full, so that the caller can mark the modified pages
+     * dirty before more are modified; the caller should call again while
+     * the iterator has tuples left.
+     * This method will acquire a lock on the affected pages of the file, and
+     * may block until the lock can be acquired.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add.  Each inserted tuple should be updated
+     *          to reflect that it is now stored in this file.
+     * @return An ArrayList contain the pages that were modified
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    public ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException;
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -88,4 +107,11 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Returns the number of bytes per page of this DbFile, which the layout
+     * of its pages is computed from.
+     * @return the page size of this DbFile.
+     */
+    public int getPageSize();
 }
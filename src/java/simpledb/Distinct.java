@@ -0,0 +1,366 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Distinct is an operator that eliminates duplicates, for SELECT DISTINCT
+ * and aggregates over DISTINCT values.
+ * <p>
+ * Tuples are compared on a set of key fields, and the first tuple of each
+ * key is returned as soon as it is read, so the operator streams. The keys
+ * seen so far are kept in a hash set bounded by the distinct memory budget.
+ * Once the set is full, tuples whose key is in it are still dropped right
+ * away, but tuples of new keys are hash partitioned into spill files; when
+ * the child is exhausted every partition is deduplicated on its own by a
+ * new Distinct, recursively spilling again if needed.
+ */
+public class Distinct extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of bytes of keys a Distinct keeps in memory. */
+    public static final long DEFAULT_DISTINCT_MEMORY = 16L * 1024 * 1024;
+
+    /** Number of spill partitions created when the set overflows. */
+    static final int NUM_PARTITIONS = 16;
+
+    /** Beyond this recursion depth the memory budget is ignored. */
+    private static final int MAX_LEVEL = 4;
+
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private static long distinctMemory = DEFAULT_DISTINCT_MEMORY;
+
+    private OpIterator child;
+    private final int[] keyFields;
+    private final long memoryBudget;
+    private final int level;
+    private final int maxKeys;
+
+    private transient HashSet<Key> seen;
+    private transient File[] partitionFiles;
+    private transient DataOutputStream[] partitions;
+    // the partition being deduplicated once the child is exhausted
+    private transient int nextPartition;
+    private transient Distinct sub;
+    private transient boolean spilled;
+
+    /**
+     * Creates a Distinct returning each distinct tuple of child once.
+     *
+     * @param child
+     *            the tuples to deduplicate
+     */
+    public Distinct(OpIterator child) {
+        this(child, allFields(child.getTupleDesc()));
+    }
+
+    /**
+     * Creates a Distinct returning the first tuple of child for each
+     * distinct combination of the key fields.
+     *
+     * @param child
+     *            the tuples to deduplicate
+     * @param keyFields
+     *            the indexes of the fields that make up the key
+     */
+    public Distinct(OpIterator child, int[] keyFields) {
+        this(child, keyFields, distinctMemory, 0);
+    }
+
+    Distinct(OpIterator child, int[] keyFields, long memoryBudget, int level) {
+        if (keyFields.length == 0)
+            throw new IllegalArgumentException("need at least one key field");
+        this.child = child;
+        this.keyFields = keyFields.clone();
+        this.memoryBudget = memoryBudget;
+        this.level = level;
+        TupleDesc td = child.getTupleDesc();
+        int keyBytes = 64; // set entry, key object and field array
+        for (int f : keyFields)
+            keyBytes += td.getFieldType(f) == Type.INT_TYPE ? 24 : 48 + Type.STRING_LEN;
+        this.maxKeys = level >= MAX_LEVEL ? Integer.MAX_VALUE
+                : (int) Math.max(16, Math.min(Integer.MAX_VALUE, memoryBudget / keyBytes));
+    }
+
+    public static long getDistinctMemory() {
+        return distinctMemory;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setDistinctMemory(long bytes) {
+        Distinct.distinctMemory = bytes;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetDistinctMemory() {
+        Distinct.distinctMemory = DEFAULT_DISTINCT_MEMORY;
+    }
+
+    private static int[] allFields(TupleDesc td) {
+        int[] fields = new int[td.numFields()];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = i;
+        return fields;
+    }
+
+    /**
+     * @return the indexes of the key fields
+     */
+    public int[] getKeyFields() {
+        return keyFields.clone();
+    }
+
+    /**
+     * @return the name of the i-th key field, for query plans
+     */
+    public String keyFieldName(int i) {
+        return child.getTupleDesc().getFieldName(keyFields[i]);
+    }
+
+    /**
+     * @return true if tuples of new keys were spilled to disk since the
+     *         operator was opened or rewound
+     */
+    public boolean spilled() {
+        return spilled;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        seen = new HashSet<Key>();
+        spilled = false;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        releasePartitions();
+        seen = null;
+    }
+
+    /**
+     * Deduplicates the child again from its start.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        releasePartitions();
+        seen.clear();
+        spilled = false;
+        child.rewind();
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            Key k = new Key(t);
+            if (seen.contains(k))
+                continue;
+            if (seen.size() < maxKeys) {
+                seen.add(k);
+                return t;
+            }
+            spill(t, k.hash);
+        }
+        // every key of a partition is new, but keys may repeat within it
+        while (partitionFiles != null) {
+            if (sub != null) {
+                if (sub.hasNext())
+                    return sub.next();
+                sub.close();
+                sub = null;
+                partitionFiles[nextPartition - 1].delete();
+            }
+            if (nextPartition == NUM_PARTITIONS) {
+                releasePartitions();
+                break;
+            }
+            if (nextPartition == 0)
+                closePartitionStreams();
+            File f = partitionFiles[nextPartition++];
+            if (f == null)
+                continue;
+            sub = new Distinct(new SpillReader(f, child.getTupleDesc()), keyFields,
+                    memoryBudget, level + 1);
+            sub.open();
+        }
+        return null;
+    }
+
+    private void spill(Tuple t, int h) throws DbException {
+        try {
+            if (partitionFiles == null) {
+                partitionFiles = new File[NUM_PARTITIONS];
+                partitions = new DataOutputStream[NUM_PARTITIONS];
+                nextPartition = 0;
+                spilled = true;
+            }
+            // the set uses the low bits of the hash, so partition on the high ones
+            int p = (h >>> 28) & (NUM_PARTITIONS - 1);
+            if (partitions[p] == null) {
+                File f = File.createTempFile("simpledb-distinct", ".part");
+                f.deleteOnExit();
+                partitionFiles[p] = f;
+                partitions[p] = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(f), IO_BUFFER_SIZE));
+            }
+            for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+                TupleCodec.writeField(partitions[p], t.getField(i));
+        } catch (IOException e) {
+            throw new DbException("failed to spill distinct tuples: " + e.getMessage());
+        }
+    }
+
+    private void closePartitionStreams() throws DbException {
+        if (partitions == null)
+            return;
+        try {
+            for (DataOutputStream dos : partitions) {
+                if (dos != null)
+                    dos.close();
+            }
+        } catch (IOException e) {
+            throw new DbException("failed to spill distinct tuples: " + e.getMessage());
+        }
+        partitions = null;
+    }
+
+    private void releasePartitions() {
+        if (sub != null) {
+            sub.close();
+            sub = null;
+        }
+        if (partitions != null) {
+            for (DataOutputStream dos : partitions) {
+                try {
+                    if (dos != null)
+                        dos.close();
+                } catch (IOException e) {
+                    // the file is deleted anyway
+                }
+            }
+            partitions = null;
+        }
+        if (partitionFiles != null) {
+            for (File f : partitionFiles) {
+                if (f != null)
+                    f.delete();
+            }
+            partitionFiles = null;
+        }
+        nextPartition = 0;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+    /** The key fields of a tuple, hashed with a seed per recursion level. */
+    private final class Key {
+        final Field[] fields;
+        final int hash;
+
+        Key(Tuple t) {
+            fields = new Field[keyFields.length];
+            int h = level * 0x9E3779B9;
+            for (int i = 0; i < keyFields.length; i++) {
+                fields[i] = t.getField(keyFields[i]);
+                h = h * 31 + fields[i].hashCode();
+            }
+            // murmur3 finalizer, so that the low bits used by the set and
+            // the high bits used for partitioning are both well mixed
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).hash == hash
+                    && Arrays.equals(fields, ((Key) o).fields);
+        }
+    }
+
+    /** Reads back the tuples spilled to a partition file. */
+    private static class SpillReader extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final File file;
+        private final TupleCodec codec;
+        private transient DataInputStream dis;
+
+        SpillReader(File file, TupleDesc td) {
+            this.file = file;
+            this.codec = new TupleCodec(td);
+        }
+
+        public TupleDesc getTupleDesc() {
+            return codec.getTupleDesc();
+        }
+
+        public void open() throws DbException, NoSuchElementException,
+                TransactionAbortedException {
+            try {
+                dis = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file), IO_BUFFER_SIZE));
+            } catch (IOException e) {
+                throw new DbException("failed to read spilled tuples: " + e.getMessage());
+            }
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            try {
+                if (dis != null)
+                    dis.close();
+            } catch (IOException e) {
+                // nothing left to read
+            }
+            dis = null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        protected Tuple fetchNext() throws DbException {
+            try {
+                return codec.read(dis);
+            } catch (IOException e) {
+                throw new DbException("failed to read spilled tuples: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[0];
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+        }
+    }
+}
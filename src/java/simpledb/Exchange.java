@@ -0,0 +1,412 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Exchange is a Volcano-style exchange operator: it runs each of its producer
+ * subplans on a thread of its own and passes their tuples to one or more
+ * consumers through bounded queues, so that the rest of the plan needs no
+ * knowledge of the parallelism.
+ * <p>
+ * There are three kinds of exchange:
+ * <ul>
+ * <li>a <em>gather</em> merges the tuples of all producers into a single
+ * consumer;</li>
+ * <li>a <em>repartition</em> sends every tuple to one of several consumers,
+ * chosen by the hash of some of its fields, so that tuples that agree on
+ * those fields meet at the same consumer;</li>
+ * <li>a <em>broadcast</em> sends every tuple to every consumer.</li>
+ * </ul>
+ * Every consumer is an Exchange of its own, and all consumers of a
+ * repartition or broadcast share the same producers. Those consumers must be
+ * read concurrently, typically each by a producer of a gather, because a
+ * producer blocks once the queue of a consumer that is not being read is
+ * full. Tuples arrive in no particular order.
+ */
+public class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Kind {
+        GATHER, REPARTITION, BROADCAST
+    }
+
+    /** Number of tuples buffered for each consumer. */
+    public static final int QUEUE_CAPACITY = 1024;
+
+    /** Smallest number of pages the planner gives to a partitioned scan. */
+    public static final int MIN_PAGES_PER_PARTITION = 16;
+
+    private static int parallelism = Integer.getInteger("simpledb.Exchange.parallelism", 1);
+
+    private static final ExecutorService workers = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-exchange-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    // marks the end of the tuples of one producer
+    private static final Tuple END = new Tuple(new TupleDesc(new Type[] { Type.INT_TYPE }));
+
+    private final Router router;
+    private final int consumer;
+
+    /**
+     * Creates a gather exchange, which returns the tuples of all producers.
+     *
+     * @param producers
+     *            the subplans to run in parallel; they must all have the
+     *            same TupleDesc
+     */
+    public Exchange(OpIterator[] producers) {
+        this(new Router(Kind.GATHER, producers, new int[0], 1), 0);
+    }
+
+    private Exchange(Router router, int consumer) {
+        this.router = router;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Creates the consumers of a repartition exchange.
+     *
+     * @param producers
+     *            the subplans to run in parallel
+     * @param fields
+     *            the fields whose hash selects the consumer of a tuple
+     * @param consumers
+     *            the number of consumers
+     * @return the consumers, each returning the tuples routed to it
+     */
+    public static Exchange[] repartition(OpIterator[] producers, int[] fields, int consumers) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("need at least one field to partition on");
+        return consumers(new Router(Kind.REPARTITION, producers, fields, consumers));
+    }
+
+    /**
+     * Creates the consumers of a broadcast exchange.
+     *
+     * @param producers
+     *            the subplans to run in parallel
+     * @param consumers
+     *            the number of consumers
+     * @return the consumers, each returning all tuples of all producers
+     */
+    public static Exchange[] broadcast(OpIterator[] producers, int consumers) {
+        return consumers(new Router(Kind.BROADCAST, producers, new int[0], consumers));
+    }
+
+    private static Exchange[] consumers(Router router) {
+        Exchange[] result = new Exchange[router.queues.length];
+        for (int c = 0; c < result.length; c++)
+            result[c] = new Exchange(router, c);
+        return result;
+    }
+
+    /**
+     * @return the number of worker threads the planner splits a query
+     *         fragment over; set with the system property
+     *         simpledb.Exchange.parallelism, 1 by default, so that queries
+     *         are not split, and return their tuples in the same order from
+     *         run to run, unless parallelism is asked for
+     */
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setParallelism(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        Exchange.parallelism = threads;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetParallelism() {
+        Exchange.parallelism = Integer.getInteger("simpledb.Exchange.parallelism", 1);
+    }
+
+    /**
+     * Splits a scan of a table into partitioned scans of consecutive page
+     * ranges, one per worker thread.
+     *
+     * @return the partitioned scans, or null if the table is not stored in a
+     *         {@link HeapFile} or is too small to be worth splitting
+     */
+    public static SeqScan[] partitionScan(TransactionId tid, int tableId, String alias) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (parallelism < 2 || !(file instanceof HeapFile))
+            return null;
+        int pages = ((HeapFile) file).numPages();
+        int parts = Math.min(parallelism, pages / MIN_PAGES_PER_PARTITION);
+        if (parts < 2)
+            return null;
+        SeqScan[] scans = new SeqScan[parts];
+        for (int i = 0; i < parts; i++) {
+            long start = (long) pages * i / parts;
+            long end = (long) pages * (i + 1) / parts;
+            scans[i] = new SeqScan(tid, tableId, alias, (int) start,
+                    i == parts - 1 ? -1 : (int) end);
+        }
+        return scans;
+    }
+
+    public Kind getKind() {
+        return router.kind;
+    }
+
+    /**
+     * @return the index of this consumer among the consumers of the exchange
+     */
+    public int getConsumer() {
+        return consumer;
+    }
+
+    public int numConsumers() {
+        return router.queues.length;
+    }
+
+    /**
+     * @return the fields a repartition exchange hashes on
+     */
+    public int[] getPartitionFields() {
+        return router.fields.clone();
+    }
+
+    /**
+     * @return a short description of the exchange for query plans
+     */
+    public String getName() {
+        switch (router.kind) {
+        case GATHER:
+            return "gather(" + router.producers.length + ")";
+        case REPARTITION:
+            StringBuilder sb = new StringBuilder("repartition(");
+            TupleDesc td = getTupleDesc();
+            for (int i = 0; i < router.fields.length; i++) {
+                if (i > 0)
+                    sb.append(",");
+                sb.append(td.getFieldName(router.fields[i]));
+            }
+            return sb.append(")->").append(router.queues.length).toString();
+        default:
+            return "broadcast->" + router.queues.length;
+        }
+    }
+
+    public TupleDesc getTupleDesc() {
+        return router.producers[0].getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        router.open(consumer);
+        super.open();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        return router.take(consumer);
+    }
+
+    /**
+     * Restarts the producers. Only a gather can be rewound, since the
+     * consumers of other exchanges share their producers.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (router.kind != Kind.GATHER)
+            throw new DbException("only a gather exchange can be rewound");
+        router.stop();
+        router.open(consumer);
+    }
+
+    public void close() {
+        super.close();
+        router.close(consumer);
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return router.producers.clone();
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        if (children.length != router.producers.length)
+            throw new IllegalArgumentException("an exchange cannot change its number of producers");
+        router.producers = children.clone();
+    }
+
+    /**
+     * The producers and queues shared by all consumers of an exchange.
+     */
+    private static class Router implements java.io.Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final Kind kind;
+        OpIterator[] producers;
+        final int[] fields;
+        final ArrayBlockingQueue<Tuple>[] queues;
+        // end markers each consumer has received so far
+        final int[] ended;
+        // 1 once a consumer has been closed; producers stop sending to it
+        transient AtomicIntegerArray closed;
+        transient AtomicInteger openConsumers;
+        transient ArrayList<Future<?>> running;
+        transient volatile Throwable failure;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Router(Kind kind, OpIterator[] producers, int[] fields, int consumers) {
+            if (producers.length == 0 || consumers < 1)
+                throw new IllegalArgumentException("an exchange needs producers and consumers");
+            this.kind = kind;
+            this.producers = producers.clone();
+            this.fields = fields.clone();
+            this.queues = new ArrayBlockingQueue[consumers];
+            for (int c = 0; c < consumers; c++)
+                queues[c] = new ArrayBlockingQueue<Tuple>(QUEUE_CAPACITY);
+            this.ended = new int[consumers];
+        }
+
+        /** Starts the producers when the first consumer is opened. */
+        synchronized void open(int consumer) {
+            ended[consumer] = 0;
+            if (running != null)
+                return;
+            failure = null;
+            closed = new AtomicIntegerArray(queues.length);
+            openConsumers = new AtomicInteger(queues.length);
+            for (ArrayBlockingQueue<Tuple> q : queues)
+                q.clear();
+            Arrays.fill(ended, 0);
+            running = new ArrayList<Future<?>>(producers.length);
+            for (final OpIterator p : producers) {
+                running.add(workers.submit(new Runnable() {
+                    public void run() {
+                        produce(p);
+                    }
+                }));
+            }
+        }
+
+        private void produce(OpIterator p) {
+            try {
+                p.open();
+                try {
+                    while (openConsumers.get() > 0 && p.hasNext()) {
+                        Tuple t = p.next();
+                        switch (kind) {
+                        case REPARTITION:
+                            send(partition(t), t);
+                            break;
+                        case BROADCAST:
+                            for (int c = 0; c < queues.length; c++)
+                                send(c, t);
+                            break;
+                        default:
+                            send(0, t);
+                            break;
+                        }
+                    }
+                } finally {
+                    p.close();
+                }
+            } catch (InterruptedException e) {
+                // stopped by the consumers
+            } catch (Throwable e) {
+                failure = e;
+            }
+            try {
+                for (int c = 0; c < queues.length; c++)
+                    send(c, END);
+            } catch (InterruptedException e) {
+                // stopped by the consumers
+            }
+        }
+
+        private int partition(Tuple t) {
+            int h = 0;
+            for (int f : fields)
+                h = h * 31 + t.getField(f).hashCode();
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            return (h & Integer.MAX_VALUE) % queues.length;
+        }
+
+        private void send(int consumer, Tuple t) throws InterruptedException {
+            while (closed.get(consumer) == 0) {
+                if (queues[consumer].offer(t, 10, TimeUnit.MILLISECONDS))
+                    return;
+            }
+        }
+
+        Tuple take(int consumer) throws DbException, TransactionAbortedException {
+            ArrayBlockingQueue<Tuple> q = queues[consumer];
+            while (ended[consumer] < producers.length) {
+                Tuple t;
+                try {
+                    t = q.take();
+                } catch (InterruptedException e) {
+                    throw new DbException("interrupted while waiting for tuples");
+                }
+                if (t != END)
+                    return t;
+                ended[consumer]++;
+                checkFailure();
+            }
+            checkFailure();
+            return null;
+        }
+
+        private void checkFailure() throws DbException, TransactionAbortedException {
+            Throwable e = failure;
+            if (e == null)
+                return;
+            if (e instanceof DbException)
+                throw (DbException) e;
+            if (e instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) e;
+            if (e instanceof RuntimeException)
+                throw (RuntimeException) e;
+            if (e instanceof Error)
+                throw (Error) e;
+            throw new DbException("exchange producer failed: " + e);
+        }
+
+        synchronized void close(int consumer) {
+            if (running == null || closed.getAndSet(consumer, 1) == 1)
+                return;
+            queues[consumer].clear();
+            if (openConsumers.decrementAndGet() == 0)
+                stop();
+        }
+
+        /** Stops the producers and waits for them to close their subplans. */
+        synchronized void stop() {
+            if (running == null)
+                return;
+            for (int c = 0; c < queues.length; c++)
+                closed.set(c, 1);
+            openConsumers.set(0);
+            for (Future<?> f : running) {
+                try {
+                    f.get();
+                } catch (Exception e) {
+                    // produce() does not throw
+                }
+            }
+            running = null;
+            for (ArrayBlockingQueue<Tuple> q : queues)
+                q.clear();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ExternalSorter sorts an arbitrary number of tuples within a bounded
+ * amount of memory.
+ * <p>
+ * Tuples are buffered until the memory budget is reached; the buffer is then
+ * sorted and spilled to a temporary run file using the compact
+ * {@link TupleCodec} format. Once all input has been added, the runs are
+ * combined with a k-way merge driven by a heap. If there are more runs than
+ * {@link #MAX_FAN_IN}, intermediate merge passes reduce the number of runs
+ * first so that only a bounded number of files is open at once.
+ * <p>
+ * If the input fits in memory, no file is ever written and the sorted buffer
+ * is returned directly.
+ */
+public class ExternalSorter {
+
+    /** Maximum number of runs merged in a single pass. */
+    public static final int MAX_FAN_IN = 64;
+
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private final TupleCodec codec;
+    private final Comparator<Tuple> comparator;
+    private final long memoryBudget;
+    private final int tupleMemory;
+
+    private ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+    private final ArrayList<File> runs = new ArrayList<File>();
+    private boolean finished = false;
+    private MergeIterator openMerge = null;
+
+    /**
+     * @param td the schema of the tuples to sort
+     * @param comparator the sort order
+     * @param memoryBudget approximate number of bytes of tuples to hold in
+     *            memory before spilling a run to disk
+     */
+    public ExternalSorter(TupleDesc td, Comparator<Tuple> comparator, long memoryBudget) {
+        this.codec = new TupleCodec(td);
+        this.comparator = comparator;
+        this.memoryBudget = memoryBudget;
+        this.tupleMemory = TupleCodec.estimateTupleMemory(td);
+    }
+
+    /**
+     * Add a tuple to the sort input; may spill a run to disk.
+     */
+    public void add(Tuple t) throws DbException {
+        if (finished)
+            throw new IllegalStateException("sorter already finished");
+        buffer.add(t);
+        if ((long) buffer.size() * tupleMemory >= memoryBudget)
+            spill();
+    }
+
+    /**
+     * Signal the end of the input. Must be called before {@link #iterator}.
+     */
+    public void finish() throws DbException {
+        if (finished)
+            return;
+        finished = true;
+        if (runs.isEmpty()) {
+            Collections.sort(buffer, comparator);
+            return;
+        }
+        if (!buffer.isEmpty())
+            spill();
+        buffer = null;
+        try {
+            // merge adjacent groups so runs stay in input order
+            while (runs.size() > MAX_FAN_IN) {
+                ArrayList<File> merged = new ArrayList<File>();
+                for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                    List<File> group = runs.subList(i, Math.min(i + MAX_FAN_IN, runs.size()));
+                    merged.add(group.size() == 1 ? group.get(0) : mergeToFile(group));
+                }
+                runs.clear();
+                runs.addAll(merged);
+            }
+        } catch (IOException e) {
+            throw new DbException("failed to merge sort runs: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of runs on disk; 0 if the input fit in memory
+     */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Return an iterator over the sorted tuples. May be called repeatedly;
+     * each call replays the sorted output from the beginning without
+     * sorting again, and invalidates any iterator returned earlier.
+     */
+    public Iterator<Tuple> iterator() throws DbException {
+        if (!finished)
+            throw new IllegalStateException("finish() must be called first");
+        if (runs.isEmpty())
+            return buffer.iterator();
+        try {
+            closeOpenMerge();
+            openMerge = new MergeIterator(runs);
+            return openMerge;
+        } catch (IOException e) {
+            throw new DbException("failed to open sort runs: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Release the memory and delete the files used by this sorter.
+     */
+    public void close() {
+        buffer = null;
+        try {
+            closeOpenMerge();
+        } catch (IOException e) {
+            // the files are deleted below anyway
+        }
+        for (File f : runs)
+            f.delete();
+        runs.clear();
+    }
+
+    private void closeOpenMerge() throws IOException {
+        if (openMerge != null) {
+            openMerge.close();
+            openMerge = null;
+        }
+    }
+
+    private void spill() throws DbException {
+        Collections.sort(buffer, comparator);
+        try {
+            File f = newRunFile();
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(f), IO_BUFFER_SIZE));
+            try {
+                for (Tuple t : buffer)
+                    codec.write(dos, t);
+            } finally {
+                dos.close();
+            }
+            runs.add(f);
+        } catch (IOException e) {
+            throw new DbException("failed to spill sort run: " + e.getMessage());
+        }
+        buffer = new ArrayList<Tuple>();
+    }
+
+    private File mergeToFile(List<File> group) throws IOException {
+        File f = newRunFile();
+        MergeIterator it = new MergeIterator(group);
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(f), IO_BUFFER_SIZE));
+        try {
+            while (it.hasNext())
+                codec.write(dos, it.next());
+        } finally {
+            dos.close();
+            it.close();
+        }
+        for (File g : group)
+            g.delete();
+        return f;
+    }
+
+    private static File newRunFile() throws IOException {
+        File f = File.createTempFile("simpledb-sort", ".run");
+        f.deleteOnExit();
+        return f;
+    }
+
+    /** A sorted run being read during a merge. */
+    private class RunReader {
+        final int index;
+        final DataInputStream dis;
+        Tuple head;
+
+        RunReader(int index, File f) throws IOException {
+            this.index = index;
+            this.dis = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(f), IO_BUFFER_SIZE));
+            advance();
+        }
+
+        void advance() throws IOException {
+            head = codec.read(dis);
+            if (head == null)
+                dis.close();
+        }
+    }
+
+    /**
+     * K-way merge over sorted run files. Ties are broken by run index, which
+     * keeps the sort stable since runs are produced in input order.
+     */
+    private class MergeIterator implements Iterator<Tuple> {
+        private final PriorityQueue<RunReader> heap;
+        private final ArrayList<RunReader> readers = new ArrayList<RunReader>();
+
+        MergeIterator(List<File> files) throws IOException {
+            heap = new PriorityQueue<RunReader>(Math.max(1, files.size()),
+                    new Comparator<RunReader>() {
+                        public int compare(RunReader a, RunReader b) {
+                            int c = comparator.compare(a.head, b.head);
+                            return c != 0 ? c : Integer.compare(a.index, b.index);
+                        }
+                    });
+            for (int i = 0; i < files.size(); i++) {
+                RunReader r = new RunReader(i, files.get(i));
+                readers.add(r);
+                if (r.head != null)
+                    heap.add(r);
+            }
+        }
+
+        public boolean hasNext() {
+            return !heap.isEmpty();
+        }
+
+        public Tuple next() {
+            RunReader r = heap.poll();
+            if (r == null)
+                throw new NoSuchElementException();
+            Tuple t = r.head;
+            try {
+                r.advance();
+            } catch (IOException e) {
+                throw new RuntimeException("failed to read sort run", e);
+            }
+            if (r.head != null)
+                heap.add(r);
+            return t;
+        }
+
+        void close() throws IOException {
+            for (RunReader r : readers)
+                r.dis.close();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A Frame is the slot of the {@link BufferPool} that caches one page.
+ * <p>
+ * The page is published through a volatile field, so a cache hit only reads
+ * it. Loading, flushing and evicting the page are done under the frame's
+ * lock, so only one thread ever reads a given page from disk. Threads pin
+ * the frame while they wait for or work with it, and pinned frames are not
+ * evicted. The contents of the page are protected by a separate latch,
+ * see {@link Latch}.
+ */
+class Frame {
+
+    final PageId pid;
+
+    /** The counters of the page's table. */
+    final BufferPoolMetrics.Counters counters;
+
+    /** The number of pages of the default size the page counts as. */
+    final int slots;
+
+    /** Guards loading, replacing, flushing and evicting the page. */
+    final ReentrantLock lock = new ReentrantLock();
+
+    /** Held shared while the page is read or written out, exclusive while it is modified. */
+    final StampedLock latch = new StampedLock();
+
+    /** Number of threads loading, flushing or latching the page. */
+    final AtomicInteger pins = new AtomicInteger();
+
+    /** The cached page, or null while it is being loaded. */
+    volatile Page page;
+
+    /** The buffer of the off-heap arena the page reads in place, or null. */
+    ByteBuffer buffer;
+
+    /** Set on every access and cleared by eviction, for a second chance. */
+    volatile boolean referenced;
+
+    /**
+     * Number of requests for the page while cached, how hot it is; racing
+     * increments may be lost, which does not matter for ranking pages.
+     */
+    int uses;
+
+    /** Set once the page was discarded, e.g. after a rollback. */
+    volatile boolean discarded;
+
+    Frame(PageId pid, BufferPoolMetrics.Counters counters, int slots) {
+        this.pid = pid;
+        this.counters = counters;
+        this.slots = slots;
+    }
+
+    void pin() {
+        pins.incrementAndGet();
+    }
+
+    void unpin() {
+        pins.decrementAndGet();
+    }
+
+    boolean isPinned() {
+        return pins.get() > 0;
+    }
+}
@@ -0,0 +1,129 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FrameArena hands out page-sized frames of direct memory, in which the
+ * {@link BufferPool} keeps the pages it caches when it runs off-heap.
+ * <p>
+ * Frames are carved out of slabs of direct memory allocated as the pool
+ * fills, and are recycled rather than freed, so the memory the pool uses
+ * outside of the heap grows up to its size and then stays put, until the
+ * pool shrinks and the slabs none of whose frames are used are dropped.
+ * A HeapPage
+ * read into a frame interprets it in place; the Java heap only holds its
+ * header and the tuples that were decoded, so the garbage collector does
+ * not see the bulk of the cache.
+ */
+class FrameArena {
+
+    /** Bytes of direct memory allocated at a time. */
+    static final int SLAB_SIZE = 1024 * 1024;
+
+    private final int frameSize;
+    // a stack, so the most recently freed buffer, likely still in the
+    // processor's caches, is reused first
+    private final ConcurrentLinkedDeque<ByteBuffer> free = new ConcurrentLinkedDeque<>();
+    private final AtomicLong capacity = new AtomicLong();
+    // the slab each frame was carved out of, by identity
+    private final Map<ByteBuffer, ByteBuffer> slabs = new IdentityHashMap<>();
+
+    /**
+     * @param frameSize the size of a frame, which is the page size
+     */
+    FrameArena(int frameSize) {
+        this.frameSize = frameSize;
+    }
+
+    /**
+     * @return the size of the frames of the arena
+     */
+    int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * @return the number of bytes of direct memory allocated by the arena
+     */
+    long getCapacity() {
+        return capacity.get();
+    }
+
+    /**
+     * @return an unused frame, allocating a new slab if there is none
+     */
+    ByteBuffer allocate() {
+        while (true) {
+            ByteBuffer frame = free.pollFirst();
+            if (frame != null)
+                return frame;
+            grow();
+        }
+    }
+
+    /**
+     * Returns a frame to the arena; no page may read it anymore.
+     */
+    void free(ByteBuffer frame) {
+        frame.clear();
+        free.addFirst(frame);
+    }
+
+    /**
+     * Drops the slabs none of whose frames are in use, as long as the arena
+     * holds more than maxBytes bytes of direct memory; the garbage collector
+     * then frees their memory.
+     */
+    synchronized void trim(long maxBytes) {
+        if (capacity.get() <= maxBytes)
+            return;
+        ArrayList<ByteBuffer> frames = new ArrayList<>();
+        for (ByteBuffer frame = free.pollFirst(); frame != null; frame = free.pollFirst())
+            frames.add(frame);
+        Map<ByteBuffer, Integer> unused = new IdentityHashMap<>();
+        for (ByteBuffer frame : frames)
+            unused.merge(slabs.get(frame), 1, Integer::sum);
+        Set<ByteBuffer> dropped = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Map.Entry<ByteBuffer, Integer> e : unused.entrySet()) {
+            if (capacity.get() <= maxBytes)
+                break;
+            if (e.getValue() == framesPerSlab()) {
+                dropped.add(e.getKey());
+                capacity.addAndGet(-(long) framesPerSlab() * frameSize);
+            }
+        }
+        // the frames kept stay in the order they are reused in
+        for (ByteBuffer frame : frames) {
+            if (dropped.contains(slabs.get(frame)))
+                slabs.remove(frame);
+            else
+                free.addLast(frame);
+        }
+    }
+
+    private int framesPerSlab() {
+        return Math.max(1, SLAB_SIZE / frameSize);
+    }
+
+    private synchronized void grow() {
+        if (!free.isEmpty())
+            return; // another thread grew the arena meanwhile
+        int frames = framesPerSlab();
+        ByteBuffer slab = ByteBuffer.allocateDirect(frames * frameSize);
+        for (int i = 0; i < frames; i++) {
+            slab.limit((i + 1) * frameSize);
+            slab.position(i * frameSize);
+            ByteBuffer frame = slab.slice();
+            slabs.put(frame, slab);
+            free.add(frame);
+        }
+        capacity.addAndGet((long) frames * frameSize);
+    }
+}
@@ -0,0 +1,100 @@
+package simpledb;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records which pages of a {@link HeapFile} have free slots, so
+ * that inserts can reuse the space freed by deletes without reading candidate
+ * pages.
+ * <p>
+ * The map is stored next to the data file, one byte per page, nonzero when the
+ * page has room. Pages the file does not cover are assumed to be full. The map
+ * is only a hint: a page it reports must still be checked once it is locked,
+ * as the transaction that freed its space may have aborted, and space taken
+ * by a transaction that aborts is not given back. Nothing is written until a
+ * page changes state, so tables that are never deleted from get no map file.
+ */
+public class FreeSpaceMap {
+
+    private final File file;
+    private final BitSet free = new BitSet();
+
+    /**
+     * Loads the map stored in file, if it exists.
+     *
+     * @param file
+     *            the file the map is stored in
+     */
+    public FreeSpaceMap(File file) {
+        this.file = file;
+        if (!file.exists())
+            return;
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            try {
+                int length = (int) file.length();
+                for (int i = 0; i < length; i++) {
+                    if (dis.readByte() != 0)
+                        free.set(i);
+                }
+            } finally {
+                dis.close();
+            }
+        } catch (IOException e) {
+            // the map is a hint; without it the pages are assumed to be full
+            free.clear();
+        }
+    }
+
+    /**
+     * @return the file the map is stored in
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param from
+     *            the first page number to consider
+     * @param numPages
+     *            the number of pages in the heap file
+     * @return the lowest page number in [from, numPages) that has room, or -1
+     *         if there is none
+     */
+    public synchronized int nextFree(int from, int numPages) {
+        int pgNo = free.nextSetBit(from);
+        return pgNo >= 0 && pgNo < numPages ? pgNo : -1;
+    }
+
+    /**
+     * @return true if the map reports page pgNo to have room
+     */
+    public synchronized boolean isFree(int pgNo) {
+        return free.get(pgNo);
+    }
+
+    /**
+     * Records whether page pgNo has room, writing its byte of the map file if
+     * that changes it.
+     */
+    public synchronized void setFree(int pgNo, boolean hasRoom) throws IOException {
+        if (free.get(pgNo) == hasRoom)
+            return;
+        free.set(pgNo, hasRoom);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            if (pgNo > length) {
+                // pages the map did not cover yet are full
+                raf.seek(length);
+                raf.write(new byte[(int) (pgNo - length)]);
+            }
+            raf.seek(pgNo);
+            raf.write(hasRoom ? 1 : 0);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,676 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * HashAggregator computes any number of aggregates, grouped by any number of
+ * fields, in a single pass using a hash table specialized for the raw values
+ * of those fields.
+ * <p>
+ * Groups are numbered densely in order of first appearance. An
+ * open-addressing table maps a group key to its number, and the keys and
+ * accumulators are kept in parallel primitive arrays indexed by that number
+ * (int keys as <code>int</code>, sums, minima and maxima as
+ * <code>long</code>), so merging a tuple into an existing group does not
+ * allocate anything and sums do not overflow while they are being computed.
+ * AVG is kept as a sum and a count until the result is produced, so partial
+ * aggregates computed over disjoint inputs can be combined with
+ * {@link #merge}.
+ * <p>
+ * The number of groups held in memory is bounded by a memory budget. Once the
+ * table is full, groups that are already in it are still updated in place,
+ * but the partial state of new groups is hash partitioned into spill files.
+ * When the results are requested every partition is aggregated on its own by
+ * a new HashAggregator, recursively spilling again if needed.
+ */
+public class HashAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Number of spill partitions created when the table overflows. */
+    static final int NUM_PARTITIONS = 16;
+
+    /** Beyond this recursion depth the memory budget is ignored. */
+    private static final int MAX_LEVEL = 4;
+
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private final int[] gbfields;
+    private final Type[] gbtypes;
+    private final int[] afields;
+    private final Op[] ops;
+    private final long memoryBudget;
+    private final int level;
+    private final int maxGroups;
+    private final TupleDesc resultTd;
+
+    // group number + 1 per slot, 0 if the slot is empty
+    private int[] table;
+    private int numGroups = 0;
+    private int[] hashes;
+    private int[][] intKeys;
+    private String[][] stringKeys;
+    // ops.length accumulators per group, stored contiguously
+    private long[] values;
+    private long[] counts;
+
+    // spilled group states: the group fields, one long per aggregate and the
+    // count; a partition may have several files after merge()
+    private transient ArrayList<ArrayList<File>> partitionFiles;
+    private transient DataOutputStream[] partitions;
+
+    /**
+     * Aggregate constructor for a single aggregate
+     *
+     * @param td
+     *            the TupleDesc of the tuples to aggregate
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple;
+     *            empty if there is no grouping
+     * @param afield
+     *            the 0-based index of the aggregate field in the tuple
+     * @param what
+     *            the aggregation operator; only COUNT is supported over
+     *            string fields
+     * @param memoryBudget
+     *            approximate number of bytes the groups may use before tuples
+     *            of new groups are spilled to disk
+     * @throws IllegalArgumentException
+     *             if the aggregate is not supported for the type of afield
+     */
+    public HashAggregator(TupleDesc td, int[] gbfields, int afield, Op what, long memoryBudget) {
+        this(td, gbfields, new int[] { afield }, new Op[] { what }, memoryBudget, 0);
+    }
+
+    /**
+     * Aggregate constructor
+     *
+     * @param td
+     *            the TupleDesc of the tuples to aggregate
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple;
+     *            empty if there is no grouping
+     * @param afields
+     *            the 0-based indexes of the aggregated fields in the tuple
+     * @param ops
+     *            the aggregation operator applied to each of afields; only
+     *            COUNT is supported over string fields
+     * @param memoryBudget
+     *            approximate number of bytes the groups may use before tuples
+     *            of new groups are spilled to disk
+     * @throws IllegalArgumentException
+     *             if an aggregate is not supported for the type of its field
+     */
+    public HashAggregator(TupleDesc td, int[] gbfields, int[] afields, Op[] ops, long memoryBudget) {
+        this(td, gbfields, afields, ops, memoryBudget, 0);
+    }
+
+    HashAggregator(TupleDesc td, int[] gbfields, int[] afields, Op[] ops, long memoryBudget, int level) {
+        if (afields.length == 0 || afields.length != ops.length)
+            throw new IllegalArgumentException("need one operator per aggregate field");
+        for (int a = 0; a < afields.length; a++) {
+            switch (ops[a]) {
+            case MIN: case MAX: case SUM: case AVG:
+                if (td.getFieldType(afields[a]) != Type.INT_TYPE)
+                    throw new IllegalArgumentException(ops[a] + " is only supported over integers");
+                break;
+            case COUNT:
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported aggregate " + ops[a]);
+            }
+        }
+        this.afields = afields.clone();
+        this.ops = ops.clone();
+        this.gbfields = gbfields.clone();
+        this.gbtypes = new Type[gbfields.length];
+        Type[] resultTypes = new Type[gbfields.length + afields.length];
+        int groupBytes = 4 * 4 + 8 + 8 * afields.length; // table slots, hash, count, values
+        for (int i = 0; i < gbfields.length; i++) {
+            gbtypes[i] = td.getFieldType(gbfields[i]);
+            resultTypes[i] = gbtypes[i];
+            groupBytes += gbtypes[i] == Type.INT_TYPE ? 4 : 48 + Type.STRING_LEN;
+        }
+        for (int a = 0; a < afields.length; a++)
+            resultTypes[gbfields.length + a] = Type.INT_TYPE;
+        this.resultTd = new TupleDesc(resultTypes);
+        this.memoryBudget = memoryBudget;
+        this.level = level;
+        this.maxGroups = level >= MAX_LEVEL ? Integer.MAX_VALUE
+                : (int) Math.max(16, Math.min(Integer.MAX_VALUE / 2, memoryBudget / groupBytes));
+
+        int capacity = Math.min(64, maxGroups);
+        table = new int[tableSizeFor(capacity)];
+        hashes = new int[capacity];
+        intKeys = new int[gbfields.length][];
+        stringKeys = new String[gbfields.length][];
+        for (int i = 0; i < gbfields.length; i++) {
+            if (gbtypes[i] == Type.INT_TYPE)
+                intKeys[i] = new int[capacity];
+            else
+                stringKeys[i] = new String[capacity];
+        }
+        values = new long[capacity * afields.length];
+        counts = new long[capacity];
+    }
+
+    /**
+     * @return the number of groups held in memory
+     */
+    public int numGroups() {
+        return numGroups;
+    }
+
+    /**
+     * @return true if the state of some groups was spilled to disk
+     */
+    public boolean spilled() {
+        return partitionFiles != null;
+    }
+
+    /**
+     * @return the TupleDesc of the result tuples: the group-by fields
+     *         followed by one INT_TYPE value per aggregate
+     */
+    public TupleDesc getResultTupleDesc() {
+        return resultTd;
+    }
+
+    /**
+     * Merge a new tuple into the aggregate, grouping as indicated in the
+     * constructor
+     *
+     * @param tup
+     *            the Tuple containing the aggregate and group-by fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        int h = hash(tup, gbfields);
+        int pos = find(tup, gbfields, h);
+        int g = table[pos] - 1;
+        if (g < 0) {
+            if (numGroups >= maxGroups) {
+                spillTuple(tup, h);
+                return;
+            }
+            g = newGroup(tup, gbfields, h, pos);
+        }
+        counts[g]++;
+        int base = g * ops.length;
+        for (int a = 0; a < ops.length; a++) {
+            if (ops[a] == Op.COUNT)
+                continue;
+            long v = ((IntField) tup.getField(afields[a])).getValue();
+            switch (ops[a]) {
+            case MIN:
+                if (v < values[base + a])
+                    values[base + a] = v;
+                break;
+            case MAX:
+                if (v > values[base + a])
+                    values[base + a] = v;
+                break;
+            default: // SUM, AVG
+                values[base + a] += v;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Merge the partial aggregates computed by another HashAggregator over
+     * a disjoint part of the input into this one. Both must compute the same
+     * aggregates over the same group-by field types; other must not be used
+     * afterwards.
+     *
+     * @param other
+     *            the partial aggregate to merge
+     * @throws IllegalArgumentException
+     *             if other computes different aggregates
+     */
+    public void merge(HashAggregator other) {
+        if (!Arrays.equals(ops, other.ops) || !Arrays.equals(gbtypes, other.gbtypes))
+            throw new IllegalArgumentException("cannot merge different aggregates");
+        int[] keyFields = identity(gbfields.length);
+        for (int g = 0; g < other.numGroups; g++)
+            mergeState(other.keyTuple(g), keyFields, other.values, g * ops.length, other.counts[g]);
+        if (other.partitionFiles != null) {
+            // the spill files hold group states, so they can be adopted as is;
+            // groups in them that are also in this table are combined when
+            // the partitions are aggregated
+            other.closePartitions();
+            openPartitions();
+            for (int p = 0; p < NUM_PARTITIONS; p++)
+                partitionFiles.get(p).addAll(other.partitionFiles.get(p));
+            other.partitionFiles = null;
+        }
+        other.numGroups = 0;
+    }
+
+    private void mergeState(Tuple key, int[] keyFields, long[] vals, int off, long count) {
+        int h = hash(key, keyFields);
+        int pos = find(key, keyFields, h);
+        int g = table[pos] - 1;
+        if (g < 0) {
+            if (numGroups >= maxGroups) {
+                spillState(key, keyFields, h, vals, off, count);
+                return;
+            }
+            g = newGroup(key, keyFields, h, pos);
+        }
+        combine(g, vals, off, count);
+    }
+
+    private void combine(int g, long[] vals, int off, long count) {
+        counts[g] += count;
+        int base = g * ops.length;
+        for (int a = 0; a < ops.length; a++) {
+            long v = vals[off + a];
+            switch (ops[a]) {
+            case COUNT:
+                break;
+            case MIN:
+                if (v < values[base + a])
+                    values[base + a] = v;
+                break;
+            case MAX:
+                if (v > values[base + a])
+                    values[base + a] = v;
+                break;
+            default: // SUM, AVG
+                values[base + a] += v;
+                break;
+            }
+        }
+    }
+
+    private int hash(Tuple tup, int[] keyFields) {
+        int h = level * 0x9E3779B9;
+        for (int i = 0; i < keyFields.length; i++)
+            h = h * 31 + tup.getField(keyFields[i]).hashCode();
+        // murmur3 finalizer, so that the low bits used for probing and the
+        // high bits used for partitioning are both well mixed
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @return the slot holding the group of the key, or the empty slot where
+     *         it would be inserted
+     */
+    private int find(Tuple tup, int[] keyFields, int h) {
+        int mask = table.length - 1;
+        int pos = h & mask;
+        while (true) {
+            int g = table[pos] - 1;
+            if (g < 0 || (hashes[g] == h && keyEquals(tup, keyFields, g)))
+                return pos;
+            pos = (pos + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(Tuple tup, int[] keyFields, int g) {
+        for (int i = 0; i < keyFields.length; i++) {
+            Field f = tup.getField(keyFields[i]);
+            if (gbtypes[i] == Type.INT_TYPE) {
+                if (((IntField) f).getValue() != intKeys[i][g])
+                    return false;
+            } else if (!((StringField) f).getValue().equals(stringKeys[i][g])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int newGroup(Tuple tup, int[] keyFields, int h, int pos) {
+        int g = numGroups++;
+        if (g == hashes.length)
+            growGroups();
+        hashes[g] = h;
+        for (int i = 0; i < keyFields.length; i++) {
+            Field f = tup.getField(keyFields[i]);
+            if (gbtypes[i] == Type.INT_TYPE)
+                intKeys[i][g] = ((IntField) f).getValue();
+            else
+                stringKeys[i][g] = ((StringField) f).getValue();
+        }
+        for (int a = 0; a < ops.length; a++)
+            values[g * ops.length + a] = ops[a] == Op.MIN ? Long.MAX_VALUE
+                    : ops[a] == Op.MAX ? Long.MIN_VALUE : 0;
+        counts[g] = 0;
+        if (numGroups * 2 > table.length)
+            rehash(table.length * 2);
+        else
+            table[pos] = g + 1;
+        return g;
+    }
+
+    private void growGroups() {
+        int capacity = (int) Math.min((long) maxGroups, hashes.length * 2L);
+        hashes = Arrays.copyOf(hashes, capacity);
+        for (int i = 0; i < gbfields.length; i++) {
+            if (intKeys[i] != null)
+                intKeys[i] = Arrays.copyOf(intKeys[i], capacity);
+            else
+                stringKeys[i] = Arrays.copyOf(stringKeys[i], capacity);
+        }
+        values = Arrays.copyOf(values, capacity * ops.length);
+        counts = Arrays.copyOf(counts, capacity);
+    }
+
+    private void rehash(int size) {
+        table = new int[size];
+        int mask = size - 1;
+        for (int g = 0; g < numGroups; g++) {
+            int pos = hashes[g] & mask;
+            while (table[pos] != 0)
+                pos = (pos + 1) & mask;
+            table[pos] = g + 1;
+        }
+    }
+
+    private static int tableSizeFor(int groups) {
+        int size = 16;
+        while (size < groups * 2)
+            size <<= 1;
+        return size;
+    }
+
+    private static int[] identity(int n) {
+        int[] fields = new int[n];
+        for (int i = 0; i < n; i++)
+            fields[i] = i;
+        return fields;
+    }
+
+    /** @return the key of group g as a tuple of the group-by fields */
+    private Tuple keyTuple(int g) {
+        Tuple t = new Tuple(new TupleDesc(gbtypes));
+        for (int i = 0; i < gbfields.length; i++) {
+            if (gbtypes[i] == Type.INT_TYPE)
+                t.setField(i, new IntField(intKeys[i][g]));
+            else
+                t.setField(i, new StringField(stringKeys[i][g], Type.STRING_LEN));
+        }
+        return t;
+    }
+
+    private void openPartitions() {
+        if (partitionFiles == null) {
+            partitionFiles = new ArrayList<ArrayList<File>>(NUM_PARTITIONS);
+            for (int p = 0; p < NUM_PARTITIONS; p++)
+                partitionFiles.add(new ArrayList<File>());
+        }
+    }
+
+    /** @return the stream of the partition the hash belongs to */
+    private DataOutputStream partition(int h) throws IOException {
+        openPartitions();
+        if (partitions == null)
+            partitions = new DataOutputStream[NUM_PARTITIONS];
+        // the table uses the low bits of the hash, so partition on the high ones
+        int p = (h >>> 28) & (NUM_PARTITIONS - 1);
+        if (partitions[p] == null) {
+            File f = newSpillFile();
+            partitionFiles.get(p).add(f);
+            partitions[p] = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(f), IO_BUFFER_SIZE));
+        }
+        return partitions[p];
+    }
+
+    private void closePartitions() {
+        if (partitions == null)
+            return;
+        try {
+            for (DataOutputStream dos : partitions) {
+                if (dos != null)
+                    dos.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("failed to spill aggregate state", e);
+        }
+        partitions = null;
+    }
+
+    private void spillTuple(Tuple tup, int h) {
+        try {
+            DataOutputStream dos = partition(h);
+            for (int i = 0; i < gbfields.length; i++)
+                TupleCodec.writeField(dos, tup.getField(gbfields[i]));
+            for (int a = 0; a < ops.length; a++)
+                dos.writeLong(ops[a] == Op.COUNT ? 0 : ((IntField) tup.getField(afields[a])).getValue());
+            dos.writeLong(1);
+        } catch (IOException e) {
+            throw new RuntimeException("failed to spill aggregate state", e);
+        }
+    }
+
+    private void spillState(Tuple key, int[] keyFields, int h, long[] vals, int off, long count) {
+        try {
+            DataOutputStream dos = partition(h);
+            for (int i = 0; i < keyFields.length; i++)
+                TupleCodec.writeField(dos, key.getField(keyFields[i]));
+            for (int a = 0; a < ops.length; a++)
+                dos.writeLong(vals[off + a]);
+            dos.writeLong(count);
+        } catch (IOException e) {
+            throw new RuntimeException("failed to spill aggregate state", e);
+        }
+    }
+
+    private static File newSpillFile() throws IOException {
+        File f = File.createTempFile("simpledb-agg", ".part");
+        f.deleteOnExit();
+        return f;
+    }
+
+    private Tuple result(int g) throws DbException {
+        Tuple t = new Tuple(resultTd);
+        for (int i = 0; i < gbfields.length; i++) {
+            if (gbtypes[i] == Type.INT_TYPE)
+                t.setField(i, new IntField(intKeys[i][g]));
+            else
+                t.setField(i, new StringField(stringKeys[i][g], Type.STRING_LEN));
+        }
+        for (int a = 0; a < ops.length; a++) {
+            long v;
+            switch (ops[a]) {
+            case COUNT:
+                v = counts[g];
+                break;
+            case AVG:
+                v = values[g * ops.length + a] / counts[g];
+                break;
+            default:
+                v = values[g * ops.length + a];
+                break;
+            }
+            if (v != (int) v)
+                throw new DbException(ops[a] + " value " + v + " does not fit in an INT_TYPE field");
+            t.setField(gbfields.length + a, new IntField((int) v));
+        }
+        return t;
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results. Spilled partitions
+     * are aggregated when the iterator is first opened; the iterator should
+     * be closed to release the disk space they use.
+     *
+     * @return a OpIterator whose tuples are the group-by values followed by
+     *         the aggregate values, in no particular order
+     */
+    public OpIterator iterator() {
+        return new ResultIterator();
+    }
+
+    /**
+     * Aggregates every spilled partition and writes the results to a file.
+     * Spilled states of groups that are in the in-memory table are combined
+     * into it; the rest are aggregated by a HashAggregator per partition.
+     */
+    private File aggregatePartitions() throws DbException {
+        closePartitions();
+        try {
+            File out = newSpillFile();
+            TupleCodec resultCodec = new TupleCodec(resultTd);
+            TupleDesc keyTd = new TupleDesc(gbtypes);
+            Type[] stateTypes = Arrays.copyOf(gbtypes, gbtypes.length + ops.length);
+            for (int a = 0; a < ops.length; a++)
+                stateTypes[gbtypes.length + a] = Type.INT_TYPE;
+            TupleDesc stateTd = new TupleDesc(stateTypes);
+            int[] keyFields = identity(gbfields.length);
+            int[] stateAggs = new int[ops.length];
+            for (int a = 0; a < ops.length; a++)
+                stateAggs[a] = gbfields.length + a;
+            long[] vals = new long[ops.length];
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(out), IO_BUFFER_SIZE));
+            try {
+                for (ArrayList<File> files : partitionFiles) {
+                    if (files.isEmpty())
+                        continue;
+                    HashAggregator sub = new HashAggregator(stateTd, keyFields,
+                            stateAggs, ops, memoryBudget, level + 1);
+                    for (File f : files) {
+                        DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                                new FileInputStream(f), IO_BUFFER_SIZE));
+                        try {
+                            Tuple key = new Tuple(keyTd);
+                            while (true) {
+                                try {
+                                    for (int i = 0; i < gbtypes.length; i++)
+                                        key.setField(i, TupleCodec.readField(dis, gbtypes[i]));
+                                    for (int a = 0; a < ops.length; a++)
+                                        vals[a] = dis.readLong();
+                                } catch (EOFException e) {
+                                    break;
+                                }
+                                long count = dis.readLong();
+                                int h = hash(key, keyFields);
+                                int g = table[find(key, keyFields, h)] - 1;
+                                if (g >= 0)
+                                    combine(g, vals, 0, count);
+                                else
+                                    sub.mergeState(key, keyFields, vals, 0, count);
+                            }
+                        } finally {
+                            dis.close();
+                        }
+                        f.delete();
+                    }
+                    OpIterator it = sub.iterator();
+                    it.open();
+                    while (it.hasNext())
+                        resultCodec.write(dos, it.next());
+                    it.close();
+                }
+            } finally {
+                dos.close();
+            }
+            partitionFiles = null;
+            return out;
+        } catch (IOException e) {
+            throw new DbException("failed to aggregate spilled partitions: " + e.getMessage());
+        } catch (TransactionAbortedException e) {
+            throw new DbException(e.getMessage());
+        }
+    }
+
+    private class ResultIterator implements OpIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private boolean open = false;
+        private boolean released = false;
+        private int next = 0;
+        private transient File spilledResults;
+        private transient DataInputStream dis;
+        private transient TupleCodec codec;
+        private Tuple lookahead;
+
+        public void open() throws DbException, TransactionAbortedException {
+            if (released)
+                throw new IllegalStateException("aggregate results were released by close()");
+            if (partitionFiles != null)
+                spilledResults = aggregatePartitions();
+            codec = new TupleCodec(resultTd);
+            open = true;
+            rewind();
+        }
+
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (!open)
+                throw new IllegalStateException("iterator is not open");
+            if (lookahead == null)
+                lookahead = readNext();
+            return lookahead != null;
+        }
+
+        public Tuple next() throws DbException, TransactionAbortedException,
+                NoSuchElementException {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Tuple t = lookahead;
+            lookahead = null;
+            return t;
+        }
+
+        private Tuple readNext() throws DbException {
+            if (next < numGroups)
+                return result(next++);
+            if (dis == null)
+                return null;
+            try {
+                return codec.read(dis);
+            } catch (IOException e) {
+                throw new DbException("failed to read aggregate results: " + e.getMessage());
+            }
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            next = 0;
+            lookahead = null;
+            closeStream();
+            if (spilledResults != null) {
+                try {
+                    dis = new DataInputStream(new BufferedInputStream(
+                            new FileInputStream(spilledResults), IO_BUFFER_SIZE));
+                } catch (IOException e) {
+                    throw new DbException("failed to read aggregate results: " + e.getMessage());
+                }
+            }
+        }
+
+        public TupleDesc getTupleDesc() {
+            return resultTd;
+        }
+
+        public void close() {
+            open = false;
+            lookahead = null;
+            closeStream();
+            if (spilledResults != null) {
+                spilledResults.delete();
+                spilledResults = null;
+                released = true;
+            }
+        }
+
+        private void closeStream() {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) {
+                    // nothing left to read from it anyway
+                }
+                dis = null;
+            }
+        }
+    }
+}
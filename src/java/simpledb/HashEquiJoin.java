@@ -71,17 +71,45 @@ public class HashEquiJoin extends Operator {
 
     }
 
+    /**
+     * Returns the scan the tuples of child2 come from, if child2 is a
+     * SeqScan, possibly under Filters, which keep the field indexes intact.
+     */
+    static SeqScan probeScan(OpIterator child) {
+        while (child instanceof Filter)
+            child = ((Filter) child).getChildren()[0];
+        return child instanceof SeqScan ? (SeqScan) child : null;
+    }
+
+    /**
+     * Publishes the keys of the current map to the scan of child2, so it
+     * can skip the tuples that have no partner in it.
+     */
+    private void publishRuntimeFilter() throws DbException, TransactionAbortedException {
+        SeqScan scan = probeScan(child2);
+        if (scan == null)
+            return;
+        RuntimeFilter filter = new RuntimeFilter(map.size());
+        for (Object key : map.keySet())
+            filter.add((Field) key);
+        scan.setRuntimeFilter(pred.getField2(), filter);
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
         loadMap();
+        publishRuntimeFilter();
         super.open();
     }
 
     public void close() {
         super.close();
         child2.close();
+        SeqScan scan = probeScan(child2);
+        if (scan != null)
+            scan.clearRuntimeFilter();
         child1.close();
         this.t1=null;
         this.t2=null;
@@ -150,9 +178,13 @@ public class HashEquiJoin extends Operator {
 
         }
 
-        // child2 is done: advance child1
+        // child2 is done: advance child1, and filter the next pass of child2
+        // with the new keys
+        boolean loaded = loadMap();
+        if (loaded)
+            publishRuntimeFilter();
         child2.rewind();
-        if (loadMap()) {
+        if (loaded) {
             return fetchNext();
         }
 
@@ -0,0 +1,138 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * HashSemiJoin returns the tuples of its outer child that have a partner in
+ * its inner child (a semi-join, for IN and EXISTS subqueries) or that have
+ * none (an anti-join, for NOT IN and NOT EXISTS). Each outer tuple is
+ * returned at most once, however many partners it has.
+ * <p>
+ * The join fields of the inner child are read into a hash set once, when the
+ * operator is opened; each outer tuple then costs a single lookup. A
+ * semi-join also publishes the set to the scan of its outer child as a
+ * {@link RuntimeFilter}.
+ */
+public class HashSemiJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private final boolean anti;
+    private OpIterator child1, child2;
+    transient private HashSet<Field> keys = null;
+    transient private boolean innerEmpty;
+
+    /**
+     * Constructor.
+     * 
+     * @param p
+     *            the predicate to join the children on; its operator must
+     *            be EQUALS. If p is null, every outer tuple has a partner if
+     *            the inner child returns any tuple at all (an uncorrelated
+     *            EXISTS).
+     * @param child1
+     *            the outer child, whose tuples are returned
+     * @param child2
+     *            the inner child, e.g. the plan of a subquery
+     * @param anti
+     *            true to return the outer tuples without a partner instead
+     */
+    public HashSemiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, boolean anti) {
+        if (p != null && p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("a hash semi-join can only join on equality");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.anti = anti;
+    }
+
+    /**
+     * @return the predicate of the join, or null if it only tests that the
+     *         inner child is not empty
+     */
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return true if this is an anti-join
+     */
+    public boolean isAnti() {
+        return anti;
+    }
+
+    public String getJoinField1Name() {
+        return child1.getTupleDesc().getFieldName(pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return child2.getTupleDesc().getFieldName(pred.getField2());
+    }
+
+    /**
+     * @return the TupleDesc of the outer child
+     */
+    public TupleDesc getTupleDesc() {
+        return child1.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        keys = new HashSet<Field>();
+        innerEmpty = !child2.hasNext();
+        if (pred != null) {
+            while (child2.hasNext())
+                keys.add(child2.next().getField(pred.getField2()));
+            SeqScan scan = HashEquiJoin.probeScan(child1);
+            if (!anti && scan != null) {
+                RuntimeFilter filter = new RuntimeFilter(keys.size());
+                for (Field key : keys)
+                    filter.add(key);
+                scan.setRuntimeFilter(pred.getField1(), filter);
+            }
+        }
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        SeqScan scan = HashEquiJoin.probeScan(child1);
+        if (!anti && scan != null)
+            scan.clearRuntimeFilter();
+        keys = null;
+    }
+
+    /**
+     * Rewinds the outer child only: the keys of the inner child are kept.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (pred == null && innerEmpty != anti)
+            return null;
+        while (child1.hasNext()) {
+            Tuple t = child1.next();
+            if (pred == null || keys.contains(t.getField(pred.getField1())) != anti)
+                return t;
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+
+}
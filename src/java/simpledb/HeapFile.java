@@ -1,6 +1,8 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 
@@ -16,21 +18,64 @@ import java.util.*;
  */
 public class HeapFile implements DbFile {
 
+    /** Default number of bytes a HeapFile grows by when it needs a new page. */
+    public static final int DEFAULT_EXTENT_SIZE = 1024 * 1024;
+
+    private static int extentSize = DEFAULT_EXTENT_SIZE;
 
 	private final File file;
 	private final TupleDesc td;
+	// bytes per page, fixed when the file is opened
+	private final int pageSize;
+	// pages with room left by deletes; see FreeSpaceMap
+	private final FreeSpaceMap freeSpace;
+	// pages in use, and pages in the file including the preallocated
+	// ones; -1 until the file is first looked at
+	private int numPages = -1;
+	private long physicalPages = -1;
 
     /**
-     * Constructs a heap file backed by the specified file.
+     * Constructs a heap file backed by the specified file, with pages of
+     * the default page size.
      *
      * @param f
      *            the file that stores the on-disk backing store for this heap
      *            file.
+     * @see BufferPool#getPageSize()
      */
     public HeapFile(File f, TupleDesc td) {
+    	this(f, td, BufferPool.getPageSize());
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, with pages of
+     * pageSize bytes; the file must have been written with that page size.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param pageSize the number of bytes per page
+     */
+    public HeapFile(File f, TupleDesc td, int pageSize) {
 
     	this.file = f;
     	this.td = td;
+    	this.pageSize = pageSize;
+    	this.freeSpace = new FreeSpaceMap(new File(f.getPath() + ".fsm"));
+    }
+
+    public static int getExtentSize() {
+    	return extentSize;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setExtentSize(int extentSize) {
+    	HeapFile.extentSize = extentSize;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetExtentSize() {
+    	HeapFile.extentSize = DEFAULT_EXTENT_SIZE;
     }
 
     /**
@@ -43,6 +88,13 @@ public class HeapFile implements DbFile {
     	return this.file;
     }
 
+    /**
+     * Returns the map of the pages of this HeapFile that have free slots.
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+    	return this.freeSpace;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere to ensure that each
@@ -67,6 +119,11 @@ public class HeapFile implements DbFile {
         return this.td;
     }
 
+    // see DbFile.java for javadocs
+    public int getPageSize() {
+    	return this.pageSize;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
@@ -76,8 +133,7 @@ public class HeapFile implements DbFile {
     	// useful variables
     	int tableId = pid.getTableId();
     	int numPage = pid.getPageNumber();
-    	int pageSize = BufferPool.getPageSize();
-    	int totalSize = pageSize * numPage;
+    	long totalSize = (long) pageSize * numPage;
     	
     	
 
@@ -116,73 +172,202 @@ public class HeapFile implements DbFile {
 
     }
 
+    /**
+     * Reads count consecutive pages from disk with a single read, as the
+     * buffer pool does to warm up. Like readPage, this should not be called
+     * directly but through the BufferPool.
+     *
+     * @param pgNo the number of the first page to read
+     * @param count the number of pages to read
+     * @return the pages, in order
+     */
+    public HeapPage[] readPages(int pgNo, int count) {
+    	byte[] data = new byte[count * pageSize];
+    	try {
+    		RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+    		try {
+    			raf.seek((long) pgNo * pageSize);
+    			raf.readFully(data);
+    		} finally {
+    			raf.close();
+    		}
+    		HeapPage[] pages = new HeapPage[count];
+    		for (int i = 0; i < count; i++) {
+    			pages[i] = new HeapPage(new HeapPageId(getId(), pgNo + i),
+    					Arrays.copyOfRange(data, i * pageSize, (i + 1) * pageSize));
+    		}
+    		return pages;
+    	} catch (IOException e) {
+    		throw new RuntimeException("Failed to read pages " + pgNo + " to "
+    				+ (pgNo + count - 1) + " of " + file + ": " + e.getMessage());
+    	}
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
     	
-    	int offset = page.getId().getPageNumber() * BufferPool.getPageSize();
+    	long offset = (long) page.getId().getPageNumber() * pageSize;
     	
     	RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
-    	raf.seek((long) offset);
+    	raf.seek(offset);
     	raf.write(page.getPageData());
     	
     	raf.close();
     	
-    	
+    	synchronized (this) {
+    		int pgNo = page.getId().getPageNumber();
+    		if (numPages >= 0 && pgNo >= numPages)
+    			numPages = pgNo + 1;
+    		if (physicalPages >= 0 && pgNo >= physicalPages)
+    			physicalPages = pgNo + 1;
+    	}
 
     }
 
     /**
-     * Returns the number of pages in this HeapFile.
+     * Returns the number of pages in this HeapFile. Pages the file has
+     * preallocated but not handed out yet are not counted.
      */
-    public int numPages() {
+    public synchronized int numPages() {
         // some code goes here
-        int pageSize = BufferPool.getPageSize();
-
-        int numPages = (int) Math.ceil(this.getFile().length() * 1.0/ pageSize);
-        
+        long pages = (long) Math.ceil(this.getFile().length() * 1.0/ pageSize);
+        if (pages != physicalPages) {
+        	// first look at the file, or it was written by something else
+        	// such as HeapFileEncoder, in which case every page is in use
+        	numPages = physicalPages < 0 ? usedPages((int) pages) : (int) pages;
+        	physicalPages = pages;
+        }
 
         return numPages;
     }
 
+    /**
+     * Counts the pages of a file that may have been preallocated by an
+     * earlier run: trailing pages of zeros are not in use, except for the
+     * first of them, which may be an empty page that is.
+     */
+    private int usedPages(int pages) {
+    	byte[] data = new byte[pageSize];
+    	try {
+    		RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+    		try {
+    			for (int pgNo = pages - 1; pgNo >= 0; pgNo--) {
+    				raf.seek((long) pgNo * pageSize);
+    				raf.readFully(data, 0, (int) Math.min(pageSize, raf.length() - (long) pgNo * pageSize));
+    				for (byte b : data) {
+    					if (b != 0)
+    						return Math.min(pages, pgNo + 2);
+    				}
+    				Arrays.fill(data, (byte) 0);
+    			}
+    		} finally {
+    			raf.close();
+    		}
+    	} catch (IOException e) {
+    		// without the file every page counts
+    		return pages;
+    	}
+    	return Math.min(pages, 1);
+    }
+
+    /**
+     * Hands out the page after the last one in use, first growing the file
+     * by an extent of zeroed pages if it has no preallocated page left.
+     *
+     * @return the number of the new page, which is empty on disk
+     */
+    protected synchronized int allocatePage() throws IOException {
+    	int pgNo = numPages();
+    	if (pgNo >= physicalPages) {
+    		int extentPages = Math.max(1, extentSize / pageSize);
+    		RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+    		try {
+    			FileChannel channel = raf.getChannel();
+    			ByteBuffer zeros = ByteBuffer.allocate(extentPages * pageSize);
+    			long position = (long) pgNo * pageSize;
+    			while (zeros.hasRemaining())
+    				position += channel.write(zeros, position);
+    		} finally {
+    			raf.close();
+    		}
+    		physicalPages = pgNo + extentPages;
+    	}
+    	numPages = pgNo + 1;
+    	return pgNo;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
     	
     	ArrayList<Page> result = new ArrayList<>();
-    	
-    	int numPages = numPages();
-    	
-    	
-    	HeapPageId pid = new HeapPageId(this.getId(), numPages - 1);
-    	
-    	HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-    	
-    	if (page.getNumEmptySlots() == 0){
-    		
-    		
-    		
-    		HeapPageId newPid = new HeapPageId(this.getId(), numPages);
-    		
-    		byte[] data = new byte[BufferPool.getPageSize()];
-    		
-    		HeapPage newPage = new HeapPage(newPid, data);
-    		writePage(newPage);
-    		page = (HeapPage) Database.getBufferPool().getPage(tid, newPid, Permissions.READ_WRITE);
-    		
+    	HeapPage page = pageWithRoom(tid);
+    	Latch latch = Database.getBufferPool().latch(page.getId(), true);
+    	try {
+    		page.insertTuple(t);
+    	} finally {
+    		latch.release();
     	}
-    	
-    
-    		
-    	page.insertTuple(t);
+    	if (page.getNumEmptySlots() == 0)
+    		freeSpace.setFree(page.getId().getPageNumber(), false);
         result.add(page);
         return result;
-    		
-    	
-    	
-    	
-    	
+    }
 
+    /**
+     * Returns a page with at least one free slot, locked READ_WRITE: the
+     * lowest page the free-space map reports to have room, else the last
+     * page, else a new page, which is created in the buffer pool rather
+     * than read from disk.
+     */
+    private HeapPage pageWithRoom(TransactionId tid)
+            throws DbException, IOException, TransactionAbortedException {
+    	int numPages = numPages();
+    	for (int pgNo = freeSpace.nextFree(0, numPages); pgNo >= 0;
+    			pgNo = freeSpace.nextFree(pgNo + 1, numPages)) {
+    		HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+    				new HeapPageId(this.getId(), pgNo), Permissions.READ_WRITE);
+    		if (page.getNumEmptySlots() > 0)
+    			return page;
+    		// the space was taken, or the delete that freed it aborted
+    		freeSpace.setFree(pgNo, false);
+    	}
+    	if (numPages > 0) {
+    		HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid,
+    				new HeapPageId(this.getId(), numPages - 1), Permissions.READ_WRITE);
+    		if (page.getNumEmptySlots() > 0)
+    			return page;
+    	}
+    	HeapPageId newPid = new HeapPageId(this.getId(), allocatePage());
+    	return (HeapPage) Database.getBufferPool().getNewPage(tid,
+    			new HeapPage(newPid, HeapPage.createEmptyPageData(pageSize)));
+    }
+
+    /**
+     * Fills a page with room, chosen like for a single tuple, with tuples
+     * from the iterator. Only that page is returned, however many tuples fit
+     * on it.
+     *
+     * @see DbFile#insertTuples
+     */
+    public ArrayList<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+    	ArrayList<Page> result = new ArrayList<>();
+    	if (!tuples.hasNext())
+    		return result;
+
+    	HeapPage page = pageWithRoom(tid);
+    	Latch latch = Database.getBufferPool().latch(page.getId(), true);
+    	try {
+    		page.insertTuples(tuples);
+    	} finally {
+    		latch.release();
+    	}
+    	if (page.getNumEmptySlots() == 0)
+    		freeSpace.setFree(page.getId().getPageNumber(), false);
+    	result.add(page);
+    	return result;
     }
 
     // see DbFile.java for javadocs
@@ -194,7 +379,17 @@ public class HeapFile implements DbFile {
     	
     	HeapPageId tuplePageId = (HeapPageId) t.getRecordId().getPageId();
     	HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, tuplePageId, Permissions.READ_WRITE);
-    	page.deleteTuple(t);
+    	Latch latch = Database.getBufferPool().latch(tuplePageId, true);
+    	try {
+    		page.deleteTuple(t);
+    	} finally {
+    		latch.release();
+    	}
+    	try {
+    		freeSpace.setFree(tuplePageId.getPageNumber(), true);
+    	} catch (IOException e) {
+    		throw new DbException("failed to update free-space map: " + e.getMessage());
+    	}
     	
     	result.add(page);
     	return result;
@@ -208,6 +403,37 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(tid, this.numPages(), this.getId());
     }
 
+    /**
+     * Returns an iterator over the tuples of pages startPage (inclusive) to
+     * endPage (exclusive) only. Disjoint ranges can be scanned concurrently.
+     */
+    public DbFileIterator iterator(TransactionId tid, int startPage, int endPage) {
+
+        return new HeapFileIterator(tid, startPage, Math.min(endPage, this.numPages()), this.getId());
+    }
+
+    /**
+     * Returns an iterator over the tuples of pages startPage (inclusive) to
+     * endPage (exclusive) that satisfy all of preds. The predicates are
+     * evaluated on the page data before tuples are materialized.
+     */
+    public DbFileIterator iterator(TransactionId tid, int startPage, int endPage, Predicate[] preds) {
+
+        return iterator(tid, startPage, endPage, preds, null);
+    }
+
+    /**
+     * Like {@link #iterator(TransactionId, int, int, Predicate[])}, but only
+     * decodes the given fields, in that order, or every field if fields is
+     * null.
+     */
+    public HeapFileIterator iterator(TransactionId tid, int startPage, int endPage, Predicate[] preds,
+            int[] fields) {
+
+        return new HeapFileIterator(tid, startPage, Math.min(endPage, this.numPages()), this.getId(),
+                preds, fields);
+    }
+
 
 
 }
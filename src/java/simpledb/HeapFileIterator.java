@@ -8,17 +8,60 @@ public class HeapFileIterator implements DbFileIterator {
 	private final TransactionId transId;
 	private final int tableId;
 	private boolean openStatus;
+	private final int startPage;
 	private final int numPages;
 	private int curPageNo;
 	private Iterator<Tuple> curIterator;
+	private final ScanPredicate[] tablePreds;
+	// tablePreds, plus the runtime filter if there is one
+	private ScanPredicate[] preds;
+	// true until a tuple of the current page has been returned
+	private boolean untouched;
+	private final int[] fields;
+	private final TupleDesc projectedTd;
 
 
 	public HeapFileIterator(TransactionId transId, int numPages, int tableId) {
+		this(transId, 0, numPages, tableId);
+	}
+
+	/**
+	 * Iterates over the tuples of pages startPage (inclusive) to endPage
+	 * (exclusive) only, so that disjoint page ranges of one file can be
+	 * scanned independently.
+	 */
+	public HeapFileIterator(TransactionId transId, int startPage, int endPage, int tableId) {
+		this(transId, startPage, endPage, tableId, new Predicate[0]);
+	}
+
+	/**
+	 * Iterates over the tuples of pages startPage (inclusive) to endPage
+	 * (exclusive) that satisfy all of preds. The predicates are evaluated on
+	 * the page data, so rejected tuples are never materialized.
+	 */
+	public HeapFileIterator(TransactionId transId, int startPage, int endPage, int tableId,
+			Predicate[] preds) {
+		this(transId, startPage, endPage, tableId, preds, null);
+	}
+
+	/**
+	 * Like the above, but the returned tuples only hold the given fields of
+	 * the table, in that order, and no other field is decoded; fields may be
+	 * null to return every field.
+	 */
+	public HeapFileIterator(TransactionId transId, int startPage, int endPage, int tableId,
+			Predicate[] preds, int[] fields) {
+		TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+		this.tablePreds = ScanPredicate.compile(preds, td);
+		this.preds = this.tablePreds;
+		this.fields = fields == null ? null : fields.clone();
+		this.projectedTd = fields == null ? null : HeapPage.project(td, fields);
 		this.tableId = tableId;
 		this.transId = transId;
-		this.numPages = numPages;
+		this.startPage = startPage;
+		this.numPages = endPage;
 		this.openStatus = false;
-		this.curPageNo = 0;
+		this.curPageNo = startPage;
 
 
 	}
@@ -30,7 +73,9 @@ public class HeapFileIterator implements DbFileIterator {
 		}
 
 		this.openStatus = true;
-		this.curIterator = getIterator(curPageNo);
+		this.curPageNo = startPage;
+		this.curIterator = curPageNo < numPages ? getIterator(curPageNo) : null;
+		this.untouched = true;
 
 
 
@@ -40,7 +85,16 @@ public class HeapFileIterator implements DbFileIterator {
 		try {
 			
 			HeapPage page = (HeapPage) getPage(pageNo);
-			return page.iterator();
+			// the iterators copy out the matching tuples, so the latch is
+			// only held while the page is read
+			Latch latch = Database.getBufferPool().latch(page.getId(), false);
+			try {
+				return fields == null ? page.iterator(preds) : page.iterator(preds, fields, projectedTd);
+			} finally {
+				latch.release();
+			}
+		} catch (TransactionAbortedException e) {
+			throw e;
 		} catch (Exception e) {
 			System.out.println(e);
 			throw new DbException("Something went wrong. Maybe page number is not correct");
@@ -75,27 +129,18 @@ public class HeapFileIterator implements DbFileIterator {
 			return false;
 		}
 
-		if (!this.curIterator.hasNext()){
-			
-			
+		// skip over any number of empty pages
+		while (!this.curIterator.hasNext()){
 
-			if (this.curPageNo < numPages - 1){
-				
-				curPageNo++;
-				curIterator = getIterator(curPageNo);
-				
-				boolean t =  curIterator.hasNext();
-				
-				return t;
-			}
-
-			else {
-				
+			if (this.curPageNo >= numPages - 1){
 				return false;
 			}
+
+			curPageNo++;
+			curIterator = getIterator(curPageNo);
 		}
-        
-		return curIterator.hasNext();
+
+		return true;
 
 
 
@@ -111,18 +156,43 @@ public class HeapFileIterator implements DbFileIterator {
 		}
 
 		else {
+			untouched = false;
 			return curIterator.next();
 		}
 
 	}
 
+	/**
+	 * Drops the tuples whose field fails the runtime filter, in addition to
+	 * the tuples failing the predicates of the iterator. The filter applies
+	 * from the next page on, or right away if no tuple of the current page
+	 * has been returned yet.
+	 *
+	 * @param field the index of the field in the table
+	 * @param filter the filter, or null to remove the current one
+	 */
+	public void setRuntimeFilter(int field, RuntimeFilter filter)
+			throws DbException, TransactionAbortedException {
+		if (filter == null) {
+			preds = tablePreds;
+		} else {
+			preds = java.util.Arrays.copyOf(tablePreds, tablePreds.length + 1);
+			preds[tablePreds.length] = new ScanPredicate(filter, field,
+					Database.getCatalog().getTupleDesc(tableId));
+		}
+		if (openStatus && untouched && curIterator != null) {
+			curIterator = getIterator(curPageNo);
+		}
+	}
+
 	@Override
 	public void rewind() throws DbException, TransactionAbortedException {
 		
 		if (this.openStatus) {
 			
-			this.curPageNo = 0;
-			this.curIterator = getIterator(curPageNo);
+			this.curPageNo = startPage;
+			this.curIterator = curPageNo < numPages ? getIterator(curPageNo) : null;
+			this.untouched = true;
 		
 			
 		}
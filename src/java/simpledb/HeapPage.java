@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -18,7 +19,16 @@ public class HeapPage implements Page {
     final byte header[];
     final Tuple tuples[];
     final int numSlots;
-
+    // the page size of the page's file
+    final int pageSize;
+    // the bytes the page was read from; used slots whose tuple has not been
+    // decoded yet, or not kept, still hold their tuple here. They are read in
+    // place, and may be a frame of the buffer pool's off-heap arena until
+    // detach()
+    private volatile ByteBuffer data;
+
+    // null while the page is unchanged since it was read, when data is the
+    // before image
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
     
@@ -30,8 +40,9 @@ public class HeapPage implements Page {
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
-     * <p> where tuple size is the size of tuples in this
+     *          floor((page size*8) / (tuple size * 8 + 1))
+     * <p> where page size is the size of the data, that of the pages of the
+     * table's file, and tuple size is the size of tuples in this
      * database table, which can be determined via {@link Catalog#getTupleDesc}.
      * The number of 8-bit header words is equal to:
      * <p>
@@ -39,30 +50,67 @@ public class HeapPage implements Page {
      * <p>
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
-     * @see BufferPool#getPageSize()
+     * @see DbFile#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage over page data held in a buffer, which the page
+     * reads in place rather than copying it. The buffer must not change or
+     * be reused until the page is detached from it.
+     *
+     * @see #detach()
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = data.capacity();
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
         // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        header = bytes(data, 0, getHeaderSize());
+
+        // tuples are decoded from data on first access, so that scans can
+        // skip the tuples their predicates reject without building them
+        this.data = data;
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+    }
+
+    /**
+     * Copies the page data to buffer, which must be exactly one page long,
+     * and reads it in place there from now on.
+     */
+    void attach(ByteBuffer buffer) {
+        ByteBuffer from = data.duplicate();
+        from.clear();
+        ByteBuffer to = buffer.duplicate();
+        to.clear();
+        to.put(from);
+        data = buffer;
+    }
+
+    /**
+     * Copies the page data the page reads in place to the heap, after which
+     * the buffer it was created over may be reused.
+     */
+    void detach() {
+        ByteBuffer buffer = data;
+        if (buffer.hasArray())
+            return;
+        data = ByteBuffer.wrap(bytes(buffer, 0, buffer.capacity()));
+    }
 
-        setBeforeImage();
+    /** @return a copy of length bytes of buffer from offset on */
+    private static byte[] bytes(ByteBuffer buffer, int offset, int length) {
+        byte[] copy = new byte[length];
+        // a view, as the buffer is read concurrently
+        ByteBuffer view = buffer.duplicate();
+        view.clear();
+        view.position(offset);
+        view.get(copy);
+        return copy;
     }
 
     /** Retrieve the number of tuples on this page.
@@ -71,8 +119,6 @@ public class HeapPage implements Page {
     private int getNumTuples() {        
         
 		// some code goes here
-        int pageSize = BufferPool.getPageSize();
-        
         int tupleSize = this.td.getSize();
         
         int numTuples = Math.floorDiv(pageSize * 8,  tupleSize * 8 + 1);
@@ -103,6 +149,11 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null) {
+                // unchanged since it was read
+                ByteBuffer buffer = data;
+                oldDataRef = bytes(buffer, 0, buffer.capacity());
+            }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -162,6 +213,35 @@ public class HeapPage implements Page {
         return t;
     }
 
+    /** @return the offset of slot i in the page data */
+    private int slotOffset(int i) {
+        return header.length + i * td.getSize();
+    }
+
+    /** @return a copy of the bytes of slot i in the page data */
+    private byte[] slotData(int i) {
+        return bytes(data, slotOffset(i), td.getSize());
+    }
+
+    /**
+     * @return the tuple in slot i, decoding it from the page data on first
+     *         access; null if the slot is empty. Tuples decoded from a frame
+     *         of the off-heap arena are not kept, so that the heap only
+     *         holds the tuples inserted into cached pages.
+     */
+    private Tuple tupleAt(int i) {
+        Tuple t = tuples[i];
+        if (t == null && isSlotUsed(i)) {
+            ByteBuffer buffer = data;
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+                    bytes(buffer, slotOffset(i), td.getSize())));
+            t = readNextTuple(dis, i);
+            if (buffer.hasArray())
+                tuples[i] = t;
+        }
+        return t;
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -174,7 +254,7 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
+        int len = pageSize;
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
 
@@ -204,6 +284,16 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // non-empty slot that was never decoded, and so never changed
+            if (tuples[i] == null) {
+                try {
+                    dos.write(slotData(i));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
@@ -217,7 +307,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = pageSize - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -241,11 +331,21 @@ public class HeapPage implements Page {
      * this method to the HeapPage constructor will create a HeapPage with
      * no valid tuples in it.
      *
-     * @return The returned ByteArray.
+     * @return The returned ByteArray, of the default page size.
      */
     public static byte[] createEmptyPageData() {
-        int len = BufferPool.getPageSize();
-        return new byte[len]; //all 0
+        return createEmptyPageData(BufferPool.getPageSize());
+    }
+
+    /**
+     * Generates a byte array corresponding to an empty HeapPage of a file
+     * whose pages are pageSize bytes long.
+     *
+     * @param pageSize the page size of the file
+     * @return The returned ByteArray.
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize]; //all 0
     }
 
     /**
@@ -311,6 +411,37 @@ public class HeapPage implements Page {
     	
     	
 
+    }
+
+    /**
+     * Adds tuples from the iterator to the empty slots of the page, in slot
+     * order, until the page is full or the iterator is exhausted. Each tuple
+     * is updated to reflect that it is now stored on this page.
+     * @throws DbException if a tupledesc is mismatch; no tuple is added then.
+     * @param it the tuples to add
+     * @return the number of tuples added
+     */
+    public int insertTuples(Iterator<Tuple> it) throws DbException {
+    	// every tuple is checked before a slot changes, as a page the insert
+    	// failed on is not marked dirty, and so not restored on abort
+    	int empty = getNumEmptySlots();
+    	ArrayList<Tuple> batch = new ArrayList<Tuple>(Math.min(empty, 64));
+    	while (batch.size() < empty && it.hasNext()) {
+    		Tuple t = it.next();
+    		if (!td.equals(t.getTupleDesc()))
+    			throw new DbException("tupledesc is mismatch");
+    		batch.add(t);
+    	}
+    	int next = 0;
+    	for (int i = 0; i < this.numSlots && next < batch.size(); i++) {
+    		if (isSlotUsed(i))
+    			continue;
+    		Tuple t = batch.get(next++);
+    		tuples[i] = t;
+    		t.setRecordId(new RecordId(pid, i));
+    		markSlotUsed(i, true);
+    	}
+    	return batch.size();
     }
 
     /**
@@ -418,12 +549,88 @@ public class HeapPage implements Page {
         
         for (int i = 0; i < numSlots; i++){
         	if (isSlotUsed(i)){
-        		usedTuples.add(tuples[i]);
+        		usedTuples.add(tupleAt(i));
         	}
         }
         
         return usedTuples.iterator();
     }
 
+    /**
+     * @return an iterator over the tuples on this page that satisfy all of
+     *         preds. Tuples that were not decoded yet are tested on the page
+     *         data, and only decoded if they pass.
+     */
+    public Iterator<Tuple> iterator(ScanPredicate[] preds) {
+        if (preds.length == 0)
+            return iterator();
+        List<Tuple> matches = new ArrayList<>();
+        slots: for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i))
+                continue;
+            Tuple t = tuples[i];
+            for (ScanPredicate p : preds) {
+                if (t != null ? !p.matches(t) : !p.matches(data, slotOffset(i)))
+                    continue slots;
+            }
+            matches.add(t != null ? t : tupleAt(i));
+        }
+        return matches.iterator();
+    }
+
+    /**
+     * @return the TupleDesc of the given fields of td, in that order
+     */
+    public static TupleDesc project(TupleDesc td, int[] fields) {
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            types[i] = td.getFieldType(fields[i]);
+            names[i] = td.getFieldName(fields[i]);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy all of
+     *         preds, narrowed to the given fields. Only those fields are
+     *         decoded from the page data, and the narrowed tuples are not
+     *         kept by the page.
+     * @param projectedTd the TupleDesc of the narrowed tuples, see
+     *         {@link #project}
+     */
+    public Iterator<Tuple> iterator(ScanPredicate[] preds, int[] fields, TupleDesc projectedTd) {
+        int[] offsets = new int[td.numFields()];
+        for (int j = 1; j < offsets.length; j++)
+            offsets[j] = offsets[j - 1] + td.getFieldType(j - 1).getLen();
+        List<Tuple> matches = new ArrayList<>();
+        slots: for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i))
+                continue;
+            Tuple t = tuples[i];
+            int start = slotOffset(i);
+            for (ScanPredicate p : preds) {
+                if (t != null ? !p.matches(t) : !p.matches(data, start))
+                    continue slots;
+            }
+            Tuple narrow = new Tuple(projectedTd);
+            for (int j = 0; j < fields.length; j++) {
+                int f = fields[j];
+                if (t != null) {
+                    narrow.setField(j, t.getField(f));
+                } else if (td.getFieldType(f) == Type.INT_TYPE) {
+                    narrow.setField(j, new IntField(ScanPredicate.readInt(data, start + offsets[f])));
+                } else {
+                    int len = ScanPredicate.readInt(data, start + offsets[f]);
+                    narrow.setField(j, new StringField(ScanPredicate.readString(data,
+                            start + offsets[f] + 4, len), Type.STRING_LEN));
+                }
+            }
+            narrow.setRecordId(new RecordId(pid, i));
+            matches.add(narrow);
+        }
+        return matches.iterator();
+    }
+
 }
 
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -9,6 +10,9 @@ import java.io.IOException;
 public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Number of tuples handed to the buffer pool at once. */
+    static final int BATCH_SIZE = 1024;
     
     private final TransactionId transactionId;
     private OpIterator child;
@@ -72,7 +76,7 @@ public class Insert extends Operator {
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
@@ -85,17 +89,21 @@ public class Insert extends Operator {
     	
         
     	
+    	// tuples are inserted in batches, which fill whole pages at a time
     	int count = 0;
-    	while(child.hasNext()){
-    		Tuple t = child.next();
-    		
+    	ArrayList<Tuple> batch = new ArrayList<Tuple>(BATCH_SIZE);
+    	while (child.hasNext() || !batch.isEmpty()) {
+    		if (child.hasNext()) {
+    			batch.add(child.next());
+    			if (batch.size() < BATCH_SIZE && child.hasNext())
+    				continue;
+    		}
     		try {
-				Database.getBufferPool().insertTuple(transactionId, tableId, t);
-				count++;
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+    			count += Database.getBufferPool().insertTuples(transactionId, tableId, batch.iterator());
+    		} catch (IOException e) {
+    			throw new DbException("failed to insert tuples: " + e.getMessage());
+    		}
+    		batch.clear();
     	}
     	
     	
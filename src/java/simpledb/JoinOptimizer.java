@@ -259,6 +259,10 @@ public class JoinOptimizer {
     		}
     	}
     	
+    	// a single-table query has nothing to order
+    	if (joins.isEmpty())
+    		return joins;
+    	
     	PlanCache pc = new PlanCache();
     	
     	for (int i = 1; i <= joins.size(); i++){
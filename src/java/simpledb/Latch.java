@@ -0,0 +1,38 @@
+package simpledb;
+
+/**
+ * A Latch protects the in-memory contents of a cached page while a thread
+ * reads or modifies them, and is released as soon as that is done.
+ * <p>
+ * Latches are physical and short: unlike the locks of the LockManager, which
+ * a transaction holds until it completes and which decide what data it may
+ * see, a latch only keeps other threads, such as one writing the page out as
+ * it is evicted, from seeing the page half modified. The transaction must
+ * already hold the matching lock, and no other page may be fetched from the
+ * buffer pool while a latch is held.
+ *
+ * @see BufferPool#latch(PageId, boolean)
+ */
+public class Latch {
+
+    // null when the page was not cached, so no other thread can see it
+    private final Frame frame;
+    private long stamp;
+
+    Latch(Frame frame, boolean exclusive) {
+        this.frame = frame;
+        if (frame != null)
+            stamp = exclusive ? frame.latch.writeLock() : frame.latch.readLock();
+    }
+
+    /**
+     * Releases the latch; it must be released exactly once.
+     */
+    public void release() {
+        if (frame == null || stamp == 0)
+            return;
+        frame.latch.unlock(stamp);
+        stamp = 0;
+        frame.unpin();
+    }
+}
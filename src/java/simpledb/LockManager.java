@@ -1,382 +1,232 @@
 package simpledb;
 
 
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 
 
 /**
- * 
+ *
  * @author tugsuu
  * This class handles the locks of transactions
+ * <p>
+ * The locks of each page are held in a LockState of their own, found in a
+ * concurrent map, so transactions locking different pages never contend:
+ * granting a lock only synchronizes on the state of its page. A transaction
+ * that has to wait does so on that state, and is woken when a lock on the
+ * page is released. Deadlocks are broken by aborting transactions that wait
+ * longer than the time out.
  */
 public class LockManager {
-	
-	
-	
-	private final HashMap<PageId, HashSet<TransactionId>> sharedLocks;
-	private final HashMap<PageId, TransactionId> exclusiveLocks;
-	
-	private final HashMap<TransactionId, HashSet<PageId>> sharedPages;
-	private final HashMap<TransactionId, HashSet<PageId>> exclusivePages;
-	
+
+	/** The transactions holding locks on a page; guarded by its monitor. */
+	private static class LockState {
+		final HashSet<TransactionId> shared = new HashSet<>();
+		TransactionId exclusive;
+		// set once the state is dropped from the map, after which a new one
+		// has to be looked up
+		boolean removed;
+
+		boolean isFree() {
+			return exclusive == null && shared.isEmpty();
+		}
+	}
+
+	private final ConcurrentHashMap<PageId, LockState> locks;
+
+	// the pages each transaction holds locks on, only for releasing them all
+	private final ConcurrentHashMap<TransactionId, Set<PageId>> sharedPages;
+	private final ConcurrentHashMap<TransactionId, Set<PageId>> exclusivePages;
+
 	private final long sleepTime;
-	
+
 	private final long timeOutTime;
-	
-	
+
+
 	public LockManager(long sleepTime, long timeOutTime) {
-		this.exclusiveLocks = new HashMap<PageId, TransactionId>();
-		this.sharedLocks =  new HashMap<PageId, HashSet<TransactionId>>();
-		this.sharedPages = new HashMap<TransactionId, HashSet<PageId>>();
-		this.exclusivePages = new HashMap<TransactionId, HashSet<PageId>>();
-		
+		this.locks = new ConcurrentHashMap<PageId, LockState>();
+		this.sharedPages = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+		this.exclusivePages = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+
 		this.sleepTime = sleepTime;
 		this.timeOutTime = timeOutTime;
 	}
-	
+
 	public LockManager() {
-		
-		this.exclusiveLocks = new HashMap<PageId, TransactionId>();
-		this.sharedLocks =  new HashMap<PageId, HashSet<TransactionId>>();
-		this.sharedPages = new HashMap<TransactionId, HashSet<PageId>>();
-		this.exclusivePages = new HashMap<TransactionId, HashSet<PageId>>();
-		this.sleepTime = 20;
-		this.timeOutTime = 200;
-		
+		this(20, 200);
 	}
-	
-	public synchronized boolean acquireLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
-		
-		if (perm.equals(Permissions.READ_ONLY)) {
-			long start = System.currentTimeMillis();
-			while(!acquireReadLock(tid, pid)) {
-				try {
-					Random rand = new Random();
-					Thread.sleep(this.sleepTime + rand.nextInt(10));
-				} catch (Exception e){
-					e.printStackTrace();
-					System.out.println("Error occured while waiting");
-				}
-				
-				long current = System.currentTimeMillis();
-				if (current - start > this.timeOutTime) {
-					releasePage(tid, pid);
+
+	/**
+	 * Acquires a lock on page pid for transaction tid, waiting for the
+	 * transactions holding conflicting locks to release them.
+	 *
+	 * @throws TransactionAbortedException if the lock is not granted within
+	 *         the time out, which is taken to be a deadlock
+	 */
+	public boolean acquireLock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+
+		if (!perm.equals(Permissions.READ_ONLY) && !perm.equals(Permissions.READ_WRITE)) {
+			throw new IllegalArgumentException("Only read and read write are acceptaple");
+		}
+		boolean exclusive = perm.equals(Permissions.READ_WRITE);
+		long deadline = System.currentTimeMillis() + this.timeOutTime;
+
+		while (true) {
+			LockState state = locks.get(pid);
+			if (state == null)
+				state = locks.computeIfAbsent(pid, k -> new LockState());
+			synchronized (state) {
+				if (state.removed)
+					continue;
+				if (exclusive ? grantExclusive(state, tid, pid) : grantShared(state, tid, pid))
+					return true;
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					release(state, tid, pid);
 					throw new TransactionAbortedException();
 				}
-				
-			}
-			
-			return true;
-			
-		}
-		
-		if (perm.equals(Permissions.READ_WRITE)) {
-			long start = System.currentTimeMillis();
-			while(!acquireReadWriteLock(tid, pid)) {
 				try {
-					Random rand = new Random();
-					Thread.sleep(this.sleepTime + rand.nextInt(10));
-				} catch (Exception e) {
+					// woken by a release, after which the state may have
+					// been dropped, so it is looked up again
+					state.wait(Math.min(remaining, this.sleepTime));
+				} catch (InterruptedException e) {
 					e.printStackTrace();
 					System.out.println("Error occured while waiting");
 				}
-				
-				long current = System.currentTimeMillis();
-				if (current - start > this.timeOutTime) {
-					releasePage(tid, pid);
-					throw new TransactionAbortedException();
-				}
 			}
-			return true;
-			
-		}
-		
-		else {
-			throw new IllegalArgumentException("Only read and read write are acceptaple");
 		}
-		
-		
 	}
-	
-	private boolean acquireReadLock(TransactionId tid, PageId pid) {
-		
-		
-		
-		
-		// if doesn't have the exclusive lock yet
-		if (!exclusiveLocks.containsKey(pid)) {
-			
-			if (sharedLocks.containsKey(pid)) {
-				sharedLocks.get(pid).add(tid);
-				
-			}
-			
-			if (!sharedLocks.containsKey(pid)) {
-				HashSet<TransactionId> tids = new HashSet<>();
-				tids.add(tid);
-				sharedLocks.put(pid, tids);
-				
-			}
-			
-			if (sharedPages.containsKey(tid)) {
-				sharedPages.get(tid).add(pid);
-			}
-			
-			if (!sharedPages.containsKey(tid)) {
-				HashSet<PageId> pids = new HashSet<>();
-				pids.add(pid);
-				sharedPages.put(tid, pids);
-				
-			}
-			
-			return true;
-			
-		} 
-		
-		// if it has write lock
-		else {
-			TransactionId exclusiveTransaction = exclusiveLocks.get(pid);
-			
-			if (exclusiveTransaction != null && exclusiveTransaction.equals(tid)) {
-				return true;
-			}
-			
-			else {
+
+	private boolean grantShared(LockState state, TransactionId tid, PageId pid) {
+		if (state.exclusive != null)
+			return state.exclusive.equals(tid);
+		if (state.shared.add(tid) && tid != null)
+			sharedPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+		return true;
+	}
+
+	private boolean grantExclusive(LockState state, TransactionId tid, PageId pid) {
+		if (state.exclusive != null)
+			return state.exclusive.equals(tid);
+		if (!state.shared.isEmpty()) {
+			// only an upgrade of the sole shared lock
+			if (state.shared.size() != 1 || !state.shared.contains(tid))
 				return false;
+			state.shared.remove(tid);
+			if (tid != null) {
+				Set<PageId> pids = sharedPages.get(tid);
+				if (pids != null)
+					pids.remove(pid);
 			}
 		}
-		
-		
-		
-		
-		
+		state.exclusive = tid == null ? new TransactionId() : tid;
+		exclusivePages.computeIfAbsent(state.exclusive, k -> ConcurrentHashMap.newKeySet()).add(pid);
+		return true;
 	}
-	
-	private boolean acquireReadWriteLock(TransactionId tid, PageId pid) {
-		
-		TransactionId notNullTd;
 
-		if (tid == null) {
-			notNullTd = new TransactionId();
-		}
-		
-		else {
-			notNullTd = tid;
-		}
-		
-		if (exclusiveLocks.containsKey(pid)) {
-			if (exclusiveLocks.get(pid).equals(notNullTd)) {
-				
-				return true;
-			}
+	public boolean holdsLock(TransactionId tid, PageId pid) {
+
+		LockState state = locks.get(pid);
+		if (state == null)
 			return false;
+		synchronized (state) {
+			return state.shared.contains(tid) || (state.exclusive != null && state.exclusive.equals(tid));
 		}
-		
-		else {
-			if (sharedLocks.containsKey(pid)) {
-				
-				
-				HashSet<TransactionId> tids = sharedLocks.get(pid);
-				if (tids.contains(tid)) {
-					
-					if (tids.size() == 1) {
-						
-						exclusiveLocks.put(pid, notNullTd);
-						if (exclusivePages.containsKey(tid)) {
-							exclusivePages.get(tid).add(pid);
-						}
-						
-						else {
-							HashSet<PageId> pids = new HashSet<>();
-							pids.add(pid);
-							exclusivePages.put(notNullTd, pids);
-						}
-						
-						sharedLocks.get(pid).remove(notNullTd);
-						
-						if (sharedLocks.get(pid).size() == 0) {
-							sharedLocks.remove(pid);
-						}
-						
-						
-						if (sharedPages.containsKey(notNullTd)) {
-							sharedPages.get(notNullTd).remove(pid);
-							if (sharedPages.get(notNullTd).size() == 0) {
-								sharedPages.remove(notNullTd);
-							}
-						}
-						
-						
-						
-						return true;
-					}
-					
-					else {
-						
-						
-						return false;
-					}
-					
+	}
+
+	/**
+	 * Releases the locks of tid on pid; those of every transaction on pid if
+	 * tid is null, or those of tid on every page if pid is null.
+	 */
+	public void releasePage(TransactionId tid, PageId pid) {
+
+		if (pid != null) {
+			LockState state = locks.get(pid);
+			if (state == null)
+				return;
+			synchronized (state) {
+				if (tid != null) {
+					release(state, tid, pid);
 				} else {
-					
-					return false;
-				}
-				
-			}
-			
-			else {
-				exclusiveLocks.put(pid, notNullTd);
-				
-				if (exclusivePages.containsKey(notNullTd)) {
-					exclusivePages.get(notNullTd).add(pid);
-				}
-				
-				else {
-					HashSet<PageId> pids = new HashSet<PageId>();
-					pids.add(pid);
-					exclusivePages.put(notNullTd, pids);
+					for (TransactionId transaction : state.shared)
+						forget(sharedPages, transaction, pid);
+					state.shared.clear();
+					if (state.exclusive != null)
+						forget(exclusivePages, state.exclusive, pid);
+					state.exclusive = null;
+					drop(state, pid);
 				}
-				
-				
-				
-				return true;
 			}
 		}
-		
-		
-	}
-	
-
-	
-	
-	public synchronized boolean holdsLock(TransactionId tid, PageId pid) {
-		
-		if (sharedLocks.containsKey(pid) && sharedLocks.get(pid).contains(tid)) {
-			return true;
-		}
-		
-		if (exclusiveLocks.containsKey(pid) && exclusiveLocks.get(pid).equals(tid)) {
-			return true;
+
+		else if (tid != null) {
+			releaseAll(tid, sharedPages.remove(tid));
+			releaseAll(tid, exclusivePages.remove(tid));
 		}
-		
-		return false;
+
 	}
-	
-	public synchronized void releasePage(TransactionId tid, PageId pid) {
-		
-		if (tid != null && pid != null) {
-			
-			if (sharedPages.containsKey(tid)) {
-				sharedPages.get(tid).remove(pid);
-			}
-			
-			if (exclusivePages.containsKey(tid)) {
-				exclusivePages.get(tid).remove(pid);
-			}
-			
-			if (sharedLocks.containsKey(pid)) {
-				sharedLocks.get(pid).remove(tid);
-			}
-			
-			if (exclusiveLocks.containsKey(pid)) {
-				exclusiveLocks.remove(pid);
+
+	private void releaseAll(TransactionId tid, Set<PageId> pids) {
+		if (pids == null)
+			return;
+		for (PageId pageID : pids) {
+			LockState state = locks.get(pageID);
+			if (state == null)
+				continue;
+			synchronized (state) {
+				release(state, tid, pageID);
 			}
-			
 		}
-		
-		else if (tid == null) {
-			if (sharedLocks.containsKey(pid)) {
-				
-				HashSet<TransactionId> tids = sharedLocks.get(pid);
-				
-				for (TransactionId transaction: tids) {
-					if (sharedPages.containsKey(transaction)) {
-						sharedPages.get(transaction).remove(pid);
-						if (sharedPages.get(transaction).size() == 0) {
-							sharedPages.remove(transaction);
-						}
-					}
-				}
-				
-				sharedLocks.remove(pid);
-			}
-			
-			if (exclusiveLocks.containsKey(pid)) {
-				TransactionId transaction = exclusiveLocks.get(pid);
-				
-				if (exclusivePages.containsKey(transaction)) {
-					exclusivePages.get(transaction).remove(pid);
-					if (exclusivePages.get(transaction).size() == 0) {
-						exclusivePages.remove(transaction);
-					}
-				}
-				
-				exclusiveLocks.remove(pid);
-				
-			}
+	}
+
+	/** Releases the locks of tid on pid; the caller holds the state's monitor. */
+	private void release(LockState state, TransactionId tid, PageId pid) {
+		if (state.shared.remove(tid))
+			forget(sharedPages, tid, pid);
+		if (state.exclusive != null && state.exclusive.equals(tid)) {
+			state.exclusive = null;
+			forget(exclusivePages, tid, pid);
 		}
-		
-		else if (pid == null) {
-			
-			
-			
-			if (sharedPages.containsKey(tid)) {
-				HashSet<PageId> pids = sharedPages.get(tid);
-				
-				for (PageId pageID: pids) {
-					if (sharedLocks.containsKey(pageID)) {
-						sharedLocks.get(pageID).remove(tid);
-						
-						if (sharedLocks.get(pageID).size() == 0) {
-							
-							sharedLocks.remove(pageID);
-						}
-					}
-				}
-				
-				sharedPages.remove(tid);
-				
-				
-			}
-			
-			if (exclusivePages.containsKey(tid)) {
-				HashSet<PageId> pids = exclusivePages.get(tid);
-				
-				for (PageId pageID: pids) {
-					if (exclusiveLocks.containsKey(pageID)) {
-						exclusiveLocks.remove(pageID);
-					}
-				}
-				
-				exclusivePages.remove(tid);
-			}
+		drop(state, pid);
+	}
+
+	private void drop(LockState state, PageId pid) {
+		state.notifyAll();
+		if (state.isFree()) {
+			state.removed = true;
+			locks.remove(pid, state);
 		}
-		
+	}
 
-		
+	private static void forget(ConcurrentHashMap<TransactionId, Set<PageId>> pages,
+			TransactionId tid, PageId pid) {
+		if (tid == null)
+			return;
+		Set<PageId> pids = pages.get(tid);
+		if (pids != null)
+			pids.remove(pid);
 	}
-	
 
-	public synchronized Set<PageId> getDirtiedPages(TransactionId tid) {
-		
+
+	public Set<PageId> getDirtiedPages(TransactionId tid) {
+
 		Set<PageId> result = new HashSet<>();
-		
-		if (exclusivePages.containsKey(tid)) {
-			result.addAll(exclusivePages.get(tid));
+
+		Set<PageId> pids = exclusivePages.get(tid);
+		if (pids != null) {
+			result.addAll(pids);
 		}
-		
-		
-		
+
+
+
 		return result;
 	}
-	
-	
 
-	
+
+
+
 
 }
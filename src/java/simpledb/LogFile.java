@@ -265,7 +265,8 @@ public class LogFile {
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+            // by its parameters, as pages may have more than one constructor
+            Constructor<?> pageConst = pageClass.getDeclaredConstructor(idClass, byte[].class);
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
@@ -275,12 +276,15 @@ public class LogFile {
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
             e.printStackTrace();
             throw new IOException();
+        } catch (NoSuchMethodException e) {
+            e.printStackTrace();
+            throw new IOException();
         } catch (InstantiationException e) {
             e.printStackTrace();
             throw new IOException();
@@ -454,8 +458,15 @@ public class LogFile {
     }
     
 	private void rollback(long transactionId) throws IOException {
-		long firstLogRecord = this.tidToFirstLogRecord.get(transactionId);
-		this.raf.seek(firstLogRecord);
+		// a transaction that never logged its start, e.g. one that used the
+		// buffer pool directly, may have update records anywhere
+		Long firstLogRecord = this.tidToFirstLogRecord.get(transactionId);
+		long offset = this.raf.getFilePointer();
+		this.raf.seek(firstLogRecord != null ? firstLogRecord : LONG_SIZE);
+		// a page written more than once, e.g. evicted, read back and evicted
+		// again, is restored to its first before image: the later ones may
+		// hold the transaction's own updates
+		Set<PageId> restored = new HashSet<>();
 		
 		while (true) {
 			try {
@@ -473,7 +484,7 @@ public class LogFile {
 					Page after = this.readPageData(raf);
 					
  
-					if (currentTid == transactionId) {
+					if (currentTid == transactionId && restored.add(before.getId())) {
 						PageId beforeId = before.getId();
 						
 						DbFile dbFile = Database.getCatalog().getDatabaseFile(beforeId.getTableId());
@@ -504,6 +515,7 @@ public class LogFile {
 			}
 			
 		}
+		this.raf.seek(offset);
 
 	}
 
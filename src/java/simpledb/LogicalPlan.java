@@ -1,6 +1,8 @@
 package simpledb;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Vector;
+import java.util.HashSet;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.io.File;
@@ -25,16 +27,23 @@ public class LogicalPlan {
     private Vector<LogicalJoinNode> joins;
     private Vector<LogicalScanNode> tables;
     private Vector<LogicalFilterNode> filters;
+    private Vector<LogicalSemiJoinNode> semiJoins;
     private HashMap<String, OpIterator> subplanMap;
     private HashMap<String,Integer> tableMap;
 
     private Vector<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private Vector<String> groupByFields;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> aggOps;
+    private Vector<String> aggFields;
+    private Vector<Boolean> aggDistincts;
+    private boolean distinct = false;
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields;
+    private Vector<Boolean> oByAscs;
+    private int limit = -1;
+    private int offset = 0;
+    private boolean parallel = true;
     private String query;
 //    private Query owner;
 
@@ -42,11 +51,18 @@ public class LogicalPlan {
     public LogicalPlan() {
         joins = new Vector<LogicalJoinNode>();
         filters = new Vector<LogicalFilterNode>();
+        semiJoins = new Vector<LogicalSemiJoinNode>();
         tables = new Vector<LogicalScanNode>();
         subplanMap = new HashMap<String, OpIterator>();
         tableMap = new HashMap<String,Integer>();
 
         selectList = new Vector<LogicalSelectListNode>();
+        groupByFields = new Vector<String>();
+        aggOps = new Vector<String>();
+        aggFields = new Vector<String>();
+        aggDistincts = new Vector<Boolean>();
+        oByFields = new Vector<String>();
+        oByAscs = new Vector<Boolean>();
         this.query = "";
     }
 
@@ -156,6 +172,31 @@ public class LogicalPlan {
         joins.addElement(lj);
     }
 
+    /** Add a semi-join (or anti-join) between a field and a subquery, which
+     *  keeps the tuples whose field is (or is not) in the result of the
+     *  subquery. The subquery is executed once, however many tuples the
+     *  query probes it with.
+     *  @param field The name of the field; this can be a fully qualified
+     *  name or an unqualified unique field name, or null to only test that
+     *  the subquery returns some tuple (an uncorrelated EXISTS)
+     *  @param subplan the subquery -- the join field of the subquery is the
+     *    first field in the result set of the query
+     *  @param anti true for NOT IN and NOT EXISTS
+     *  @throws ParsingException if the field is ambiguous, or is not in one
+     *      of the tables added via {@link #addScan}
+     */
+    public void addSemiJoin(String field, OpIterator subplan, boolean anti) throws ParsingException {
+        String table = null;
+        if (field != null) {
+            field = disambiguateName(field);
+            table = field.split("[.]")[0];
+        }
+        LogicalSemiJoinNode sj = new LogicalSemiJoinNode(table, field, subplan, anti);
+        System.out.println("Added " + (anti ? "anti" : "semi") + "-join on "
+                + (field == null ? "subquery" : field));
+        semiJoins.addElement(sj);
+    }
+
     /** Add a scan to the plan. One scan node needs to be added for each alias of a table
         accessed by the plan.
         @param table the id of the table accessed by the plan (can be resolved to a DbFile using {@link Catalog#getDatabaseFile}
@@ -186,36 +227,185 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  May be called several times; all aggregates are
+        computed in a single pass, grouped by every field added via
+        this method or {@link #addGroupByField}.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield the field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
+        addAggregate(op, afield, gfield, false);
+    }
+
+    /** Add an aggregate, as {@link #addAggregate(String, String, String)};
+        if distinct is true, the aggregate only considers the distinct
+        values of the field within each group, e.g. COUNT(DISTINCT f).
+        All DISTINCT aggregates of a query must be over the same field,
+        and cannot be mixed with plain aggregates.
+     * @throws ParsingException 
+    */
+    public void addAggregate(String op, String afield, String gfield, boolean distinct) throws ParsingException {
         afield=disambiguateName(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupByField(gfield);
+        aggOps.addElement(op);
+        aggFields.addElement(afield);
+        aggDistincts.addElement(distinct);
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Remove duplicate tuples from the result of the query, as for
+        SELECT DISTINCT.
+    */
+    public void setDistinct(boolean distinct) {
+        this.distinct = distinct;
+    }
+
+    /** Add a field to the GROUP BY list of the query.  Adding the same
+        field twice has no effect.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupByField(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.addElement(gfield);
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  May be
+        called several times; fields added later break ties among earlier ones.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.addElement(field);
+        oByAscs.addElement(asc);
         hasOrderBy = true;
     }
 
+    /** Add a LIMIT / OFFSET clause to the query: only limit result tuples are
+        returned, after skipping the first offset ones.
+        @param limit the maximum number of tuples to return
+        @param offset the number of leading tuples to skip
+     * @throws ParsingException if either value is negative
+    */
+    public void setLimit(int limit, int offset) throws ParsingException {
+        if (limit < 0 || offset < 0)
+            throw new ParsingException("LIMIT and OFFSET must not be negative");
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /** @return true if a LIMIT clause was added via {@link #setLimit} */
+    public boolean hasLimit() {
+        return limit >= 0;
+    }
+
+    /** Allow or forbid {@link #physicalPlan} to split scans of large tables
+        over worker threads with {@link Exchange} operators, which it only
+        does when {@link Exchange#getParallelism} is above 1. Plans that
+        modify the table they read, or that are rewound repeatedly as the
+        inner of a join, should not be parallel.
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /** Narrow every sequential scan to the fields of its table that the
+        select list, joins, grouping and ordering reference, so that the
+        scans decode nothing else. Predicates pushed into a scan are
+        evaluated on the page data and need no field of their own.
+     */
+    private void projectScans() {
+        HashSet<String> needed = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*"))
+                return;
+            needed.add(si.fname);
+        }
+        needed.addAll(aggFields);
+        needed.addAll(groupByFields);
+        needed.addAll(oByFields);
+        for (LogicalJoinNode lj : joins) {
+            needed.add(lj.f1QuantifiedName);
+            needed.add(lj.f2QuantifiedName);
+        }
+        for (LogicalSemiJoinNode sj : semiJoins)
+            needed.add(sj.fieldQuantifiedName);
+        for (OpIterator subplan : subplanMap.values()) {
+            if (!(subplan instanceof SeqScan))
+                continue;
+            SeqScan scan = (SeqScan) subplan;
+            TupleDesc td = scan.getTupleDesc();
+            Vector<Integer> fields = new Vector<Integer>();
+            for (int i = 0; i < td.numFields(); i++) {
+                if (needed.contains(td.getFieldName(i)))
+                    fields.add(i);
+            }
+            if (fields.isEmpty() || fields.size() == td.numFields())
+                continue;
+            int[] projection = new int[fields.size()];
+            for (int i = 0; i < projection.length; i++)
+                projection[i] = fields.elementAt(i);
+            scan.setProjection(projection);
+        }
+    }
+
+    /** Split the scan of the only table of a query, and the filters over it,
+        into fragments over page ranges of the table that can run on worker
+        threads.
+
+        @return the fragments, or null if the query joins several tables or
+        the table is not worth splitting
+     */
+    private OpIterator[] partitionScan(TransactionId t, OpIterator node, boolean indexOrdered) {
+        if (!parallel || indexOrdered || tables.size() != 1 || !joins.isEmpty())
+            return null;
+        Vector<Predicate> preds = new Vector<Predicate>();
+        while (node instanceof Filter) {
+            preds.add(((Filter) node).getPredicate());
+            node = ((Filter) node).getChildren()[0];
+        }
+        if (!(node instanceof SeqScan))
+            return null;
+        SeqScan scan = (SeqScan) node;
+        SeqScan[] scans = Exchange.partitionScan(t, scan.getTableId(), tables.elementAt(0).alias);
+        if (scans == null)
+            return null;
+        OpIterator[] fragments = new OpIterator[scans.length];
+        for (int i = 0; i < scans.length; i++) {
+            for (Predicate p : scan.getPredicates())
+                scans[i].addPredicate(p);
+            scans[i].setProjection(scan.getProjection());
+            OpIterator fragment = scans[i];
+            for (int j = preds.size() - 1; j >= 0; j--)
+                fragment = new Filter(preds.elementAt(j), fragment);
+            fragments[i] = fragment;
+        }
+        return fragments;
+    }
+
+    /** Return true if this plan can be answered by scanning the B+ tree of
+        its only table in key order and stopping after LIMIT tuples, i.e. the
+        query orders by the key field of a B+ tree table, has a LIMIT, and
+        has no joins, aggregates or DISTINCT, which may reorder tuples it
+        spills.
+     */
+    private boolean canUseIndexOrder(LogicalScanNode table) {
+        if (!hasLimit() || !hasOrderBy || oByFields.size() != 1 || hasAgg || distinct
+                || tables.size() != 1 || !joins.isEmpty())
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(table.t);
+        if (!(f instanceof BTreeFile))
+            return false;
+        String keyName = table.alias + "." + f.getTupleDesc().getFieldName(((BTreeFile) f).keyField());
+        return keyName.equals(oByFields.elementAt(0));
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -290,11 +480,24 @@ public class LogicalPlan {
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
 
+        boolean indexOrdered = false;
+
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            OpIterator ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                int tableId = Database.getCatalog().getDatabaseFile(table.t).getId();
+                if (canUseIndexOrder(table)) {
+                    // the index already returns tuples in the requested order, so
+                    // the scan can stop as soon as LIMIT tuples have been produced
+                    indexOrdered = true;
+                    if (oByAscs.elementAt(0))
+                        ss = new BTreeScan(t, tableId, table.alias, null);
+                    else
+                        ss = new BTreeReverseScan(t, tableId, table.alias, null);
+                } else {
+                    ss = new SeqScan(t, tableId, table.alias);
+                }
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -334,7 +537,13 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (subplan instanceof SeqScan) {
+                // evaluated by the scan on the page data, before the tuples
+                // that fail it are materialized
+                ((SeqScan) subplan).addPredicate(p);
+            } else {
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            }
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -344,6 +553,29 @@ public class LogicalPlan {
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
+        projectScans();
+
+        // semi-joins only drop tuples of their table, like filters, so they
+        // are applied before the table is joined with any other
+        for (LogicalSemiJoinNode sj : semiJoins) {
+            String alias = sj.tableAlias == null ? tables.elementAt(0).alias : sj.tableAlias;
+            OpIterator subplan = subplanMap.get(alias);
+            if (subplan == null)
+                throw new ParsingException("Unknown table in WHERE clause " + alias);
+            if (sj.subPlan == null)
+                throw new ParsingException("Invalid subquery.");
+            JoinPredicate p = null;
+            if (sj.fieldQuantifiedName != null) {
+                try {
+                    p = new JoinPredicate(subplan.getTupleDesc().fieldNameToIndex(sj.fieldQuantifiedName),
+                            Predicate.Op.EQUALS, 0);
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + sj.fieldQuantifiedName);
+                }
+            }
+            subplanMap.put(alias, new HashSemiJoin(p, subplan, sj.subPlan, sj.anti));
+        }
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
@@ -408,13 +640,25 @@ public class LogicalPlan {
         
         OpIterator node =  (OpIterator)(subplanMap.entrySet().iterator().next().getValue());
 
+        // an ungrouped aggregate parallelizes its own scan, see Aggregate
+        OpIterator[] fragments = null;
+        if (!hasAgg || !groupByFields.isEmpty())
+            fragments = partitionScan(t, node, indexOrdered);
+
         //walk the select list, to determine order in which to project output fields
         ArrayList<Integer> outFields = new ArrayList<Integer>();
         ArrayList<Type> outTypes = new ArrayList<Type>();
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                int aggIdx = -1;
+                for (int j = 0; j < aggOps.size() && aggIdx < 0; j++) {
+                    if (aggOps.elementAt(j).equals(si.aggOp) && aggFields.elementAt(j).equals(si.fname))
+                        aggIdx = j;
+                }
+                if (aggIdx < 0)
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the plan");
+                outFields.add(groupByFields.size() + aggIdx);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -426,16 +670,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int gIdx = groupByFields.indexOf(si.fname);
+                    if (gIdx < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(gIdx);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -460,22 +705,75 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            OpIterator aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggOps.size()];
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggFields.elementAt(i));
+                    aops[i] = getAggOp(aggOps.elementAt(i));
+                }
+                int[] gfields = new int[groupByFields.size()];
+                for (int i = 0; i < gfields.length; i++)
+                    gfields[i] = td.fieldNameToIndex(groupByFields.elementAt(i));
+                // DISTINCT aggregates see each value once per group
+                int[] distinctKey = null;
+                if (aggDistincts.contains(true)) {
+                    for (int i = 0; i < afields.length; i++) {
+                        if (!aggDistincts.elementAt(i) || afields[i] != afields[0])
+                            throw new ParsingException("DISTINCT aggregates must all be over the same field, and cannot be mixed with other aggregates");
+                    }
+                    distinctKey = Arrays.copyOf(gfields, gfields.length + 1);
+                    distinctKey[gfields.length] = afields[0];
+                }
+                if (fragments != null) {
+                    // repartition the scan on the group by fields, so that
+                    // each worker aggregates a disjoint set of groups
+                    Exchange[] parts = Exchange.repartition(fragments, gfields, fragments.length);
+                    OpIterator[] partials = new OpIterator[parts.length];
+                    for (int i = 0; i < parts.length; i++) {
+                        OpIterator input = distinctKey == null ? parts[i] : new Distinct(parts[i], distinctKey);
+                        partials[i] = new Aggregate(input, afields, gfields, aops);
+                    }
+                    aggNode = new Exchange(partials);
+                } else {
+                    OpIterator input = distinctKey == null ? node : new Distinct(node, distinctKey);
+                    aggNode = new Aggregate(input, afields, gfields, aops);
+                }
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
             node = aggNode;
+        } else if (fragments != null) {
+            node = new Exchange(fragments);
+        }
+
+        if (distinct) {
+            int[] keyFields = new int[outFields.size()];
+            for (int i = 0; i < keyFields.length; i++)
+                keyFields[i] = outFields.get(i);
+            node = new Distinct(node, keyFields);
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (hasOrderBy && !indexOrdered) {
+            int[] oByIdx = new int[oByFields.size()];
+            boolean[] oByAsc = new boolean[oByFields.size()];
+            for (int i = 0; i < oByIdx.length; i++) {
+                try {
+                    oByIdx[i] = node.getTupleDesc().fieldNameToIndex(oByFields.elementAt(i));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + oByFields.elementAt(i) + " in ORDER BY");
+                }
+                oByAsc[i] = oByAscs.elementAt(i);
+            }
+            if (hasLimit())
+                node = new TopN(oByIdx, oByAsc, limit, offset, node);
+            else
+                node = new OrderBy(oByIdx, oByAsc, node);
+        } else if (hasLimit()) {
+            node = new Limit(limit, offset, node);
         }
 
         return new Project(outFields, outTypes, node);
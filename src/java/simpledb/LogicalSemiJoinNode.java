@@ -0,0 +1,36 @@
+package simpledb;
+
+/** A LogicalSemiJoinNode represents an IN, EXISTS, NOT IN or NOT EXISTS
+    subquery in the WHERE clause of a query, decorrelated into a semi-join
+    (or anti-join) of a table with the plan of the subquery.
+    <p>
+    The join is of the form t.f = s.0
+    <p>
+    Where t is a table, f is a field in t, and s.0 is the first field of the
+    result of the subquery s. An EXISTS subquery that does not refer to the
+    outer query has no field; it only tests that s is not empty.
+*/
+public class LogicalSemiJoinNode {
+    /** The alias of the table (or the name if no alias) the join filters, or
+        null if the subquery does not refer to a table of the query */
+    public String tableAlias;
+
+    /** The field from t which is joined, or null */
+    public String fieldQuantifiedName;
+
+    /** The plan of the subquery */
+    public OpIterator subPlan;
+
+    /** True for NOT IN and NOT EXISTS */
+    public boolean anti;
+
+    public LogicalSemiJoinNode(String table, String field, OpIterator sp, boolean anti) {
+        tableAlias = table;
+        if (field != null) {
+            String[] tmps = field.split("[.]");
+            fieldQuantifiedName = tableAlias + "." + tmps[tmps.length - 1];
+        }
+        subPlan = sp;
+        this.anti = anti;
+    }
+}
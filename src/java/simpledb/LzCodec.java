@@ -0,0 +1,148 @@
+package simpledb;
+
+/**
+ * LzCodec is a byte-oriented LZ77 compressor in the style of LZ4, fast
+ * enough to run whenever a page moves between memory and disk, and good at
+ * what pages are mostly made of: runs of zeros in empty slots and padded
+ * strings, and fields repeated from tuple to tuple.
+ * <p>
+ * The compressed data is a sequence of tokens, each a byte holding the number
+ * of literal bytes that follow (high nibble) and the length of the match
+ * that comes after them, less {@link #MIN_MATCH} (low nibble); a nibble of 15
+ * is continued by bytes that are added to it, up to the first one below 255.
+ * The literals are followed by the distance back to the match, in two bytes,
+ * little endian. The last token has literals only.
+ */
+public class LzCodec {
+
+    /** The shortest match that is encoded as one. */
+    public static final int MIN_MATCH = 4;
+
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 12;
+
+    private LzCodec() {
+    }
+
+    /**
+     * @return the largest number of bytes length bytes may compress to
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses the first length bytes of src into dst.
+     *
+     * @param dst a buffer of at least {@link #maxCompressedLength} bytes
+     * @return the number of bytes of dst used
+     */
+    public static int compress(byte[] src, int length, byte[] dst) {
+        // positions of the last 4-byte sequences seen, plus one
+        int[] table = new int[1 << HASH_BITS];
+        int anchor = 0;
+        int ip = 0;
+        int op = 0;
+        while (ip + MIN_MATCH <= length) {
+            int sequence = readInt(src, ip);
+            int h = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[h] - 1;
+            table[h] = ip + 1;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < length && src[ref + matchLength] == src[ip + matchLength])
+                matchLength++;
+
+            int literals = ip - anchor;
+            int token = op++;
+            dst[token] = (byte) ((Math.min(literals, 15) << 4) | Math.min(matchLength - MIN_MATCH, 15));
+            op = writeLength(dst, op, literals);
+            System.arraycopy(src, anchor, dst, op, literals);
+            op += literals;
+            dst[op++] = (byte) (ip - ref);
+            dst[op++] = (byte) ((ip - ref) >>> 8);
+            op = writeLength(dst, op, matchLength - MIN_MATCH);
+
+            ip += matchLength;
+            anchor = ip;
+        }
+        int literals = length - anchor;
+        dst[op++] = (byte) (Math.min(literals, 15) << 4);
+        op = writeLength(dst, op, literals);
+        System.arraycopy(src, anchor, dst, op, literals);
+        return op + literals;
+    }
+
+    /**
+     * Decompresses the first length bytes of src, as written by
+     * {@link #compress}, into dst.
+     *
+     * @return the number of bytes of dst written
+     * @throws IllegalArgumentException if src is not compressed data that
+     *         fits in dst
+     */
+    public static int decompress(byte[] src, int length, byte[] dst) {
+        int ip = 0;
+        int op = 0;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= length)
+                    break;
+
+                int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = op - offset;
+                if (offset == 0 || ref < 0)
+                    throw new IllegalArgumentException("corrupt compressed data at " + ip);
+                // byte by byte, as the match may overlap what it produces
+                for (int i = 0; i < matchLength; i++)
+                    dst[op + i] = dst[ref + i];
+                op += matchLength;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("corrupt compressed data at " + ip);
+        }
+        return op;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        if (length < 15)
+            return op;
+        length -= 15;
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16
+                | (b[i + 3] & 0xFF) << 24;
+    }
+}
@@ -4,17 +4,26 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * Sorting is done with an {@link ExternalSorter}, so inputs larger than the
+ * sort memory budget are spilled to disk as sorted runs and merged, rather
+ * than being held in memory all at once.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of bytes of tuples an OrderBy buffers before spilling. */
+    public static final long DEFAULT_SORT_MEMORY = 16L * 1024 * 1024;
+
+    private static long sortMemory = DEFAULT_SORT_MEMORY;
+
     private OpIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
+    private transient ExternalSorter sorter;
+    private transient Iterator<Tuple> it;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,28 +36,73 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node sorting on several fields; ties on the
+     * first field are broken by the second, and so on.
+     * 
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param ascs
+     *            for each field, true if its sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] ascs, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length)
+            throw new IllegalArgumentException("need one direction per sort field");
         this.child = child;
-        td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+    }
+
+    public static long getSortMemory() {
+        return sortMemory;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setSortMemory(long bytes) {
+        OrderBy.sortMemory = bytes;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetSortMemory() {
+        OrderBy.sortMemory = DEFAULT_SORT_MEMORY;
     }
-    
+
     public boolean isASC()
     {
-	return this.asc;
+        return this.ascs[0];
     }
-    
+
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
-    
+
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+        return td.getFieldName(orderByFields[0]);
     }
-    
+
+    /**
+     * @return all sort fields, most significant first
+     */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /**
+     * @return the sort direction of each field in {@link #getOrderByFields}
+     */
+    public boolean[] getAscs() {
+        return ascs.clone();
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -56,21 +110,28 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
+        // generate sorted runs within the memory budget, spilling as needed
+        sorter = new ExternalSorter(td, new TupleComparator(orderByFields, ascs), sortMemory);
         while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+            sorter.add(child.next());
+        sorter.finish();
+        it = sorter.iterator();
         super.open();
     }
 
     public void close() {
         super.close();
         it = null;
+        if (sorter != null) {
+            sorter.close();
+            sorter = null;
+        }
+        child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        // replay the sorted output; the child is not read again
+        it = sorter.iterator();
     }
 
     /**
@@ -99,25 +160,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
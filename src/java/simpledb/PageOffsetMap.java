@@ -0,0 +1,242 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * PageOffsetMap records where each page of a {@link CompressedHeapFile} is
+ * stored in its data file: the offset and length of the page data, and the
+ * capacity of the slot it is in, which is rounded up to {@link #SLOT_UNIT}.
+ * <p>
+ * The map is stored next to the data file, {@link #ENTRY_SIZE} bytes per
+ * page. Unlike the {@link FreeSpaceMap} it is not a hint: the pages of the
+ * file are the pages of the map. A page of length 0 has never been written
+ * and is empty. The unused space between the slots is not stored but found
+ * again when the map is loaded, and handed out to the pages written next.
+ * <p>
+ * A page is never written over its own slot: it is written to a free one,
+ * and only then does its entry point there, so that the entry always
+ * describes bytes that are on disk whole, even after a crash between the
+ * two writes.
+ */
+public class PageOffsetMap {
+
+    /** The number of bytes of the map file per page. */
+    public static final int ENTRY_SIZE = 16;
+
+    /** Slots are allocated in multiples of this many bytes. */
+    public static final int SLOT_UNIT = 256;
+
+    private final File file;
+    private int size;
+    private long[] offsets = new long[16];
+    private int[] lengths = new int[16];
+    private int[] capacities = new int[16];
+    // the unused ranges before the end of the slots, by offset
+    private final TreeMap<Long, Long> holes = new TreeMap<>();
+    private long end;
+
+    /**
+     * Loads the map stored in file, if it exists.
+     *
+     * @param file
+     *            the file the map is stored in
+     * @throws IOException if the map exists but cannot be read
+     */
+    public PageOffsetMap(File file) throws IOException {
+        this.file = file;
+        if (!file.exists())
+            return;
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            int pages = (int) (file.length() / ENTRY_SIZE);
+            for (int pgNo = 0; pgNo < pages; pgNo++) {
+                grow(pgNo + 1);
+                offsets[pgNo] = dis.readLong();
+                lengths[pgNo] = dis.readInt();
+                capacities[pgNo] = dis.readInt();
+            }
+            size = pages;
+        } finally {
+            dis.close();
+        }
+        findHoles();
+    }
+
+    /**
+     * @return the file the map is stored in
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of pages in the map
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the offset in the data file of page pgNo
+     */
+    public synchronized long getOffset(int pgNo) {
+        return offsets[pgNo];
+    }
+
+    /**
+     * @return the number of bytes of data of page pgNo, 0 if it is empty
+     */
+    public synchronized int getLength(int pgNo) {
+        return pgNo < size ? lengths[pgNo] : 0;
+    }
+
+    /**
+     * @return the number of bytes of the data file in use or free for reuse
+     */
+    public synchronized long getEnd() {
+        return end;
+    }
+
+    /**
+     * Adds an empty page to the end of the map.
+     *
+     * @return the number of the new page
+     */
+    public synchronized int add() throws IOException {
+        int pgNo = size;
+        grow(pgNo + 1);
+        size = pgNo + 1;
+        write(pgNo);
+        return pgNo;
+    }
+
+    /**
+     * Records that the file holds pages pages of pageSize bytes, one after
+     * the other, as a data file not written through a map does. Their slots
+     * are exactly their size.
+     */
+    public synchronized void setContiguous(int pages, int pageSize) throws IOException {
+        grow(pages);
+        ByteBuffer entries = ByteBuffer.allocate(pages * ENTRY_SIZE);
+        for (int pgNo = 0; pgNo < pages; pgNo++) {
+            offsets[pgNo] = (long) pgNo * pageSize;
+            lengths[pgNo] = capacities[pgNo] = pageSize;
+            entries.putLong(offsets[pgNo]).putInt(pageSize).putInt(pageSize);
+        }
+        size = pages;
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(entries.array());
+        } finally {
+            out.close();
+        }
+        findHoles();
+    }
+
+    /**
+     * Returns where length bytes of a page may be written: a slot no page
+     * uses, which is reserved until {@link #set} records the page in it or
+     * {@link #release} returns it.
+     */
+    public synchronized long allocate(int length) {
+        int capacity = capacity(length);
+        for (Map.Entry<Long, Long> hole : holes.entrySet()) {
+            long offset = hole.getKey();
+            long free = hole.getValue();
+            if (free >= capacity) {
+                holes.remove(offset);
+                if (free > capacity)
+                    holes.put(offset + capacity, free - capacity);
+                return offset;
+            }
+        }
+        long offset = end;
+        end += capacity;
+        return offset;
+    }
+
+    /**
+     * Returns the slot at offset, as returned by {@link #allocate} for length
+     * bytes, to the free space, when the page could not be written to it.
+     */
+    public synchronized void release(long offset, int length) {
+        free(offset, capacity(length));
+    }
+
+    /**
+     * Records that page pgNo was written at offset, as returned by
+     * {@link #allocate}, freeing the slot it was in before.
+     */
+    public synchronized void set(int pgNo, long offset, int length) throws IOException {
+        grow(pgNo + 1);
+        // pages written past the end are preceded by empty ones
+        size = Math.max(size, pgNo + 1);
+        free(offsets[pgNo], capacities[pgNo]);
+        capacities[pgNo] = capacity(length);
+        offsets[pgNo] = offset;
+        lengths[pgNo] = length;
+        write(pgNo);
+    }
+
+    private static int capacity(int length) {
+        return (length + SLOT_UNIT - 1) / SLOT_UNIT * SLOT_UNIT;
+    }
+
+    private void free(long offset, long capacity) {
+        if (capacity == 0)
+            return;
+        Map.Entry<Long, Long> before = holes.floorEntry(offset);
+        if (before != null && before.getKey() + before.getValue() == offset) {
+            holes.remove(before.getKey());
+            offset = before.getKey();
+            capacity += before.getValue();
+        }
+        Long after = holes.remove(offset + capacity);
+        if (after != null)
+            capacity += after;
+        if (offset + capacity == end)
+            end = offset;
+        else
+            holes.put(offset, capacity);
+    }
+
+    private void findHoles() {
+        Integer[] order = new Integer[size];
+        for (int pgNo = 0; pgNo < size; pgNo++)
+            order[pgNo] = pgNo;
+        Arrays.sort(order, (a, b) -> Long.compare(offsets[a], offsets[b]));
+        holes.clear();
+        end = 0;
+        for (int pgNo : order) {
+            if (capacities[pgNo] == 0)
+                continue;
+            if (offsets[pgNo] > end)
+                holes.put(end, offsets[pgNo] - end);
+            end = Math.max(end, offsets[pgNo] + capacities[pgNo]);
+        }
+    }
+
+    private void grow(int pages) {
+        if (pages <= offsets.length)
+            return;
+        int length = Math.max(pages, offsets.length * 2);
+        offsets = Arrays.copyOf(offsets, length);
+        lengths = Arrays.copyOf(lengths, length);
+        capacities = Arrays.copyOf(capacities, length);
+    }
+
+    private void write(int pgNo) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        entry.putLong(offsets[pgNo]).putInt(lengths[pgNo]).putInt(capacities[pgNo]);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek((long) pgNo * ENTRY_SIZE);
+            raf.write(entry.array());
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -50,6 +50,30 @@ public class Parser {
         } else if (wx.getOperator().equals("OR")) {
             throw new simpledb.ParsingException(
                     "OR expressions currently unsupported.");
+        } else if (wx.getOperator().equals("IN")
+                || wx.getOperator().equals("NOT IN")) {
+            if (wx.nbOperands() != 2
+                    || !(wx.getOperand(0) instanceof ZConstant)
+                    || !(wx.getOperand(1) instanceof ZQuery)) {
+                throw new simpledb.ParsingException(
+                        "IN is only supported between a field and a subquery.");
+            }
+            ZQuery sub = (ZQuery) wx.getOperand(1);
+            if (!outerReferences(sub, lp).isEmpty()) {
+                throw new simpledb.ParsingException(
+                        "Correlated IN subqueries are not supported; use EXISTS.");
+            }
+            lp.addSemiJoin(((ZConstant) wx.getOperand(0)).getValue(),
+                    planSubquery(tid, sub), wx.getOperator().equals("NOT IN"));
+        } else if (wx.getOperator().equals("EXISTS")) {
+            processExists(tid, wx, lp, false);
+        } else if (wx.getOperator().equals("NOT")) {
+            if (!(wx.getOperand(0) instanceof ZExpression)
+                    || !((ZExpression) wx.getOperand(0)).getOperator().equals("EXISTS")) {
+                throw new simpledb.ParsingException(
+                        "NOT is only supported before EXISTS.");
+            }
+            processExists(tid, (ZExpression) wx.getOperand(0), lp, true);
         } else {
             // this is a binary expression comparing two constants
             @SuppressWarnings("unchecked")
@@ -97,6 +121,8 @@ public class Parser {
                     try {
                         LogicalPlan sublp = parseQueryLogicalPlan(tid,
                                 (ZQuery) ops.elementAt(1));
+                        // the subquery is rewound for every outer tuple
+                        sublp.setParallel(false);
                         OpIterator pp = sublp.physicalPlan(tid,
                                 TableStats.getStatsMap(), explain);
                         lp.addJoin(tab1field, pp, op);
@@ -132,6 +158,148 @@ public class Parser {
 
     }
 
+    /**
+     * Adds an EXISTS or NOT EXISTS subquery to lp as a semi-join or
+     * anti-join. A subquery that refers to the outer query must do so with
+     * a single equality between one of its fields and a field of the outer
+     * query, e.g. EXISTS (SELECT * FROM u WHERE u.x = t.a AND u.y > 3); it
+     * is decorrelated into t.a IN (SELECT u.x FROM u WHERE u.y > 3).
+     */
+    private void processExists(TransactionId tid, ZExpression wx,
+            LogicalPlan lp, boolean anti) throws simpledb.ParsingException {
+        if (wx.nbOperands() != 1 || !(wx.getOperand(0) instanceof ZQuery)) {
+            throw new simpledb.ParsingException("Invalid EXISTS expression "
+                    + wx);
+        }
+        ZQuery sub = (ZQuery) wx.getOperand(0);
+        Vector<ZExpression> correlations = outerReferences(sub, lp);
+        if (correlations.isEmpty()) {
+            lp.addSemiJoin(null, planSubquery(tid, sub), anti);
+            return;
+        }
+        ZExpression corr = correlations.elementAt(0);
+        if (correlations.size() > 1 || !corr.getOperator().equals("=")
+                || !(corr.getOperand(0) instanceof ZConstant)
+                || !(corr.getOperand(1) instanceof ZConstant)
+                || sub.getGroupBy() != null) {
+            throw new simpledb.ParsingException(
+                    "Correlated subqueries must be joined to the outer query by a single equality: "
+                            + sub);
+        }
+        // the decorrelated subquery returns its join field only, which
+        // would drop aggregates: COUNT(*) of a correlated subquery always
+        // exists, whether it counts anything or not
+        @SuppressWarnings("unchecked")
+        Vector<ZSelectItem> items = sub.getSelect();
+        for (ZSelectItem si : items) {
+            if (si.getAggregate() != null) {
+                throw new simpledb.ParsingException(
+                        "Aggregates are not supported in correlated subqueries: " + sub);
+            }
+        }
+        String f1 = ((ZConstant) corr.getOperand(0)).getValue();
+        String f2 = ((ZConstant) corr.getOperand(1)).getValue();
+        boolean f1Outer = isOuterField(f1, sub, lp);
+        if (f1Outer == isOuterField(f2, sub, lp)) {
+            throw new simpledb.ParsingException(
+                    "Correlated subqueries must be joined to the outer query by a single equality: "
+                            + sub);
+        }
+        String outerField = f1Outer ? f1 : f2;
+        String innerField = f1Outer ? f2 : f1;
+
+        // the subquery without the correlation, returning its join field
+        ZQuery decorrelated = new ZQuery();
+        Vector<ZSelectItem> select = new Vector<ZSelectItem>();
+        select.addElement(new ZSelectItem(innerField));
+        decorrelated.addSelect(select);
+        decorrelated.addFrom(sub.getFrom());
+        ZExpression rest = null;
+        for (ZExp c : conjuncts(sub.getWhere())) {
+            if (c == corr)
+                continue;
+            if (rest == null)
+                rest = new ZExpression("AND");
+            rest.addOperand(c);
+        }
+        if (rest != null)
+            decorrelated.addWhere(rest);
+        lp.addSemiJoin(outerField, planSubquery(tid, decorrelated), anti);
+    }
+
+    /** @return the conjuncts of a WHERE clause, or none if w is null */
+    private static Vector<ZExp> conjuncts(ZExp w) {
+        Vector<ZExp> result = new Vector<ZExp>();
+        if (w instanceof ZExpression
+                && ((ZExpression) w).getOperator().equals("AND")) {
+            ZExpression wx = (ZExpression) w;
+            for (int i = 0; i < wx.nbOperands(); i++)
+                result.addAll(conjuncts(wx.getOperand(i)));
+        } else if (w != null) {
+            result.addElement(w);
+        }
+        return result;
+    }
+
+    /**
+     * @return true if field is qualified with an alias of the outer query
+     *         lp that is not in the FROM clause of the subquery sub
+     */
+    private static boolean isOuterField(String field, ZQuery sub,
+            LogicalPlan lp) {
+        String[] parts = field.split("[.]");
+        if (parts.length != 2 || lp.getTableId(parts[0]) == null)
+            return false;
+        @SuppressWarnings("unchecked")
+        Vector<ZFromItem> from = sub.getFrom();
+        for (ZFromItem fromIt : from) {
+            String name = fromIt.getAlias() != null ? fromIt.getAlias()
+                    : fromIt.getTable();
+            if (name.equals(parts[0]))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the conjuncts of the WHERE clause of sub that refer to a
+     *         field of the outer query lp
+     */
+    private static Vector<ZExpression> outerReferences(ZQuery sub,
+            LogicalPlan lp) throws simpledb.ParsingException {
+        Vector<ZExpression> result = new Vector<ZExpression>();
+        for (ZExp c : conjuncts(sub.getWhere())) {
+            if (!(c instanceof ZExpression))
+                continue;
+            ZExpression cx = (ZExpression) c;
+            for (int i = 0; i < cx.nbOperands(); i++) {
+                ZExp op = cx.getOperand(i);
+                if (op instanceof ZConstant
+                        && ((ZConstant) op).getType() == ZConstant.COLUMNNAME
+                        && isOuterField(((ZConstant) op).getValue(), sub, lp)) {
+                    result.addElement(cx);
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Plans a subquery of a semi-join, which executes it only once.
+     */
+    private OpIterator planSubquery(TransactionId tid, ZQuery sub)
+            throws simpledb.ParsingException {
+        try {
+            LogicalPlan sublp = parseQueryLogicalPlan(tid, sub);
+            return sublp.physicalPlan(tid, TableStats.getStatsMap(), explain);
+        } catch (IOException e) {
+            throw new simpledb.ParsingException("Invalid subquery " + sub);
+        } catch (Zql.ParseException e) {
+            throw new simpledb.ParsingException("Invalid subquery " + sub);
+        }
+    }
+
     public LogicalPlan parseQueryLogicalPlan(TransactionId tid, ZQuery q)
             throws IOException, Zql.ParseException, simpledb.ParsingException {
         @SuppressWarnings("unchecked")
@@ -182,23 +350,19 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        Vector<String> groupByFields = new Vector<String>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             Vector<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.elementAt(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
+                String groupByField = ((ZConstant) gbe).getValue();
                 System.out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.addElement(groupByField);
             }
 
         }
@@ -207,8 +371,9 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        Vector<String> aggFields = new Vector<String>();
+        Vector<String> aggFuns = new Vector<String>();
+        Vector<Boolean> aggDistincts = new Vector<Boolean>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,20 +383,24 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                // Zql keeps the DISTINCT of COUNT(DISTINCT f) in the field name
+                boolean aggDistinct = aggField.toLowerCase().startsWith("distinct ");
+                if (aggDistinct)
+                    aggField = aggField.substring("distinct ".length()).trim();
+                String aggFun = si.getAggregate();
                 System.out.println("Aggregate field is " + aggField
-                        + ", agg fun is : " + aggFun);
+                        + ", agg fun is : " + aggFun
+                        + (aggDistinct ? " over distinct values" : ""));
                 lp.addProjectField(aggField, aggFun);
+                aggFields.addElement(aggField);
+                aggFuns.addElement(aggFun);
+                aggDistincts.addElement(aggDistinct);
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -241,30 +410,32 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        for (String groupByField : groupByFields) {
+            lp.addGroupByField(groupByField);
+        }
+        for (int i = 0; i < aggFuns.size(); i++) {
+            lp.addAggregate(aggFuns.elementAt(i), aggFields.elementAt(i), null,
+                    aggDistincts.elementAt(i));
         }
+        lp.setDistinct(q.isDistinct());
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -276,9 +447,23 @@ public class Parser {
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, tId, new int[] { -1, 0 });
+    }
+
+    /**
+     * Plans a query whose LIMIT clause was removed by {@link #stripLimit}.
+     *
+     * @param limitClause
+     *            the limit and offset stripLimit found
+     */
+    public Query handleQueryStatement(ZQuery s, TransactionId tId, int[] limitClause)
+            throws TransactionAbortedException, DbException, IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limitClause[0] >= 0)
+            lp.setLimit(limitClause[0], limitClause[1]);
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -320,6 +505,51 @@ public class Parser {
         return query;
     }
 
+    /**
+     * Converts the constants of a row of a VALUES clause to a tuple of td.
+     */
+    private static Tuple valuesToTuple(Vector<ZExp> values, TupleDesc td,
+            String table) throws simpledb.ParsingException {
+        if (td.numFields() != values.size()) {
+            throw new simpledb.ParsingException(
+                    "INSERT statement does not contain same number of fields as table "
+                            + table);
+        }
+        Tuple t = new Tuple(td);
+        int i = 0;
+        for (ZExp e : values) {
+
+            if (!(e instanceof ZConstant))
+                throw new simpledb.ParsingException(
+                        "Complex expressions not allowed in INSERT statements.");
+            ZConstant zc = (ZConstant) e;
+            if (zc.getType() == ZConstant.NUMBER) {
+                if (td.getFieldType(i) != Type.INT_TYPE) {
+                    throw new simpledb.ParsingException("Value "
+                            + zc.getValue()
+                            + " is not an integer, expected a string.");
+                }
+                IntField f = new IntField(new Integer(zc.getValue()));
+                t.setField(i, f);
+            } else if (zc.getType() == ZConstant.STRING) {
+                if (td.getFieldType(i) != Type.STRING_TYPE) {
+                    throw new simpledb.ParsingException("Value "
+                            + zc.getValue()
+                            + " is a string, expected an integer.");
+                }
+                StringField f = new StringField(zc.getValue(),
+                        Type.STRING_LEN);
+                t.setField(i, f);
+            } else {
+                throw new simpledb.ParsingException(
+                        "Only string or int fields are supported.");
+            }
+
+            i++;
+        }
+        return t;
+    }
+
     public Query handleInsertStatement(ZInsert s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
@@ -338,55 +568,33 @@ public class Parser {
 
         TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
 
-        Tuple t = new Tuple(td);
-        int i = 0;
         OpIterator newTups;
 
         if (s.getValues() != null) {
+            ArrayList<Tuple> tups = new ArrayList<Tuple>();
             @SuppressWarnings("unchecked")
             Vector<ZExp> values = (Vector<ZExp>) s.getValues();
-            if (td.numFields() != values.size()) {
-                throw new simpledb.ParsingException(
-                        "INSERT statement does not contain same number of fields as table "
-                                + s.getTable());
-            }
-            for (ZExp e : values) {
-
-                if (!(e instanceof ZConstant))
-                    throw new simpledb.ParsingException(
-                            "Complex expressions not allowed in INSERT statements.");
-                ZConstant zc = (ZConstant) e;
-                if (zc.getType() == ZConstant.NUMBER) {
-                    if (td.getFieldType(i) != Type.INT_TYPE) {
-                        throw new simpledb.ParsingException("Value "
-                                + zc.getValue()
-                                + " is not an integer, expected a string.");
-                    }
-                    IntField f = new IntField(new Integer(zc.getValue()));
-                    t.setField(i, f);
-                } else if (zc.getType() == ZConstant.STRING) {
-                    if (td.getFieldType(i) != Type.STRING_TYPE) {
-                        throw new simpledb.ParsingException("Value "
-                                + zc.getValue()
-                                + " is a string, expected an integer.");
-                    }
-                    StringField f = new StringField(zc.getValue(),
-                            Type.STRING_LEN);
-                    t.setField(i, f);
-                } else {
-                    throw new simpledb.ParsingException(
-                            "Only string or int fields are supported.");
+            tups.add(valuesToTuple(values, td, s.getTable()));
+            // the rows after the first one of a multi-row VALUES clause
+            for (String row : extraRows) {
+                try {
+                    ZqlParser rp = new ZqlParser(new ByteArrayInputStream(
+                            ("INSERT INTO " + s.getTable() + " VALUES " + row + ";").getBytes("UTF-8")));
+                    @SuppressWarnings("unchecked")
+                    Vector<ZExp> rowValues = (Vector<ZExp>) ((ZInsert) rp.readStatement()).getValues();
+                    tups.add(valuesToTuple(rowValues, td, s.getTable()));
+                } catch (Zql.ParseException e) {
+                    throw new simpledb.ParsingException("Invalid row " + row
+                            + " in INSERT statement");
                 }
-
-                i++;
             }
-            ArrayList<Tuple> tups = new ArrayList<Tuple>();
-            tups.add(t);
             newTups = new TupleArrayIterator(tups);
 
         } else {
             ZQuery zq = (ZQuery) s.getQuery();
             LogicalPlan lp = parseQueryLogicalPlan(tId, zq);
+            // the inserted tuples may land in the pages being scanned
+            lp.setParallel(false);
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
@@ -418,6 +626,7 @@ public class Parser {
         if (s.getWhere() != null)
             processExpression(tid, (ZExpression) s.getWhere(), lp);
         lp.addProjectField("null.*", null);
+        lp.setParallel(false);
 
         OpIterator op = new Delete(tid, lp.physicalPlan(tid,
                 TableStats.getStatsMap(), false));
@@ -465,12 +674,16 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
-        ZqlParser p = new ZqlParser(bis);
+        int[] limitClause = new int[] { -1, 0 };
         try {
+            ByteArrayInputStream bis = new ByteArrayInputStream(
+                    stripLimit(s, limitClause).getBytes("UTF-8"));
+            ZqlParser p = new ZqlParser(bis);
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (limitClause[0] >= 0)
+                    lp.setLimit(limitClause[0], limitClause[1]);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -501,9 +714,108 @@ public class Parser {
         }
     }
 
+    /** Matches a trailing "LIMIT n [OFFSET m]" clause, which Zql does not support. */
+    private static final java.util.regex.Pattern LIMIT_CLAUSE = java.util.regex.Pattern
+            .compile("(?is)\\s+LIMIT\\s+(\\d+)(?:\\s+OFFSET\\s+(\\d+))?\\s*(;?)\\s*$");
+
+    /**
+     * Remove a trailing LIMIT / OFFSET clause from a statement so that it can
+     * be handed to Zql.
+     *
+     * @param sql
+     *            the statement text
+     * @param limitClause
+     *            out parameter; receives the limit in element 0 (-1 if there
+     *            is no LIMIT clause) and the offset in element 1
+     * @return the statement without the clause
+     */
+    static String stripLimit(String sql, int[] limitClause) {
+        limitClause[0] = -1;
+        limitClause[1] = 0;
+        java.util.regex.Matcher m = LIMIT_CLAUSE.matcher(sql);
+        if (!m.find())
+            return sql;
+        limitClause[0] = Integer.parseInt(m.group(1));
+        if (m.group(2) != null)
+            limitClause[1] = Integer.parseInt(m.group(2));
+        return sql.substring(0, m.start()) + m.group(3);
+    }
+
+    /** Matches the start of an INSERT ... VALUES statement. */
+    private static final java.util.regex.Pattern INSERT_VALUES = java.util.regex.Pattern
+            .compile("(?is)^\\s*INSERT\\s+INTO\\s+\\S+\\s+VALUES\\s*");
+
+    /**
+     * Remove all rows but the first one from a multi-row INSERT ... VALUES
+     * statement, which Zql does not support, so that it can be handed to
+     * Zql.
+     *
+     * @param sql
+     *            the statement text
+     * @param rows
+     *            out parameter; receives the removed rows, each in its
+     *            parentheses
+     * @return the statement with its first row only
+     */
+    static String stripExtraRows(String sql, ArrayList<String> rows) {
+        rows.clear();
+        java.util.regex.Matcher m = INSERT_VALUES.matcher(sql);
+        if (!m.find())
+            return sql;
+        ArrayList<String> groups = new ArrayList<String>();
+        int pos = m.end();
+        while (true) {
+            while (pos < sql.length() && Character.isWhitespace(sql.charAt(pos)))
+                pos++;
+            if (pos == sql.length() || sql.charAt(pos) != '(')
+                return sql;
+            // find the closing parenthesis, skipping quoted strings
+            int end = pos + 1;
+            boolean quoted = false;
+            while (end < sql.length() && (quoted || sql.charAt(end) != ')')) {
+                char c = sql.charAt(end);
+                if (c == '\'' || c == '"')
+                    quoted = !quoted;
+                end++;
+            }
+            if (end == sql.length())
+                return sql;
+            groups.add(sql.substring(pos, end + 1));
+            pos = end + 1;
+            while (pos < sql.length() && Character.isWhitespace(sql.charAt(pos)))
+                pos++;
+            if (pos < sql.length() && sql.charAt(pos) == ',') {
+                pos++;
+                continue;
+            }
+            if (!sql.substring(pos).trim().matches(";?"))
+                return sql;
+            break;
+        }
+        if (groups.size() < 2)
+            return sql;
+        rows.addAll(groups.subList(1, groups.size()));
+        return sql.substring(0, m.end()) + groups.get(0) + ";";
+    }
+
+    private static String readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) > 0)
+            bos.write(buf, 0, n);
+        return bos.toString("UTF-8");
+    }
+
+    // rows after the first one of a multi-row INSERT ... VALUES statement
+    private final ArrayList<String> extraRows = new ArrayList<String>();
+
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            int[] limitClause = new int[2];
+            String sql = stripLimit(readFully(is), limitClause);
+            sql = stripExtraRows(sql, extraRows);
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(sql.getBytes("UTF-8")));
             ZStatement s = p.readStatement();
 
             Query query = null;
@@ -525,7 +837,7 @@ public class Parser {
                                 curtrans.getId());
                     else if (s instanceof ZQuery)
                         query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
+                                curtrans.getId(), limitClause);
                     else {
                         System.out
                                 .println("Can't parse "
@@ -581,11 +893,11 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "bufferpool" };
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 6) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -595,21 +907,56 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile] [-warmup snapshotFile]";
     static final int SLEEP_TIME = 1000;
 
+    /** Milliseconds between two snapshots of the buffer pool's residency. */
+    static final long SNAPSHOT_PERIOD = 60 * 1000;
+
+    // the residency of the buffer pool, if warming it up was asked for
+    private ResidencySnapshot snapshot;
+
     protected void shutdown() {
+        if (snapshot != null) {
+            try {
+                snapshot.stop();
+            } catch (IOException e) {
+                System.out.println("Unable to save the buffer pool residency: " + e.getMessage());
+            }
+        }
         System.out.println("Bye");
     }
 
     protected boolean interactive = true;
 
+    /**
+     * Handles "bufferpool [pages];", which resizes the buffer pool if a
+     * number of pages is given and prints its metrics.
+     */
+    private void bufferPool(String pages) {
+        BufferPool pool = Database.getBufferPool();
+        if (pages.length() > 0) {
+            try {
+                if (!pool.setNumPages(Integer.parseInt(pages)))
+                    System.out.println("Pages in use are evicted as they are released");
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid number of pages: " + pages);
+                return;
+            } catch (DbException e) {
+                System.out.println("Unable to resize the buffer pool: " + e.getMessage());
+                return;
+            }
+        }
+        System.out.print(pool.getMetrics().dump());
+    }
+
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
         TableStats.computeStatistics();
 
         String queryFile = null;
+        String snapshotFile = null;
 
         if (argv.length > 1) {
             for (int i = 1; i < argv.length; i++) {
@@ -625,12 +972,31 @@ public class Parser {
                     }
                     queryFile = argv[i];
 
+                } else if (argv[i].equals("-warmup")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected file name after -warmup\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    snapshotFile = argv[i];
                 } else {
                     System.out.println("Unknown argument " + argv[i] + "\n "
                             + usage);
                 }
             }
         }
+        if (snapshotFile != null) {
+            // the statistics were computed by scanning every table through
+            // the pool, which prefetching never evicts from; its pages are
+            // all clean, and dropping them leaves the pool to the hot set
+            BufferPool pool = Database.getBufferPool();
+            for (PageId pid : pool.hottestPages())
+                pool.discardPage(pid);
+            // queries run while the pool warms up
+            snapshot = new ResidencySnapshot(new File(snapshotFile));
+            snapshot.warmUp();
+            snapshot.start(SNAPSHOT_PERIOD);
+        }
         if (!interactive) {
             try {
                 // curtrans = new Transaction();
@@ -681,6 +1047,12 @@ public class Parser {
                         quit = true;
                         break;
                     }
+                    if (cmd.toLowerCase().startsWith("bufferpool")) {
+                        bufferPool(cmd.substring("bufferpool".length(), cmd.length() - 1).trim());
+                        line = line.substring(split + 1);
+                        buffer = new StringBuilder();
+                        continue;
+                    }
 
                     long startTime = System.currentTimeMillis();
                     processNextStatement(new ByteArrayInputStream(
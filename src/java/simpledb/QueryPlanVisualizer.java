@@ -9,12 +9,16 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String SEMI_JOIN = "⋉";
+    static final String ANTI_JOIN = "▷";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
+    static final String LIMIT = "limit";
+    static final String DISTINCT = "δ";
     static final String SPACE = "  ";
 
     private int calculateQueryPlanTreeDepth(OpIterator root) {
@@ -26,7 +30,7 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof HashSemiJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -65,17 +69,42 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (!(queryPlan instanceof Operator)) {
+            String tableName;
+            String alias;
+            String range = "";
+            if (queryPlan instanceof BTreeScan) {
+                tableName = ((BTreeScan) queryPlan).getTableName();
+                alias = ((BTreeScan) queryPlan).getAlias();
+            } else if (queryPlan instanceof BTreeReverseScan) {
+                tableName = ((BTreeReverseScan) queryPlan).getTableName();
+                alias = ((BTreeReverseScan) queryPlan).getAlias();
+            } else if (queryPlan instanceof SeqScan) {
+                tableName = ((SeqScan) queryPlan).getTableName();
+                alias = ((SeqScan) queryPlan).getAlias();
+                SeqScan s = (SeqScan) queryPlan;
+                if (s.isPartitioned())
+                    range = ",pages:" + s.getStartPage() + "-"
+                            + (s.getEndPage() < 0 ? "" : String.valueOf(s.getEndPage()));
+                Predicate[] preds = s.getPredicates();
+                for (int i = 0; i < preds.length; i++) {
+                    range += (i == 0 ? "," + SELECT + "(" : " and ")
+                            + s.getAlias() + "." + Database.getCatalog().getTupleDesc(
+                                    s.getTableId()).getFieldName(preds[i].getField())
+                            + preds[i].getOp() + preds[i].getOperand()
+                            + (i == preds.length - 1 ? ")" : "");
+                }
+            } else {
+                tableName = queryPlan.getClass().getSimpleName();
+                alias = tableName;
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
+                    .format("%1$s(%2$s)%3$s", SCAN, tableName + alias, range);
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -165,21 +194,62 @@ public class QueryPlanVisualizer {
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
             }
+            else if (plan instanceof HashSemiJoin) {
+                HashSemiJoin j = (HashSemiJoin) plan;
+                JoinPredicate jp = j.getJoinPredicate();
+                String op = j.isAnti() ? ANTI_JOIN : SEMI_JOIN;
+                String cond = jp == null ? "exists" : j.getJoinField1Name()
+                        + jp.getOperator() + j.getJoinField2Name();
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", op, cond,
+                        j.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (op.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = op.length() / 2;
+                SubTreeDescriptor left = this.buildTree(queryPlanDepth,
+                        currentDepth + 3 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                SubTreeDescriptor right = this.buildTree(queryPlanDepth,
+                        currentDepth + 3 + adjustDepth, children[1],
+                        currentStartPosition + left.width + SPACE.length(), 0);
+                thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - op.length() / 2;
+                thisNode.width = Math.max(
+                        left.width + right.width + SPACE.length(),
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = left;
+                thisNode.rightChild = right;
+                thisNode.height = currentDepth;
+            }
             else if (plan instanceof Aggregate) {
                 Aggregate a = (Aggregate) plan;
                 int upBarShift = parentUpperBarStartShift;
                 String alignTxt;
                 TupleDesc td = a.getTupleDesc();
                 int gfield = a.groupField();
+                Aggregator.Op[] aops = a.aggregateOps();
+                StringBuilder aggs = new StringBuilder();
+                for (int i = 0; i < aops.length; i++) {
+                    if (i > 0)
+                        aggs.append(", ");
+                    aggs.append(String.format("%1$s(%2$s)", aops[i],
+                            a.aggregateFieldName(i)));
+                }
 
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggs, a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(00);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    StringBuilder groups = new StringBuilder();
+                    for (int i = 0; i < a.groupFields().length; i++) {
+                        if (i > 0)
+                            groups.append(",");
+                        groups.append(a.groupFieldName(i));
+                    }
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, groups, aggs, a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -238,6 +308,39 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof TopN || plan instanceof Limit) {
+                String alignTxt;
+                if (plan instanceof TopN) {
+                    TopN o = (TopN) plan;
+                    StringBuilder fields = new StringBuilder();
+                    for (int f : o.getOrderByFields()) {
+                        if (fields.length() > 0)
+                            fields.append(",");
+                        fields.append(children[0].getTupleDesc().getFieldName(f));
+                    }
+                    thisNode.text = String.format("%1$s(%2$s) %3$s %4$d,card:%5$d",
+                            ORDERBY, fields, LIMIT, o.getLimit(), o.getEstimatedCardinality());
+                    alignTxt = ORDERBY;
+                } else {
+                    Limit l = (Limit) plan;
+                    thisNode.text = String.format("%1$s %2$d,card:%3$d",
+                            LIMIT, l.getLimit(), l.getEstimatedCardinality());
+                    alignTxt = LIMIT;
+                }
+                int upBarShift = parentUpperBarStartShift;
+                if (alignTxt.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = alignTxt.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - alignTxt.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Project) {
                 Project p = (Project) plan;
                 String fields = "";
@@ -261,7 +364,33 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
             }
-            else if (plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
+            else if (plan instanceof Distinct) {
+                Distinct d = (Distinct) plan;
+                StringBuilder fields = new StringBuilder();
+                for (int i = 0; i < d.getKeyFields().length; i++) {
+                    if (i > 0)
+                        fields.append(",");
+                    fields.append(d.keyFieldName(i));
+                }
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", DISTINCT, fields,
+                        d.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (DISTINCT.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = DISTINCT.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - DISTINCT.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
+            }
+            else if (plan instanceof Exchange
+                    || plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
                 String name="Exchange";
                 int card=0;
                 try {
@@ -0,0 +1,205 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * ResidencySnapshot records which pages the buffer pool holds in a file, so
+ * that after a restart the pool can be warmed up with them rather than fill
+ * up one random read at a time.
+ * <p>
+ * The snapshot lists the pages the pool holds, the most requested first, and
+ * is written periodically by a background thread. Warming up reads the
+ * pages that fit in the pool back, table by table in the order of their
+ * page numbers, runs of consecutive heap file pages with a single read. It
+ * runs in the background while queries run, and only fills free frames, so
+ * the pages queries read in the meantime are not evicted for it.
+ *
+ * @see BufferPool#prefetch
+ */
+public class ResidencySnapshot {
+
+    /** The number of pages warming up reads at most at once. */
+    public static final int MAX_RUN = 64;
+
+    private final File file;
+    private Thread saver;
+
+    /**
+     * @param file the file the snapshot is kept in
+     */
+    public ResidencySnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Writes the pages the buffer pool holds to the snapshot file, replacing
+     * the previous snapshot at once.
+     */
+    public void save() throws IOException {
+        List<PageId> pids = Database.getBufferPool().hottestPages();
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            out.writeInt(pids.size());
+            for (PageId pid : pids) {
+                // as the log records page ids
+                int[] ints = pid.serialize();
+                out.writeUTF(pid.getClass().getName());
+                out.writeInt(ints.length);
+                for (int i : ints)
+                    out.writeInt(i);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the pages of the snapshot file, the most requested first; none
+     *         if there is no snapshot yet
+     */
+    public List<PageId> load() throws IOException {
+        ArrayList<PageId> pids = new ArrayList<>();
+        if (!file.exists())
+            return pids;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            int count = in.readInt();
+            for (int n = 0; n < count; n++) {
+                String className = in.readUTF();
+                int length = in.readInt();
+                Class<?>[] types = new Class<?>[length];
+                Object[] args = new Object[length];
+                for (int i = 0; i < length; i++) {
+                    types[i] = int.class;
+                    args[i] = in.readInt();
+                }
+                try {
+                    pids.add((PageId) Class.forName(className).getConstructor(types)
+                            .newInstance(args));
+                } catch (ReflectiveOperationException e) {
+                    throw new IOException("Bad page id in " + file + ": " + className);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return pids;
+    }
+
+    /**
+     * Starts saving the snapshot every periodMillis milliseconds, in a
+     * daemon thread, until {@link #stop()} is called.
+     */
+    public synchronized void start(final long periodMillis) {
+        if (saver != null)
+            return;
+        saver = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(periodMillis);
+                    try {
+                        save();
+                    } catch (IOException e) {
+                        System.err.println("Failed to save the buffer pool residency: "
+                                + e.getMessage());
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }, "ResidencySnapshot saver");
+        saver.setDaemon(true);
+        saver.start();
+    }
+
+    /**
+     * Stops saving the snapshot periodically, and saves it one last time.
+     */
+    public void stop() throws IOException {
+        Thread t;
+        synchronized (this) {
+            t = saver;
+            saver = null;
+        }
+        if (t == null)
+            return;
+        t.interrupt();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        save();
+    }
+
+    /**
+     * Reads the pages of the snapshot that fit in the buffer pool back into
+     * it, in a daemon thread; the catalog must be loaded. Pages of tables
+     * that are no longer in the catalog, or beyond the end of their file,
+     * are skipped.
+     *
+     * @return the thread warming up the pool
+     */
+    public Thread warmUp() {
+        Thread t = new Thread(() -> {
+            try {
+                warmUp(load());
+            } catch (IOException | RuntimeException e) {
+                // a cold pool still works
+                System.err.println("Failed to warm up the buffer pool: " + e.getMessage());
+            }
+        }, "ResidencySnapshot warm-up");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private static void warmUp(List<PageId> pids) {
+        BufferPool pool = Database.getBufferPool();
+        // the hottest pages that fit, grouped by table
+        Map<Integer, List<PageId>> tables = new LinkedHashMap<>();
+        int pages = 0;
+        for (PageId pid : pids) {
+            if (pages == pool.getNumPages())
+                break;
+            DbFile file;
+            try {
+                file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            } catch (NoSuchElementException e) {
+                continue;
+            }
+            if (file instanceof HeapFile && pid.getPageNumber() >= ((HeapFile) file).numPages())
+                continue;
+            // the pages of a B+ tree file are numbered from 1, after its root pointer
+            if (file instanceof BTreeFile && pid.getPageNumber() > ((BTreeFile) file).numPages())
+                continue;
+            tables.computeIfAbsent(pid.getTableId(), id -> new ArrayList<>()).add(pid);
+            pages++;
+        }
+        for (List<PageId> table : tables.values()) {
+            table.sort((a, b) -> Integer.compare(a.getPageNumber(), b.getPageNumber()));
+            int start = 0;
+            for (int i = 1; i <= table.size(); i++) {
+                if (i < table.size() && i - start < MAX_RUN
+                        && table.get(i).getPageNumber() == table.get(i - 1).getPageNumber() + 1
+                        && table.get(i).getClass() == table.get(start).getClass())
+                    continue;
+                if (!pool.prefetch(table.subList(start, i)))
+                    return; // full, with pages queries read
+                start = i;
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * RuntimeFilter summarizes the join keys of the build side of a hash join
+ * with a bloom filter, plus the minimum and maximum key for INT_TYPE keys.
+ * The join publishes it to the scan of its probe side (see
+ * {@link SeqScan#setRuntimeFilter}), which can then drop the tuples that
+ * certainly have no join partner before they are materialized.
+ * <p>
+ * A RuntimeFilter has no false negatives: mightContain returns true for
+ * every key that was added, and false for most keys that were not.
+ */
+public class RuntimeFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int BITS_PER_KEY = 10;
+    private static final int NUM_HASHES = 3;
+
+    private final long[] bits;
+    private final int mask;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+    private boolean onlyInts = true;
+    private int keys = 0;
+
+    /**
+     * @param expectedKeys
+     *            the number of distinct keys that will be added; more keys
+     *            only make the filter less selective
+     */
+    public RuntimeFilter(int expectedKeys) {
+        long wanted = Math.max(64L, (long) expectedKeys * BITS_PER_KEY);
+        int size = 64;
+        while (size < wanted && size < (1 << 30))
+            size <<= 1;
+        this.bits = new long[size / 64];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds a key of the build side.
+     */
+    public void add(Field key) {
+        if (key instanceof IntField) {
+            int v = ((IntField) key).getValue();
+            if (v < min)
+                min = v;
+            if (v > max)
+                max = v;
+        } else {
+            onlyInts = false;
+        }
+        addHash(key.hashCode());
+        keys++;
+    }
+
+    private void addHash(int hash) {
+        long h = mix(hash);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private boolean containsHash(int hash) {
+        long h = mix(hash);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /** spreads a 32 bit hash over 64 bits (the splitmix64 finalizer) */
+    private static long mix(int hash) {
+        long z = hash * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @return false if key was certainly not added to the filter
+     */
+    public boolean mightContain(Field key) {
+        if (key instanceof IntField)
+            return mightContain(((IntField) key).getValue());
+        return containsHash(key.hashCode());
+    }
+
+    /**
+     * @return false if the INT_TYPE key v was certainly not added to the
+     *         filter; IntField hashes to its value, so no field is needed
+     */
+    public boolean mightContain(int v) {
+        if (onlyInts && (v < min || v > max))
+            return false;
+        return containsHash(v);
+    }
+
+    /**
+     * @return the number of keys added to the filter
+     */
+    public int numKeys() {
+        return keys;
+    }
+}
@@ -0,0 +1,179 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * ScanPredicate is a {@link Predicate} compiled against the on-page layout of
+ * a table, so that a scan can evaluate it directly on the bytes of a tuple
+ * slot and only materialize the tuples that satisfy it.
+ * <p>
+ * Comparisons on INT_TYPE fields are made on the raw big-endian value without
+ * allocating anything; STRING_TYPE fields only decode the string itself.
+ * Both follow the semantics of {@link Field#compare}.
+ * <p>
+ * A ScanPredicate can also test a field against a {@link RuntimeFilter}
+ * published by a hash join, in the same way.
+ */
+public class ScanPredicate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Predicate pred;
+    private final RuntimeFilter runtimeFilter;
+    private final int field;
+    private final Type type;
+    // offset of the field from the start of a tuple slot
+    private final int offset;
+    private final int intOperand;
+    private final String stringOperand;
+
+    /**
+     * @param pred
+     *            the predicate; its field index refers to td
+     * @param td
+     *            the TupleDesc the table stores its tuples with
+     */
+    public ScanPredicate(Predicate pred, TupleDesc td) {
+        this(pred, null, pred.getField(), td);
+    }
+
+    /**
+     * @param filter
+     *            the runtime filter the field must pass
+     * @param field
+     *            the index of the field in td
+     * @param td
+     *            the TupleDesc the table stores its tuples with
+     */
+    public ScanPredicate(RuntimeFilter filter, int field, TupleDesc td) {
+        this(null, filter, field, td);
+    }
+
+    private ScanPredicate(Predicate pred, RuntimeFilter filter, int field, TupleDesc td) {
+        this.pred = pred;
+        this.runtimeFilter = filter;
+        this.field = field;
+        this.type = td.getFieldType(field);
+        int off = 0;
+        for (int i = 0; i < field; i++)
+            off += td.getFieldType(i).getLen();
+        this.offset = off;
+        if (pred == null) {
+            this.intOperand = 0;
+            this.stringOperand = null;
+        } else if (type == Type.INT_TYPE) {
+            this.intOperand = ((IntField) pred.getOperand()).getValue();
+            this.stringOperand = null;
+        } else {
+            this.intOperand = 0;
+            this.stringOperand = ((StringField) pred.getOperand()).getValue();
+        }
+    }
+
+    /**
+     * @return the predicate, or null if this tests a runtime filter
+     */
+    public Predicate getPredicate() {
+        return pred;
+    }
+
+    /**
+     * @return true if the materialized tuple t satisfies the predicate
+     */
+    public boolean matches(Tuple t) {
+        if (pred == null)
+            return runtimeFilter.mightContain(t.getField(field));
+        return pred.filter(t);
+    }
+
+    /**
+     * @param data
+     *            the bytes of a page
+     * @param tupleStart
+     *            the offset in data of the slot of the tuple to test
+     * @return true if the tuple stored at tupleStart satisfies the predicate
+     */
+    public boolean matches(byte[] data, int tupleStart) {
+        return matches(ByteBuffer.wrap(data), tupleStart);
+    }
+
+    /**
+     * Like {@link #matches(byte[], int)}, for page data held in a buffer,
+     * such as a frame of the off-heap arena, which is read in place.
+     */
+    public boolean matches(ByteBuffer data, int tupleStart) {
+        int p = tupleStart + offset;
+        int v = readInt(data, p);
+        if (pred == null) {
+            if (type == Type.INT_TYPE)
+                return runtimeFilter.mightContain(v);
+            String value = readString(data, p + 4, v);
+            return runtimeFilter.mightContain(new StringField(value, Type.STRING_LEN));
+        }
+        if (type == Type.INT_TYPE) {
+            switch (pred.getOp()) {
+            case EQUALS:
+            case LIKE:
+                return v == intOperand;
+            case NOT_EQUALS:
+                return v != intOperand;
+            case GREATER_THAN:
+                return v > intOperand;
+            case GREATER_THAN_OR_EQ:
+                return v >= intOperand;
+            case LESS_THAN:
+                return v < intOperand;
+            case LESS_THAN_OR_EQ:
+                return v <= intOperand;
+            }
+            return false;
+        }
+        // the length prefix of the string is followed by its bytes
+        String value = readString(data, p + 4, v);
+        if (pred.getOp() == Predicate.Op.LIKE)
+            return value.indexOf(stringOperand) >= 0;
+        int cmp = value.compareTo(stringOperand);
+        switch (pred.getOp()) {
+        case EQUALS:
+            return cmp == 0;
+        case NOT_EQUALS:
+            return cmp != 0;
+        case GREATER_THAN:
+            return cmp > 0;
+        case GREATER_THAN_OR_EQ:
+            return cmp >= 0;
+        case LESS_THAN:
+            return cmp < 0;
+        case LESS_THAN_OR_EQ:
+            return cmp <= 0;
+        default:
+            return false;
+        }
+    }
+
+    static int readInt(ByteBuffer data, int p) {
+        return data.getInt(p);
+    }
+
+    /**
+     * @return the string of the given length prefix stored at p, clamped to
+     *         the length of string fields
+     */
+    static String readString(ByteBuffer data, int p, int len) {
+        byte[] bytes = new byte[Math.max(0, Math.min(len, Type.STRING_LEN))];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = data.get(p + i);
+        return new String(bytes);
+    }
+
+    /**
+     * Compiles every predicate against td.
+     */
+    public static ScanPredicate[] compile(Predicate[] preds, TupleDesc td) {
+        ScanPredicate[] compiled = new ScanPredicate[preds.length];
+        for (int i = 0; i < preds.length; i++)
+            compiled[i] = new ScanPredicate(preds[i], td);
+        return compiled;
+    }
+}
@@ -18,6 +18,16 @@ public class SeqScan implements OpIterator {
     private final TransactionId tid;
     private int tableid;
     private String tableAlias;
+    // page range of a partitioned scan; endPage is -1 for the whole table
+    private final int startPage;
+    private final int endPage;
+    // conjunctive predicates evaluated by the scan itself
+    private final ArrayList<Predicate> predicates = new ArrayList<Predicate>();
+    // the table fields the scan returns, or null for all of them
+    private int[] projection;
+    // filter published by a hash join, on the table field runtimeField
+    private RuntimeFilter runtimeFilter;
+    private int runtimeField;
     private DbFileIterator iterator;
    
 
@@ -38,9 +48,33 @@ public class SeqScan implements OpIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, 0, -1);
+    }
+
+    /**
+     * Creates a partitioned scan, which only reads pages startPage
+     * (inclusive) to endPage (exclusive) of a table stored in a
+     * {@link HeapFile}. Scans of disjoint page ranges can run concurrently,
+     * e.g. as the producers of an {@link Exchange}.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table (needed by the parser)
+     * @param startPage
+     *            the first page to scan
+     * @param endPage
+     *            the page after the last page to scan, or -1 to scan to the
+     *            end of the table
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int startPage, int endPage) {
         this.tid = tid;
         this.tableid = tableid;
         this.tableAlias = tableAlias;
+        this.startPage = startPage;
+        this.endPage = endPage;
     }
 
     /**
@@ -52,6 +86,119 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableid);
     }
 
+    /**
+     * @return the id of the table the operator scans
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /**
+     * @return true if this scan only reads a page range of the table
+     */
+    public boolean isPartitioned() {
+        return startPage != 0 || endPage != -1;
+    }
+
+    /**
+     * @return the first page this scan reads
+     */
+    public int getStartPage() {
+        return startPage;
+    }
+
+    /**
+     * @return the page after the last page this scan reads, or -1 if it
+     *         reads to the end of the table
+     */
+    public int getEndPage() {
+        return endPage;
+    }
+
+    /**
+     * Pushes a predicate down into the scan, which then only returns the
+     * tuples satisfying it and all previously added predicates. Scans of heap
+     * files test the predicates on the page data, before the tuples are
+     * materialized.
+     *
+     * @param p
+     *            the predicate; its field index refers to the TupleDesc of
+     *            the table, i.e. of this scan before any projection
+     */
+    public void addPredicate(Predicate p) {
+        predicates.add(p);
+    }
+
+    /**
+     * @return the predicates pushed down into this scan
+     */
+    public Predicate[] getPredicates() {
+        return predicates.toArray(new Predicate[predicates.size()]);
+    }
+
+    /**
+     * Restricts the scan to some fields of the table. Only those fields are
+     * decoded from the pages, and the TupleDesc of the scan narrows to them.
+     *
+     * @param fields
+     *            the indexes of the fields in the table, in the order the
+     *            scan should return them; null to return every field
+     */
+    public void setProjection(int[] fields) {
+        this.projection = fields == null ? null : fields.clone();
+    }
+
+    /**
+     * @return the indexes in the table of the fields the scan returns, or
+     *         null if it returns every field
+     */
+    public int[] getProjection() {
+        return projection == null ? null : projection.clone();
+    }
+
+    /**
+     * Makes the scan drop the tuples whose field fails the runtime filter of
+     * a hash join. Scans of heap files test the filter on the page data;
+     * other scans ignore it, which is always correct since a join probing
+     * with the tuples still finds no partner for them. If the scan is open,
+     * the filter applies from its next page on or, if nothing was read yet,
+     * right away.
+     *
+     * @param field
+     *            the index of the field in the TupleDesc of this scan
+     * @param filter
+     *            the filter
+     */
+    public void setRuntimeFilter(int field, RuntimeFilter filter)
+            throws DbException, TransactionAbortedException {
+        this.runtimeField = projection == null ? field : projection[field];
+        this.runtimeFilter = filter;
+        if (iterator instanceof HeapFileIterator)
+            ((HeapFileIterator) iterator).setRuntimeFilter(runtimeField, filter);
+    }
+
+    /**
+     * Removes the runtime filter of the scan, if there is one, from the next
+     * open on.
+     */
+    public void clearRuntimeFilter() {
+        this.runtimeFilter = null;
+    }
+
+    /**
+     * @return the runtime filter of the scan, or null if there is none
+     */
+    public RuntimeFilter getRuntimeFilter() {
+        return runtimeFilter;
+    }
+
+    /**
+     * @return the transaction the operator scans the table in
+     */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -78,6 +225,10 @@ public class SeqScan implements OpIterator {
     public void reset(int tableid, String tableAlias) {
         this.tableid = tableid;
         this.tableAlias = tableAlias;
+        // the field indexes of pushed down predicates refer to the old table
+        this.predicates.clear();
+        this.projection = null;
+        this.runtimeFilter = null;
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -85,7 +236,57 @@ public class SeqScan implements OpIterator {
     }
 
     public void open() throws DbException, TransactionAbortedException {
-        this.iterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        final Predicate[] preds = getPredicates();
+        final int[] fields = projection;
+        if (file instanceof HeapFile) {
+            HeapFile hf = (HeapFile) file;
+            HeapFileIterator it = hf.iterator(tid, startPage, endPage < 0 ? hf.numPages() : endPage,
+                    preds, fields);
+            if (runtimeFilter != null)
+                it.setRuntimeFilter(runtimeField, runtimeFilter);
+            this.iterator = it;
+        } else if (isPartitioned()) {
+            throw new DbException("only tables stored in heap files can be scanned by page range");
+        } else if (preds.length == 0 && fields == null) {
+            this.iterator = file.iterator(tid);
+        } else {
+            final DbFileIterator all = file.iterator(tid);
+            final TupleDesc projected = fields == null ? null : HeapPage.project(file.getTupleDesc(), fields);
+            this.iterator = new AbstractDbFileIterator() {
+                public void open() throws DbException, TransactionAbortedException {
+                    all.open();
+                }
+
+                protected Tuple readNext() throws DbException, TransactionAbortedException {
+                    tuples: while (all.hasNext()) {
+                        Tuple t = all.next();
+                        for (Predicate p : preds) {
+                            if (!p.filter(t))
+                                continue tuples;
+                        }
+                        if (fields == null)
+                            return t;
+                        Tuple narrow = new Tuple(projected);
+                        for (int i = 0; i < fields.length; i++)
+                            narrow.setField(i, t.getField(fields[i]));
+                        narrow.setRecordId(t.getRecordId());
+                        return narrow;
+                    }
+                    return null;
+                }
+
+                public void rewind() throws DbException, TransactionAbortedException {
+                    super.close();
+                    all.rewind();
+                }
+
+                public void close() {
+                    super.close();
+                    all.close();
+                }
+            };
+        }
         this.iterator.open();
     }
 
@@ -94,7 +295,8 @@ public class SeqScan implements OpIterator {
      * prefixed with the tableAlias string from the constructor. This prefix
      * becomes useful when joining tables containing a field(s) with the same
      * name.  The alias and name should be separated with a "." character
-     * (e.g., "alias.fieldName").
+     * (e.g., "alias.fieldName"). If a projection was set, only the projected
+     * fields are included.
      *
      * @return the TupleDesc with field names from the underlying HeapFile,
      *         prefixed with the tableAlias string from the constructor.
@@ -103,16 +305,16 @@ public class SeqScan implements OpIterator {
         // some code goes here
         TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
         
-        int totalFields = td.numFields();
+        int totalFields = projection == null ? td.numFields() : projection.length;
         
         Type[] typeArray = new Type[totalFields];
         String[] fieldArray = new String[totalFields];
         
         for(int i = 0; i < totalFields; i++){
         	
-        	
-        	typeArray[i] = td.getFieldType(i);
-        	fieldArray[i] = this.getAlias() + "." + td.getFieldName(i);
+        	int field = projection == null ? i : projection[i];
+        	typeArray[i] = td.getFieldType(field);
+        	fieldArray[i] = this.getAlias() + "." + td.getFieldName(field);
         }
         
         return new TupleDesc(typeArray, fieldArray);
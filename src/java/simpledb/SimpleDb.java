@@ -1,5 +1,12 @@
 package simpledb;
 import java.io.*;
+import javax.management.Attribute;
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
 
 public class SimpleDb {
     public static void main (String args[])
@@ -90,6 +97,30 @@ public class SimpleDb {
             }
 
         }
+        else if (args[0].equals("bufferpool")) {
+            // dump the buffer pool metrics of a running SimpleDb, which
+            // must have been started with remote JMX enabled, e.g. with
+            // -Dcom.sun.management.jmxremote.port=9999, after resizing its
+            // buffer pool if a number of pages is given
+            if (args.length != 2 && args.length != 3) {
+                System.err.println("Usage: bufferpool <jmx service url> [pages], e.g. "
+                        + "service:jmx:rmi:///jndi/rmi://localhost:9999/jmxrmi");
+                System.exit(1);
+            }
+            JMXConnector connector = JMXConnectorFactory.connect(new JMXServiceURL(args[1]));
+            try {
+                MBeanServerConnection server = connector.getMBeanServerConnection();
+                ObjectName name = new ObjectName(BufferPoolMetrics.OBJECT_NAME);
+                if (args.length == 3)
+                    server.setAttribute(name, new Attribute("Capacity", Integer.parseInt(args[2])));
+                System.out.print(server.invoke(name, "dump", null, null));
+            } catch (JMException e) {
+                System.err.println("Failed to resize or read the buffer pool: " + e.getMessage());
+                System.exit(1);
+            } finally {
+                connector.close();
+            }
+        }
         else {
             System.err.println("Unknown command: " + args[0]);
             System.exit(1);
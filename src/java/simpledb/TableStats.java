@@ -201,7 +201,7 @@ public class TableStats {
     		throw new RuntimeException(e);
     	} 
     	
-    	int pageSize = BufferPool.getPageSize();
+    	int pageSize = file.getPageSize();
     	
     	this.numPage = (this.numTuples * tupleDesc.getSize())/pageSize ;
     	
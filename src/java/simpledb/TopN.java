@@ -0,0 +1,153 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY ... LIMIT n [OFFSET m].
+ * <p>
+ * Instead of sorting its whole input like {@link OrderBy}, it keeps a bounded
+ * heap of the best n + m tuples seen so far, so it runs in O(k log(n + m))
+ * time for k input tuples and only ever holds n + m tuples in memory.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private OpIterator child;
+    private final TupleDesc td;
+    private final int[] orderByFields;
+    private final boolean[] ascs;
+    private final int limit;
+    private final int offset;
+    private transient ArrayList<Tuple> result;
+    private transient Iterator<Tuple> it;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param ascs
+     *            for each field, true if its sort order is ascending.
+     * @param limit
+     *            the maximum number of tuples to return.
+     * @param offset
+     *            the number of leading tuples of the ordering to skip.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] ascs, int limit, int offset, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != ascs.length)
+            throw new IllegalArgumentException("need one direction per sort field");
+        if (limit < 0 || offset < 0)
+            throw new IllegalArgumentException("LIMIT and OFFSET must not be negative");
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = ascs.clone();
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    public boolean[] getAscs() {
+        return ascs.clone();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** A buffered tuple; seq keeps ties in input order. */
+    private static class Entry {
+        final Tuple t;
+        final long seq;
+
+        Entry(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        final TupleComparator cmp = new TupleComparator(orderByFields, ascs);
+        final Comparator<Entry> order = new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                int c = cmp.compare(a.t, b.t);
+                return c != 0 ? c : Long.compare(a.seq, b.seq);
+            }
+        };
+        long keep = (long) limit + offset;
+        // max-heap on the ordering: the root is the worst tuple kept so far
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(
+                (int) Math.max(1, Math.min(keep, 1024)), Collections.reverseOrder(order));
+        long seq = 0;
+        if (keep > 0) {
+            while (child.hasNext()) {
+                Entry e = new Entry(child.next(), seq++);
+                if (heap.size() < keep) {
+                    heap.add(e);
+                } else if (order.compare(e, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(e);
+                }
+            }
+        }
+        Entry[] sorted = heap.toArray(new Entry[heap.size()]);
+        Arrays.sort(sorted, order);
+        result = new ArrayList<Tuple>(Math.max(0, sorted.length - offset));
+        for (int i = offset; i < sorted.length; i++)
+            result.add(sorted[i].t);
+        it = result.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        it = null;
+        result = null;
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = result.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the top tuples in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+}
@@ -0,0 +1,106 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * TupleCodec reads and writes tuples in a compact binary format used for
+ * temporary spill files (sort runs, aggregation partitions, ...).
+ * <p>
+ * Unlike {@link Field#serialize}, which pads every STRING_TYPE field to
+ * {@link Type#STRING_LEN} bytes so that it fits a fixed-size page slot,
+ * strings are written here as a short length followed by their bytes only.
+ * Record ids are not preserved.
+ */
+public class TupleCodec {
+
+    private final TupleDesc td;
+
+    /**
+     * @param td the schema of every tuple written or read by this codec
+     */
+    public TupleCodec(TupleDesc td) {
+        this.td = td;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * Write t to dos.
+     */
+    public void write(DataOutputStream dos, Tuple t) throws IOException {
+        for (int i = 0; i < td.numFields(); i++) {
+            writeField(dos, t.getField(i));
+        }
+    }
+
+    /**
+     * Read the next tuple from dis.
+     *
+     * @return the tuple read, or null if the stream is exhausted
+     */
+    public Tuple read(DataInputStream dis) throws IOException {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            Field f;
+            try {
+                f = readField(dis, td.getFieldType(i));
+            } catch (EOFException e) {
+                if (i == 0)
+                    return null;
+                throw e;
+            }
+            t.setField(i, f);
+        }
+        return t;
+    }
+
+    /**
+     * Write a single field in the compact format.
+     */
+    public static void writeField(DataOutputStream dos, Field f) throws IOException {
+        switch (f.getType()) {
+        case INT_TYPE:
+            dos.writeInt(((IntField) f).getValue());
+            break;
+        case STRING_TYPE:
+            byte[] bytes = ((StringField) f).getValue().getBytes(StandardCharsets.UTF_8);
+            dos.writeShort(bytes.length);
+            dos.write(bytes);
+            break;
+        default:
+            throw new UnsupportedOperationException("unsupported type " + f.getType());
+        }
+    }
+
+    /**
+     * Read a single field of the given type in the compact format.
+     */
+    public static Field readField(DataInputStream dis, Type type) throws IOException {
+        switch (type) {
+        case INT_TYPE:
+            return new IntField(dis.readInt());
+        case STRING_TYPE:
+            byte[] bytes = new byte[dis.readUnsignedShort()];
+            dis.readFully(bytes);
+            return new StringField(new String(bytes, StandardCharsets.UTF_8), Type.STRING_LEN);
+        default:
+            throw new UnsupportedOperationException("unsupported type " + type);
+        }
+    }
+
+    /**
+     * @return a rough estimate of the number of heap bytes used by a
+     *         materialized tuple of the given schema; used to enforce
+     *         memory budgets of operators that buffer tuples.
+     */
+    public static int estimateTupleMemory(TupleDesc td) {
+        // Tuple object + field array header, one object header per field
+        return 32 + td.numFields() * 24 + td.getSize();
+    }
+}
@@ -0,0 +1,41 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * Orders tuples by one or more of their fields, each ascending or
+ * descending, as {@link OrderBy} and {@link TopN} sort them.
+ */
+class TupleComparator implements Comparator<Tuple> {
+    int[] fields;
+    boolean[] ascs;
+
+    public TupleComparator(int field, boolean asc) {
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    public TupleComparator(int[] fields, boolean[] ascs) {
+        this.fields = fields;
+        this.ascs = ascs;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        for (int i = 0; i < fields.length; i++) {
+            int c = compareFields(o1.getField(fields[i]), o2.getField(fields[i]));
+            if (c != 0)
+                return ascs[i] ? c : -c;
+        }
+        return 0;
+    }
+
+    static int compareFields(Field t1, Field t2) {
+        if (t1 instanceof IntField)
+            return Integer.compare(((IntField) t1).getValue(), ((IntField) t2).getValue());
+        if (t1 instanceof StringField)
+            return ((StringField) t1).getValue().compareTo(((StringField) t2).getValue());
+        if (t1.compare(Predicate.Op.EQUALS, t2))
+            return 0;
+        return t1.compare(Predicate.Op.GREATER_THAN, t2) ? 1 : -1;
+    }
+    
+}
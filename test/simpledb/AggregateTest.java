@@ -176,6 +176,28 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate.getNext() computing several aggregates over a
+   * composite group key in one pass
+   */
+  @Test public void multipleAggregates() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(3,
+        new int[] { 1, 1, 2,
+                    1, 1, 4,
+                    1, 2, 6,
+                    3, 1, 2,
+                    3, 1, 8 });
+    OpIterator expected = TestUtil.createTupleList(5,
+        new int[] { 1, 1, 3, 2, 4,
+                    1, 2, 6, 6, 6,
+                    3, 1, 5, 2, 8 });
+    Aggregate op = new Aggregate(scan, new int[] { 2, 2, 2 }, new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.AVG, Aggregator.Op.MIN, Aggregator.Op.MAX });
+    assertEquals(5, op.getTupleDesc().numFields());
+    op.open();
+    TestUtil.matchAllTuples(expected, op);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,122 @@
+package simpledb;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolMetricsTest extends TestUtil.CreateHeapFile {
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        for (int i = 0; i < 504 * 3; ++i)
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(2);
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private Page get(int pgNo) throws Exception {
+        return Database.getBufferPool().getPage(tid, new HeapPageId(empty.getId(), pgNo),
+                Permissions.READ_ONLY);
+    }
+
+    /**
+     * Unit test for the counters of a table
+     */
+    @Test public void counters() throws Exception {
+        BufferPoolMetrics metrics = Database.getBufferPool().getMetrics();
+        int id = empty.getId();
+        get(0);
+        get(0);
+        get(1);
+        get(2);
+        assertEquals(1, metrics.getHits(id));
+        assertEquals(3, metrics.getMisses(id));
+        assertEquals(3, metrics.getReads(id));
+        assertEquals(1, metrics.getEvictions(id));
+        assertEquals(0.25, metrics.getHitRatio(), 0.0001);
+        assertEquals(2, metrics.getResidentPages());
+        assertEquals(0, metrics.getDirtyPages());
+
+        // the new page is created in the pool, not read
+        Database.getBufferPool().insertTuple(tid, id, Utility.getHeapTuple(-1, 2));
+        assertEquals(3, metrics.getReads(id));
+        assertEquals(2, metrics.getEvictions(id));
+        assertEquals(1, metrics.getDirtyPages());
+
+        Database.getBufferPool().flushAllPages();
+        assertEquals(1, metrics.getWrites(id));
+        assertEquals(0, metrics.getDirtyPages());
+        long flushes = 0;
+        for (long count : metrics.getFlushLatencyHistogram(id))
+            flushes += count;
+        assertEquals(1, flushes);
+        assertTrue(metrics.dump().contains(Database.getCatalog().getTableName(id)));
+    }
+
+    /**
+     * Unit test for counting the evictions that found no page to evict
+     */
+    @Test public void evictionFailures() throws Exception {
+        Database.resetBufferPool(1);
+        get(0);
+        Latch latch = Database.getBufferPool().latch(new HeapPageId(empty.getId(), 0), false);
+        try {
+            get(1);
+            fail("the only page is latched");
+        } catch (DbException e) {
+            // expected
+        } finally {
+            latch.release();
+        }
+        assertEquals(1, Database.getBufferPool().getMetrics().getEvictionFailures());
+    }
+
+    /**
+     * Unit test for reading the counters of a table the pool has not seen,
+     * which does not add it to the dump
+     */
+    @Test public void untouchedTable() throws Exception {
+        BufferPoolMetrics metrics = Database.getBufferPool().getMetrics();
+        int unknown = empty.getId() + 1;
+        assertEquals(0, metrics.getHits(unknown));
+        assertEquals(0, metrics.getEvictions(unknown));
+        assertArrayEquals(new long[BufferPoolMetrics.LATENCY_BUCKETS],
+                metrics.getFlushLatencyHistogram(unknown));
+        assertFalse(metrics.dump().contains(Integer.toString(unknown)));
+    }
+
+    /**
+     * Unit test for the metrics of the current pool being registered as an
+     * MBean
+     */
+    @Test public void mbean() throws Exception {
+        get(0);
+        get(0);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(BufferPoolMetrics.OBJECT_NAME);
+        assertEquals(1L, server.getAttribute(name, "Hits"));
+        assertEquals(1, server.getAttribute(name, "ResidentPages"));
+        assertEquals(2, server.getAttribute(name, "Capacity"));
+        assertTrue(((String) server.invoke(name, "dump", null, null)).contains("hit ratio"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolMetricsTest.class);
+    }
+}
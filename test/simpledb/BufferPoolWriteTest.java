@@ -5,6 +5,9 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Before;
@@ -48,6 +51,29 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	}
     }
     
+    // class to count the pages read from disk
+    class HeapFileReadCounter extends HeapFile {
+
+    	final AtomicInteger reads = new AtomicInteger();
+    	// milliseconds each read takes, to make concurrent loads overlap
+    	volatile int delay = 0;
+
+    	public HeapFileReadCounter(File f, TupleDesc td) {
+    		super(f, td);
+    	}
+
+    	@Override
+    	public Page readPage(PageId pid) {
+    		reads.incrementAndGet();
+    		try {
+    			Thread.sleep(delay);
+    		} catch (InterruptedException e) {
+    			throw new RuntimeException(e);
+    		}
+    		return super.readPage(pid);
+    	}
+    }
+
     /**
      * Set up initial resources for each unit test.
      */
@@ -58,6 +84,8 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
 
     @After public void tearDown() throws Exception {
         Database.getBufferPool().transactionComplete(tid);
+        BufferPool.resetOffHeap();
+        BufferPool.resetCompressedCacheSize();
     }
 
     /**
@@ -133,6 +161,336 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Unit test for BufferPool.transactionComplete() restoring the pages of
+     * an aborted transaction without reading them from disk
+     */
+    @Test public void abortInMemory() throws Exception {
+    	HeapFileReadCounter hf = new HeapFileReadCounter(empty.getFile(), empty.getTupleDesc());
+    	Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    	Tuple kept = Utility.getHeapTuple(1, 2);
+    	Database.getBufferPool().insertTuple(tid, hf.getId(), kept);
+    	Database.getBufferPool().transactionComplete(tid);
+    	assertEquals(1, hf.reads.get());
+
+    	TransactionId aborted = new TransactionId();
+    	Database.getBufferPool().deleteTuple(aborted, kept);
+    	for (int i = 0; i < 600; ++i)
+    		Database.getBufferPool().insertTuple(aborted, hf.getId(), Utility.getHeapTuple(i, 2));
+    	Database.getBufferPool().transactionComplete(aborted, false);
+    	assertEquals(1, hf.reads.get());
+
+    	HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+    			new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+    	assertEquals(503, p.getNumEmptySlots());
+    	assertTrue(TestUtil.compareTuples(kept, p.iterator().next()));
+    	p = (HeapPage) Database.getBufferPool().getPage(tid,
+    			new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+    	assertEquals(504, p.getNumEmptySlots());
+    	assertEquals(1, hf.reads.get());
+    }
+
+    /**
+     * Unit test for dirty pages being evicted before their transaction
+     * completes (STEAL), and undone from the log when it aborts
+     */
+    @Test public void stealAndAbort() throws Exception {
+    	Database.resetBufferPool(2);
+    	TransactionId aborted = new TransactionId();
+    	for (int i = 0; i < 504 * 3; ++i)
+    		Database.getBufferPool().insertTuple(aborted, empty.getId(), Utility.getHeapTuple(i, 2));
+    	assertEquals(3, empty.numPages());
+
+    	// the first page was stolen, and is read back with its tuples
+    	HeapPage p = (HeapPage) Database.getBufferPool().getPage(aborted,
+    			new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY);
+    	assertEquals(0, p.getNumEmptySlots());
+    	Database.getBufferPool().transactionComplete(aborted, false);
+
+    	for (int i = 0; i < 3; ++i) {
+    		p = (HeapPage) Database.getBufferPool().getPage(tid,
+    				new HeapPageId(empty.getId(), i), Permissions.READ_ONLY);
+    		assertEquals(504, p.getNumEmptySlots());
+    	}
+    }
+
+    /**
+     * Unit test for concurrent misses on a page reading it once, and for
+     * concurrent loads of more pages than fit staying within the pool
+     */
+    @Test public void concurrentLoads() throws Exception {
+    	HeapFileReadCounter hf = new HeapFileReadCounter(empty.getFile(), empty.getTupleDesc());
+    	Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    	for (int i = 0; i < 504 * 4; ++i)
+    		Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+    	Database.getBufferPool().transactionComplete(tid);
+    	Database.resetBufferPool(2);
+    	hf.reads.set(0);
+    	hf.delay = 50;
+
+    	final int threads = 8;
+    	final Page[] seen = new Page[threads];
+    	final Exception[] failures = new Exception[threads];
+    	final AtomicInteger firstReads = new AtomicInteger();
+    	final CyclicBarrier loaded = new CyclicBarrier(threads,
+    			() -> firstReads.set(hf.reads.get()));
+    	Thread[] workers = new Thread[threads];
+    	for (int i = 0; i < threads; ++i) {
+    		final int n = i;
+    		workers[i] = new Thread(() -> {
+    			TransactionId t = new TransactionId();
+    			try {
+    				seen[n] = Database.getBufferPool().getPage(t,
+    						new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+    				loaded.await();
+    				for (int pg = 1; pg < 4; ++pg)
+    					Database.getBufferPool().getPage(t,
+    							new HeapPageId(hf.getId(), pg), Permissions.READ_ONLY);
+    				Database.getBufferPool().transactionComplete(t);
+    			} catch (Exception e) {
+    				failures[n] = e;
+    			}
+    		});
+    		workers[i].start();
+    	}
+    	for (Thread w : workers)
+    		w.join();
+
+    	for (int i = 0; i < threads; ++i) {
+    		assertNull(failures[i]);
+    		assertSame(seen[0], seen[i]);
+    	}
+    	assertEquals(1, firstReads.get());
+    	// the other pages are read at most once per thread
+    	assertTrue(hf.reads.get() >= 4);
+    	assertTrue(hf.reads.get() <= 1 + 3 * threads);
+    	int cached = 0;
+    	for (int pg = 0; pg < 4; ++pg) {
+    		if (Database.getBufferPool().holdsPage(new HeapPageId(hf.getId(), pg)))
+    			cached++;
+    	}
+    	assertTrue(cached <= 2);
+    }
+
+    /**
+     * Unit test for page latches: a latched page is not evicted, and an
+     * exclusive latch keeps other threads from latching the page
+     */
+    @Test public void latches() throws Exception {
+    	for (int i = 0; i < 504 * 3; ++i)
+    		Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+    	Database.getBufferPool().transactionComplete(tid);
+    	Database.resetBufferPool(2);
+
+    	HeapPageId pid = new HeapPageId(empty.getId(), 0);
+    	Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+    	Latch latch = Database.getBufferPool().latch(pid, true);
+    	final AtomicInteger shared = new AtomicInteger();
+    	Thread reader = new Thread(() -> {
+    		Database.getBufferPool().latch(pid, false).release();
+    		shared.incrementAndGet();
+    	});
+    	reader.start();
+    	for (int i = 1; i < 3; ++i)
+    		Database.getBufferPool().getPage(tid, new HeapPageId(empty.getId(), i), Permissions.READ_ONLY);
+    	assertTrue(Database.getBufferPool().holdsPage(pid));
+    	Thread.sleep(100);
+    	assertEquals(0, shared.get());
+
+    	latch.release();
+    	reader.join();
+    	assertEquals(1, shared.get());
+    }
+
+    /**
+     * Unit test for a buffer pool keeping heap pages off-heap: pages read in
+     * place are copied to the heap once they are evicted, and aborts still
+     * restore them
+     */
+    @Test public void offHeap() throws Exception {
+    	for (int i = 0; i < 504 * 3; ++i)
+    		Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+    	Database.getBufferPool().transactionComplete(tid);
+    	BufferPool.setOffHeap(true);
+    	Database.resetBufferPool(1);
+
+    	HeapPage first = (HeapPage) Database.getBufferPool().getPage(tid,
+    			new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY);
+    	assertTrue(Database.getBufferPool().getOffHeapBytes() > 0);
+    	for (int pg = 1; pg < 3; ++pg) {
+    		HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+    				new HeapPageId(empty.getId(), pg), Permissions.READ_ONLY);
+    		Iterator<Tuple> it = p.iterator();
+    		for (int i = 0; i < 504; ++i)
+    			assertEquals(504 * pg + i, ((IntField) it.next().getField(0)).getValue());
+    		assertFalse(it.hasNext());
+    	}
+    	// evicted, and its buffer reused, but still readable
+    	assertFalse(Database.getBufferPool().holdsPage(first.getId()));
+    	assertEquals(0, ((IntField) first.iterator().next().getField(0)).getValue());
+    	Database.getBufferPool().transactionComplete(tid);
+
+    	TransactionId aborted = new TransactionId();
+    	HeapPage p = (HeapPage) Database.getBufferPool().getPage(aborted,
+    			new HeapPageId(empty.getId(), 2), Permissions.READ_WRITE);
+    	Database.getBufferPool().deleteTuple(aborted, p.iterator().next());
+    	Database.getBufferPool().transactionComplete(aborted, false);
+    	p = (HeapPage) Database.getBufferPool().getPage(tid,
+    			new HeapPageId(empty.getId(), 2), Permissions.READ_ONLY);
+    	assertEquals(0, p.getNumEmptySlots());
+    	assertEquals(504 * 2, ((IntField) p.iterator().next().getField(0)).getValue());
+    }
+
+    /**
+     * Unit test for pages read in place off-heap not keeping the tuples
+     * scans decode from them, only those inserted
+     */
+    @Test public void offHeapTuples() throws Exception {
+    	for (int i = 0; i < 600; ++i)
+    		Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+    	Database.getBufferPool().transactionComplete(tid);
+    	BufferPool.setOffHeap(true);
+    	Database.resetBufferPool(4);
+
+    	HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+    			new HeapPageId(empty.getId(), 1), Permissions.READ_WRITE);
+    	int count = 0;
+    	for (Iterator<Tuple> it = p.iterator(); it.hasNext(); it.next())
+    		count++;
+    	assertEquals(600 - 504, count);
+    	for (Tuple t : p.tuples)
+    		assertNull(t);
+
+    	Tuple inserted = Utility.getHeapTuple(600, 2);
+    	Database.getBufferPool().insertTuple(tid, empty.getId(), inserted);
+    	assertSame(inserted, p.tuples[inserted.getRecordId().getTupleNumber()]);
+    	Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for resizing a buffer pool in use: shrinking evicts down to
+     * the new size, or leaves latched pages to later requests, and growing
+     * makes room at once
+     */
+    @Test public void resize() throws Exception {
+    	for (int i = 0; i < 504 * 4; ++i)
+    		Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+    	Database.getBufferPool().transactionComplete(tid);
+    	BufferPool pool = Database.resetBufferPool(4);
+    	BufferPoolMetrics metrics = pool.getMetrics();
+
+    	for (int pg = 0; pg < 4; ++pg)
+    		pool.getPage(tid, new HeapPageId(empty.getId(), pg), Permissions.READ_ONLY);
+    	assertTrue(pool.setNumPages(3));
+    	assertEquals(3, metrics.getResidentPages());
+
+    	ArrayList<Latch> latches = new ArrayList<>();
+    	for (int pg = 0; pg < 4 && latches.size() < 2; ++pg) {
+    		HeapPageId pid = new HeapPageId(empty.getId(), pg);
+    		if (pool.holdsPage(pid))
+    			latches.add(pool.latch(pid, false));
+    	}
+    	assertFalse(pool.setNumPages(1));
+    	assertEquals(2, metrics.getResidentPages());
+    	for (Latch latch : latches)
+    		latch.release();
+    	int missing = 0;
+    	while (pool.holdsPage(new HeapPageId(empty.getId(), missing)))
+    		++missing;
+    	pool.getPage(tid, new HeapPageId(empty.getId(), missing), Permissions.READ_ONLY);
+    	assertEquals(1, metrics.getResidentPages());
+
+    	long evictions = metrics.getEvictions();
+    	assertTrue(pool.setNumPages(4));
+    	for (int pg = 0; pg < 4; ++pg)
+    		pool.getPage(tid, new HeapPageId(empty.getId(), pg), Permissions.READ_ONLY);
+    	assertEquals(4, metrics.getResidentPages());
+    	assertEquals(evictions, metrics.getEvictions());
+    	assertEquals(4, metrics.getCapacity());
+
+    	try {
+    		pool.setNumPages(0);
+    		fail("a pool holds at least one page");
+    	} catch (DbException e) {
+    		// expected
+    	}
+    }
+
+    /**
+     * Unit test for a pool holding pages of different sizes, off-heap: a
+     * larger page takes as much of the pool as the default size pages it
+     * spans, and is kept in frames of its size
+     */
+    @Test public void pageSizes() throws Exception {
+    	File f = File.createTempFile("wide", ".dat");
+    	f.deleteOnExit();
+    	HeapFile wide = new HeapFile(f, Utility.getTupleDesc(2), BufferPool.getPageSize() * 4);
+    	Database.getCatalog().addTable(wide, SystemTestUtil.getUUID());
+    	wide.getFreeSpaceMap().getFile().deleteOnExit();
+    	for (int i = 0; i < 2016 * 2; ++i)
+    		Database.getBufferPool().insertTuple(tid, wide.getId(), Utility.getHeapTuple(i, 2));
+    	Database.getBufferPool().transactionComplete(tid);
+    	BufferPool.setOffHeap(true);
+    	BufferPool pool = Database.resetBufferPool(8);
+    	BufferPoolMetrics metrics = pool.getMetrics();
+
+    	for (int pg = 0; pg < 2; ++pg) {
+    		HeapPage p = (HeapPage) pool.getPage(tid, new HeapPageId(wide.getId(), pg), Permissions.READ_ONLY);
+    		assertEquals(0, p.getNumEmptySlots());
+    		assertEquals(2016 * pg, ((IntField) p.iterator().next().getField(0)).getValue());
+    	}
+    	assertEquals(2, metrics.getResidentPages());
+    	assertEquals(0, metrics.getEvictions());
+
+    	// the pool is full, and one of the wide pages makes room for 4 pages
+    	pool.getPage(tid, new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY);
+    	assertEquals(1, metrics.getEvictions());
+    	assertEquals(2, metrics.getResidentPages());
+    	assertEquals(2L * FrameArena.SLAB_SIZE, pool.getOffHeapBytes());
+    }
+
+    /**
+     * Unit test for the second tier of the pool: evicted pages are read
+     * back from it rather than from disk, and pages rolled back on disk are
+     * dropped from it
+     */
+    @Test public void compressedCache() throws Exception {
+    	HeapFileReadCounter hf = new HeapFileReadCounter(empty.getFile(), empty.getTupleDesc());
+    	Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    	for (int i = 0; i < 504 * 3; ++i)
+    		Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+    	Database.getBufferPool().transactionComplete(tid);
+    	BufferPool.setCompressedCacheSize(1 << 20);
+    	BufferPool pool = Database.resetBufferPool(1);
+    	BufferPoolMetrics metrics = pool.getMetrics();
+    	hf.reads.set(0);
+
+    	for (int pg = 0; pg < 3; ++pg)
+    		pool.getPage(tid, new HeapPageId(hf.getId(), pg), Permissions.READ_ONLY);
+    	assertEquals(3, hf.reads.get());
+    	assertEquals(2, metrics.getCompressedPages());
+    	assertTrue(metrics.getCompressionRatio() > 1);
+
+    	HeapPage p = (HeapPage) pool.getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+    	assertEquals(3, hf.reads.get());
+    	assertEquals(1, metrics.getCompressedHits(hf.getId()));
+    	Iterator<Tuple> it = p.iterator();
+    	for (int i = 0; i < 504; ++i)
+    		assertEquals(i, ((IntField) it.next().getField(0)).getValue());
+    	assertFalse(it.hasNext());
+    	Database.getBufferPool().transactionComplete(tid);
+
+    	// stolen, kept compressed, then rolled back on disk
+    	TransactionId aborted = new TransactionId();
+    	p = (HeapPage) pool.getPage(aborted, new HeapPageId(hf.getId(), 1), Permissions.READ_WRITE);
+    	pool.deleteTuple(aborted, p.iterator().next());
+    	pool.getPage(aborted, new HeapPageId(hf.getId(), 2), Permissions.READ_ONLY);
+    	pool.transactionComplete(aborted, false);
+    	p = (HeapPage) pool.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+    	assertEquals(0, p.getNumEmptySlots());
+    	assertEquals(4, hf.reads.get());
+    }
+
     /**
      * JUnit suite target
      */
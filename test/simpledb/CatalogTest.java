@@ -2,6 +2,9 @@ package simpledb;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -94,6 +97,49 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Unit test for tables of the schema with their own page size
+     */
+    @Test public void loadSchemaPageSize() throws Exception {
+        File dir = Files.createTempDirectory("catalog").toFile();
+        dir.deleteOnExit();
+        File schema = new File(dir, "catalog.txt");
+        schema.deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write("wide (a int, b string) pagesize 65536\n");
+        w.write("narrow (a int pk)\n");
+        w.close();
+        Database.getCatalog().loadSchema(schema.getPath());
+
+        int wide = Database.getCatalog().getTableId("wide");
+        assertEquals(65536, Database.getCatalog().getPageSize(wide));
+        assertEquals(65536, Database.getCatalog().getDatabaseFile(wide).getPageSize());
+        int narrow = Database.getCatalog().getTableId("narrow");
+        assertEquals(BufferPool.getPageSize(), Database.getCatalog().getPageSize(narrow));
+        assertEquals("a", Database.getCatalog().getPrimaryKey(narrow));
+    }
+
+    /**
+     * Unit test for tables of the schema stored compressed
+     */
+    @Test public void loadSchemaCompressed() throws Exception {
+        File dir = Files.createTempDirectory("catalog").toFile();
+        dir.deleteOnExit();
+        File schema = new File(dir, "catalog.txt");
+        schema.deleteOnExit();
+        FileWriter w = new FileWriter(schema);
+        w.write("packed (a int, b string) compressed pagesize 8192\n");
+        w.write("plain (a int, b string) pagesize 8192\n");
+        w.close();
+        Database.getCatalog().loadSchema(schema.getPath());
+
+        DbFile packed = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("packed"));
+        Assert.assertTrue(packed instanceof CompressedHeapFile);
+        assertEquals(8192, packed.getPageSize());
+        DbFile plain = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("plain"));
+        Assert.assertFalse(plain instanceof CompressedHeapFile);
+    }
+
     /**
      * JUnit suite target
      */
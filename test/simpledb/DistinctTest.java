@@ -0,0 +1,144 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import Zql.ZQuery;
+import Zql.ZqlParser;
+
+public class DistinctTest extends SimpleDbTestBase {
+
+  @After public void resetDistinctMemory() {
+    Distinct.resetDistinctMemory();
+  }
+
+  private static HashSet<ArrayList<Integer>> drain(OpIterator it) throws Exception {
+    HashSet<ArrayList<Integer>> seen = new HashSet<ArrayList<Integer>>();
+    while (it.hasNext()) {
+      ArrayList<Integer> t = SystemTestUtil.tupleToList(it.next());
+      // a duplicate would not be added
+      assertTrue(t.toString(), seen.add(t));
+    }
+    return seen;
+  }
+
+  /**
+   * Unit test for a Distinct returning each distinct tuple once, also after
+   * a rewind
+   */
+  @Test public void distinctTuples() throws Exception {
+    OpIterator child = TestUtil.createTupleList(2,
+        new int[] { 1, 2,
+                    1, 2,
+                    1, 3,
+                    2, 2,
+                    1, 3 });
+    Distinct op = new Distinct(child);
+    assertEquals(child.getTupleDesc(), op.getTupleDesc());
+    op.open();
+    assertEquals(3, drain(op).size());
+    op.rewind();
+    assertEquals(3, drain(op).size());
+    op.close();
+  }
+
+  /**
+   * Unit test for a Distinct on some key fields returning the first tuple of
+   * each key
+   */
+  @Test public void distinctKeys() throws Exception {
+    OpIterator child = TestUtil.createTupleList(2,
+        new int[] { 1, 2,
+                    1, 3,
+                    2, 2,
+                    2, 5 });
+    Distinct op = new Distinct(child, new int[] { 0 });
+    OpIterator expected = TestUtil.createTupleList(2, new int[] { 1, 2, 2, 2 });
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.close();
+  }
+
+  /**
+   * Unit test for a Distinct whose keys do not fit in its memory budget
+   */
+  @Test public void spill() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, 300, null, tuples);
+    HashSet<ArrayList<Integer>> expected = new HashSet<ArrayList<Integer>>(tuples);
+    assertTrue(expected.size() > 1000);
+
+    Distinct.setDistinctMemory(10000);
+    TransactionId tid = new TransactionId();
+    Distinct op = new Distinct(new SeqScan(tid, f.getId(), "t"));
+    op.open();
+    assertEquals(expected, drain(op));
+    assertTrue(op.spilled());
+    op.rewind();
+    assertEquals(expected, drain(op));
+    op.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private static ArrayList<ArrayList<Integer>> run(TransactionId tid, String sql) throws Exception {
+    ZqlParser zp = new ZqlParser(new ByteArrayInputStream(sql.getBytes()));
+    LogicalPlan lp = new Parser().parseQueryLogicalPlan(tid, (ZQuery) zp.readStatement());
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+    plan.open();
+    while (plan.hasNext())
+      result.add(SystemTestUtil.tupleToList(plan.next()));
+    plan.close();
+    return result;
+  }
+
+  /**
+   * Unit test for planning SELECT DISTINCT and COUNT(DISTINCT ...)
+   */
+  @Test public void distinctQueries() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 2000, 20, null, tuples, "c");
+    Database.getCatalog().addTable(f, "distinct_t");
+    TableStats.computeStatistics();
+    HashSet<ArrayList<Integer>> pairs = new HashSet<ArrayList<Integer>>();
+    HashMap<Integer, HashSet<Integer>> perGroup = new HashMap<Integer, HashSet<Integer>>();
+    for (ArrayList<Integer> t : tuples) {
+      pairs.add(new ArrayList<Integer>(t.subList(0, 2)));
+      if (!perGroup.containsKey(t.get(0)))
+        perGroup.put(t.get(0), new HashSet<Integer>());
+      perGroup.get(t.get(0)).add(t.get(2));
+    }
+
+    TransactionId tid = new TransactionId();
+    ArrayList<ArrayList<Integer>> result = run(tid, "SELECT DISTINCT distinct_t.c0, distinct_t.c1 FROM distinct_t;");
+    assertEquals(pairs, new HashSet<ArrayList<Integer>>(result));
+    assertEquals(pairs.size(), result.size());
+
+    result = run(tid, "SELECT distinct_t.c0, COUNT(DISTINCT distinct_t.c2) FROM distinct_t GROUP BY distinct_t.c0;");
+    assertEquals(perGroup.size(), result.size());
+    for (ArrayList<Integer> t : result)
+      assertEquals(perGroup.get(t.get(0)).size(), (int) t.get(1));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(DistinctTest.class);
+  }
+}
@@ -0,0 +1,187 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+  @After public void resetParallelism() {
+    Exchange.resetParallelism();
+  }
+
+  private static OpIterator[] producers(int n, int rows) {
+    OpIterator[] producers = new OpIterator[n];
+    for (int p = 0; p < n; p++) {
+      int[] data = new int[rows * 2];
+      for (int i = 0; i < rows; i++) {
+        data[2 * i] = i % 7;
+        data[2 * i + 1] = p * rows + i;
+      }
+      producers[p] = TestUtil.createTupleList(2, data);
+    }
+    return producers;
+  }
+
+  private static ArrayList<Integer> drain(OpIterator it, int field) throws Exception {
+    ArrayList<Integer> values = new ArrayList<Integer>();
+    while (it.hasNext())
+      values.add(((IntField) it.next().getField(field)).getValue());
+    Collections.sort(values);
+    return values;
+  }
+
+  private static ArrayList<Integer> range(int n) {
+    ArrayList<Integer> values = new ArrayList<Integer>();
+    for (int i = 0; i < n; i++)
+      values.add(i);
+    return values;
+  }
+
+  /**
+   * Unit test for a gather returning every tuple of every producer, also
+   * after a rewind
+   */
+  @Test public void gather() throws Exception {
+    Exchange ex = new Exchange(producers(4, 3000));
+    ex.open();
+    assertEquals(range(12000), drain(ex, 1));
+    ex.rewind();
+    assertEquals(range(12000), drain(ex, 1));
+    ex.close();
+  }
+
+  /**
+   * Unit test for a repartition sending all tuples with the same key, and
+   * only those, to the same consumer
+   */
+  @Test public void repartition() throws Exception {
+    Exchange[] consumers = Exchange.repartition(producers(3, 2000), new int[] { 0 }, 4);
+    assertEquals(4, consumers.length);
+    // each consumer counts the tuples of the keys routed to it
+    OpIterator[] tagged = new OpIterator[consumers.length];
+    for (int c = 0; c < consumers.length; c++)
+      tagged[c] = new Aggregate(consumers[c], new int[] { 1, 1 }, new int[] { 0 },
+          new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.MIN });
+    Exchange gather = new Exchange(tagged);
+    gather.open();
+    HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+    while (gather.hasNext()) {
+      Tuple t = gather.next();
+      int key = ((IntField) t.getField(0)).getValue();
+      // a key split over several consumers would be reported more than once
+      assertFalse(counts.containsKey(key));
+      counts.put(key, ((IntField) t.getField(1)).getValue());
+    }
+    gather.close();
+    assertEquals(7, counts.size());
+    int total = 0;
+    for (int c : counts.values())
+      total += c;
+    assertEquals(6000, total);
+  }
+
+  /**
+   * Unit test for a broadcast delivering every tuple to every consumer
+   */
+  @Test public void broadcast() throws Exception {
+    Exchange[] consumers = Exchange.broadcast(producers(2, 1500), 3);
+    OpIterator[] counts = new OpIterator[consumers.length];
+    for (int c = 0; c < consumers.length; c++)
+      counts[c] = new Aggregate(consumers[c], 1, Aggregator.NO_GROUPING, Aggregator.Op.COUNT);
+    Exchange gather = new Exchange(counts);
+    gather.open();
+    assertEquals(Collections.nCopies(3, 3000), drain(gather, 0));
+    gather.close();
+  }
+
+  /**
+   * Unit test for failures of a producer surfacing at the consumer
+   */
+  @Test(expected = DbException.class) public void producerFailure() throws Exception {
+    final OpIterator ok = TestUtil.createTupleList(1, new int[] { 1, 2, 3 });
+    OpIterator failing = new Operator() {
+      private static final long serialVersionUID = 1L;
+      protected Tuple fetchNext() throws DbException {
+        throw new DbException("broken producer");
+      }
+      public void rewind() {
+      }
+      public TupleDesc getTupleDesc() {
+        return ok.getTupleDesc();
+      }
+      public OpIterator[] getChildren() {
+        return new OpIterator[0];
+      }
+      public void setChildren(OpIterator[] children) {
+      }
+    };
+    Exchange ex = new Exchange(new OpIterator[] { ok, failing });
+    ex.open();
+    try {
+      while (ex.hasNext())
+        ex.next();
+    } finally {
+      ex.close();
+    }
+  }
+
+  /**
+   * Unit test for partitioned scans covering a heap file exactly once
+   */
+  @Test public void partitionedScan() throws Exception {
+    Exchange.setParallelism(3);
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 40000, null, tuples);
+    TransactionId tid = new TransactionId();
+    SeqScan[] scans = Exchange.partitionScan(tid, f.getId(), "t");
+    assertEquals(3, scans.length);
+    assertTrue(scans[0].isPartitioned());
+    Exchange ex = new Exchange(scans);
+    ex.open();
+    int count = 0;
+    while (ex.hasNext()) {
+      ex.next();
+      count++;
+    }
+    ex.close();
+    assertEquals(tuples.size(), count);
+
+    // small tables are not split
+    HeapFile small = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    assertNull(Exchange.partitionScan(tid, small.getId(), "s"));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for scans not being split unless parallelism is asked for,
+   * so that queries return their tuples in the order of the table
+   */
+  @Test public void serialByDefault() throws Exception {
+    assertEquals(1, Exchange.getParallelism());
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 40000, null, null);
+    TransactionId tid = new TransactionId();
+    assertNull(Exchange.partitionScan(tid, f.getId(), "t"));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExchangeTest.class);
+  }
+}
@@ -0,0 +1,62 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class FrameArenaTest {
+
+    /**
+     * Unit test for frames being reused, most recently freed first
+     */
+    @Test public void reuse() {
+        FrameArena arena = new FrameArena(FrameArena.SLAB_SIZE / 2);
+        ByteBuffer a = arena.allocate();
+        ByteBuffer b = arena.allocate();
+        assertEquals(FrameArena.SLAB_SIZE, arena.getCapacity());
+        assertEquals(FrameArena.SLAB_SIZE / 2, a.capacity());
+        arena.free(a);
+        arena.free(b);
+        assertSame(b, arena.allocate());
+        assertSame(a, arena.allocate());
+        assertEquals(FrameArena.SLAB_SIZE, arena.getCapacity());
+    }
+
+    /**
+     * Unit test for dropping the slabs no frame is used of
+     */
+    @Test public void trim() {
+        FrameArena arena = new FrameArena(FrameArena.SLAB_SIZE / 2);
+        ByteBuffer a = arena.allocate();
+        ByteBuffer b = arena.allocate();
+        ByteBuffer c = arena.allocate();
+        assertEquals(2L * FrameArena.SLAB_SIZE, arena.getCapacity());
+
+        // c's slab is in use
+        arena.trim(0);
+        assertEquals(2L * FrameArena.SLAB_SIZE, arena.getCapacity());
+
+        arena.free(a);
+        arena.free(b);
+        arena.trim(FrameArena.SLAB_SIZE);
+        assertEquals(FrameArena.SLAB_SIZE, arena.getCapacity());
+        ByteBuffer d = arena.allocate();
+        assertNotSame(a, d);
+        assertNotSame(b, d);
+        assertNotSame(c, d);
+        arena.free(c);
+        arena.free(d);
+        arena.trim(0);
+        assertEquals(0, arena.getCapacity());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FrameArenaTest.class);
+    }
+}
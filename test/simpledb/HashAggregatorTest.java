@@ -0,0 +1,182 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashAggregatorTest extends SimpleDbTestBase {
+
+  @After public void resetAggregateMemory() {
+    Aggregate.resetAggregateMemory();
+  }
+
+  private static void mergeAll(HashAggregator agg, OpIterator it) throws Exception {
+    it.open();
+    while (it.hasNext())
+      agg.mergeTupleIntoGroup(it.next());
+  }
+
+  /**
+   * Unit test for grouping on several fields at once
+   */
+  @Test public void compositeGroupKey() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(3,
+        new Object[] { 1, "a", 10,
+                       1, "b", 20,
+                       1, "a", 30,
+                       2, "a", 40 });
+    OpIterator expected = TestUtil.createTupleList(3,
+        new Object[] { 1, "a", 40,
+                       1, "b", 20,
+                       2, "a", 40 });
+    HashAggregator agg = new HashAggregator(scan.getTupleDesc(),
+        new int[] { 0, 1 }, 2, Aggregator.Op.SUM, 1 << 20);
+    mergeAll(agg, scan);
+    assertEquals(3, agg.numGroups());
+    OpIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(expected, it);
+  }
+
+  /**
+   * Unit test for sums whose intermediate values exceed the range of an int
+   */
+  @Test public void avgDoesNotOverflow() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(1,
+        new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE });
+    HashAggregator agg = new HashAggregator(scan.getTupleDesc(),
+        new int[0], 0, Aggregator.Op.AVG, 1 << 20);
+    mergeAll(agg, scan);
+    OpIterator it = agg.iterator();
+    it.open();
+    assertEquals(new IntField(Integer.MAX_VALUE), it.next().getField(0));
+    assertFalse(it.hasNext());
+
+    scan.rewind();
+    agg = new HashAggregator(scan.getTupleDesc(), new int[0], 0, Aggregator.Op.SUM, 1 << 20);
+    mergeAll(agg, scan);
+    it = agg.iterator();
+    it.open();
+    try {
+      it.next();
+      assertTrue("expected a DbException", false);
+    } catch (DbException e) {
+      // a sum that does not fit in an INT_TYPE field is not silently wrapped
+    }
+  }
+
+  /**
+   * Unit test for an Aggregate whose groups do not fit in the memory budget
+   * and are spilled to partitions; also checks rewind
+   */
+  @Test public void spilledGroups() throws Exception {
+    Aggregate.setAggregateMemory(1024);
+    Random rand = new Random(2);
+    int rows = 20000;
+    int[] data = new int[rows * 2];
+    HashMap<Integer, Integer> max = new HashMap<Integer, Integer>();
+    for (int i = 0; i < rows; i++) {
+      int g = rand.nextInt(3000);
+      int v = rand.nextInt(1000000);
+      data[2 * i] = g;
+      data[2 * i + 1] = v;
+      Integer m = max.get(g);
+      if (m == null || v > m)
+        max.put(g, v);
+    }
+    Aggregate op = new Aggregate(TestUtil.createTupleList(2, data), 1, 0,
+        Aggregator.Op.MAX);
+    op.open();
+    for (int pass = 0; pass < 2; pass++) {
+      int groups = 0;
+      while (op.hasNext()) {
+        Tuple t = op.next();
+        int g = ((IntField) t.getField(0)).getValue();
+        assertEquals(max.get(g).intValue(), ((IntField) t.getField(1)).getValue());
+        groups++;
+      }
+      assertEquals(max.size(), groups);
+      op.rewind();
+    }
+    op.close();
+  }
+
+  /**
+   * Unit test for merging partial aggregates computed over disjoint inputs,
+   * including groups that one of them has spilled
+   */
+  @Test public void mergePartials() throws Exception {
+    Random rand = new Random(3);
+    int rows = 10000;
+    int[] data = new int[rows * 2];
+    HashMap<Integer, long[]> expected = new HashMap<Integer, long[]>();
+    for (int i = 0; i < rows; i++) {
+      int g = rand.nextInt(500);
+      int v = rand.nextInt(1000);
+      data[2 * i] = g;
+      data[2 * i + 1] = v;
+      long[] e = expected.get(g);
+      if (e == null)
+        expected.put(g, e = new long[2]);
+      e[0] += v;
+      e[1]++;
+    }
+    OpIterator scan = TestUtil.createTupleList(2, data);
+    int[] afields = new int[] { 1, 1 };
+    Aggregator.Op[] ops = new Aggregator.Op[] { Aggregator.Op.AVG, Aggregator.Op.COUNT };
+    HashAggregator total = new HashAggregator(scan.getTupleDesc(), new int[] { 0 },
+        afields, ops, 1 << 20);
+    for (int part = 0; part < 3; part++) {
+      // small partials, so that some of their groups are spilled
+      HashAggregator partial = new HashAggregator(scan.getTupleDesc(), new int[] { 0 },
+          afields, ops, 1024);
+      scan.open();
+      int i = 0;
+      while (scan.hasNext()) {
+        Tuple t = scan.next();
+        if (i++ % 3 == part)
+          partial.mergeTupleIntoGroup(t);
+      }
+      scan.close();
+      assertTrue(partial.spilled());
+      total.merge(partial);
+    }
+    OpIterator it = total.iterator();
+    it.open();
+    int groups = 0;
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      long[] e = expected.get(((IntField) t.getField(0)).getValue());
+      assertEquals(e[0] / e[1], ((IntField) t.getField(1)).getValue());
+      assertEquals(e[1], ((IntField) t.getField(2)).getValue());
+      groups++;
+    }
+    assertEquals(expected.size(), groups);
+    it.close();
+  }
+
+  /**
+   * Unit test for rejecting aggregates that are not defined over strings
+   */
+  @Test(expected = IllegalArgumentException.class) public void sumOfStrings() {
+    OpIterator scan = TestUtil.createTupleList(1, new Object[] { "a" });
+    new HashAggregator(scan.getTupleDesc(), new int[0], 0, Aggregator.Op.SUM, 1 << 20);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashAggregatorTest.class);
+  }
+}
@@ -0,0 +1,179 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import Zql.ZQuery;
+import Zql.ZqlParser;
+
+public class HashSemiJoinTest extends SimpleDbTestBase {
+
+  OpIterator outer;
+  OpIterator inner;
+
+  /**
+   * Initialize each unit test
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.outer = TestUtil.createTupleList(2,
+        new int[] { 1, 10,
+                    2, 20,
+                    3, 30,
+                    4, 40 });
+    // 3 has several partners, which must not duplicate its outer tuple
+    this.inner = TestUtil.createTupleList(2,
+        new int[] { 7, 3,
+                    8, 3,
+                    9, 1,
+                    6, 5 });
+  }
+
+  /**
+   * Unit test for a semi-join returning each outer tuple with a partner once
+   */
+  @Test public void semiJoin() throws Exception {
+    HashSemiJoin op = new HashSemiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+        outer, inner, false);
+    assertEquals(outer.getTupleDesc(), op.getTupleDesc());
+    OpIterator expected = TestUtil.createTupleList(2, new int[] { 1, 10, 3, 30 });
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    // rewinding does not read the inner child again
+    op.rewind();
+    expected.rewind();
+    TestUtil.matchAllTuples(expected, op);
+    op.close();
+  }
+
+  /**
+   * Unit test for an anti-join returning the outer tuples without a partner
+   */
+  @Test public void antiJoin() throws Exception {
+    HashSemiJoin op = new HashSemiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+        outer, inner, true);
+    OpIterator expected = TestUtil.createTupleList(2, new int[] { 2, 20, 4, 40 });
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.close();
+  }
+
+  /**
+   * Unit test for a semi-join without predicate, i.e. an uncorrelated EXISTS
+   */
+  @Test public void exists() throws Exception {
+    OpIterator empty = TestUtil.createTupleList(2, new int[0]);
+    HashSemiJoin op = new HashSemiJoin(null, outer, empty, false);
+    op.open();
+    assertTrue(TestUtil.checkExhausted(op));
+    op.close();
+    op = new HashSemiJoin(null, outer, empty, true);
+    op.open();
+    outer.rewind();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(4, count);
+    op.close();
+  }
+
+  private static int count(Parser p, TransactionId tid, String sql) throws Exception {
+    ZqlParser zp = new ZqlParser(new ByteArrayInputStream(sql.getBytes()));
+    LogicalPlan lp = p.parseQueryLogicalPlan(tid, (ZQuery) zp.readStatement());
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    plan.open();
+    int count = 0;
+    while (plan.hasNext()) {
+      plan.next();
+      count++;
+    }
+    plan.close();
+    return count;
+  }
+
+  /**
+   * Unit test for planning IN, NOT IN, EXISTS and NOT EXISTS subqueries as
+   * semi-joins and anti-joins, decorrelating EXISTS
+   */
+  @Test public void subqueries() throws Exception {
+    ArrayList<ArrayList<Integer>> tTuples = new ArrayList<ArrayList<Integer>>();
+    ArrayList<ArrayList<Integer>> uTuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile t = SystemTestUtil.createRandomHeapFile(2, 300, 50, null, tTuples, "c");
+    HeapFile u = SystemTestUtil.createRandomHeapFile(2, 200, 50, null, uTuples, "c");
+    Database.getCatalog().addTable(t, "semi_t");
+    Database.getCatalog().addTable(u, "semi_u");
+    TableStats.computeStatistics();
+
+    HashSet<Integer> keys = new HashSet<Integer>();
+    HashSet<Integer> filteredKeys = new HashSet<Integer>();
+    for (ArrayList<Integer> r : uTuples) {
+      keys.add(r.get(0));
+      if (r.get(1) < 25)
+        filteredKeys.add(r.get(0));
+    }
+    int in = 0;
+    int inFiltered = 0;
+    for (ArrayList<Integer> r : tTuples) {
+      if (keys.contains(r.get(1)))
+        in++;
+      if (filteredKeys.contains(r.get(1)))
+        inFiltered++;
+    }
+
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+    assertEquals(in, count(p, tid,
+        "SELECT * FROM semi_t WHERE semi_t.c1 IN (SELECT semi_u.c0 FROM semi_u);"));
+    assertEquals(tTuples.size() - in, count(p, tid,
+        "SELECT * FROM semi_t WHERE semi_t.c1 NOT IN (SELECT semi_u.c0 FROM semi_u);"));
+    assertEquals(inFiltered, count(p, tid,
+        "SELECT * FROM semi_t WHERE EXISTS (SELECT * FROM semi_u WHERE semi_u.c0 = semi_t.c1 AND semi_u.c1 < 25);"));
+    assertEquals(tTuples.size() - inFiltered, count(p, tid,
+        "SELECT * FROM semi_t WHERE NOT EXISTS (SELECT * FROM semi_u WHERE semi_t.c1 = semi_u.c0 AND semi_u.c1 < 25);"));
+    assertEquals(0, count(p, tid,
+        "SELECT * FROM semi_t WHERE EXISTS (SELECT * FROM semi_u WHERE semi_u.c0 > 1000);"));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for rejecting correlated EXISTS subqueries that aggregate,
+   * which cannot be decorrelated into a semi-join on their join field
+   */
+  @Test(expected = ParsingException.class) public void correlatedAggregate() throws Exception {
+    HeapFile t = SystemTestUtil.createRandomHeapFile(2, 10, 50, null, null, "c");
+    HeapFile u = SystemTestUtil.createRandomHeapFile(2, 10, 50, null, null, "c");
+    Database.getCatalog().addTable(t, "semi_t");
+    Database.getCatalog().addTable(u, "semi_u");
+    TableStats.computeStatistics();
+
+    TransactionId tid = new TransactionId();
+    try {
+      count(new Parser(), tid,
+          "SELECT * FROM semi_t WHERE EXISTS (SELECT COUNT(*) FROM semi_u WHERE semi_u.c0 = semi_t.c1);");
+    } finally {
+      Database.getBufferPool().transactionComplete(tid);
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashSemiJoinTest.class);
+  }
+}
@@ -1,9 +1,14 @@
 package simpledb;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import simpledb.systemtest.SystemTestUtil;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 
@@ -20,6 +25,7 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
 
     @After public void tearDown() throws Exception {
         Database.getBufferPool().transactionComplete(tid);
+        HeapFile.resetExtentSize();
     }
 
     /**
@@ -44,6 +50,251 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for inserts reusing the space freed by deletes, as recorded
+     * by the free-space map
+     */
+    @Test public void reuseFreedSpace() throws Exception {
+        empty.getFreeSpaceMap().getFile().deleteOnExit();
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 1008; ++i) {
+            Tuple t = Utility.getHeapTuple(i, 2);
+            empty.insertTuple(tid, t);
+            tuples.add(t);
+        }
+        assertEquals(2, empty.numPages());
+        assertEquals(-1, empty.getFreeSpaceMap().nextFree(0, 2));
+
+        empty.deleteTuple(tid, tuples.get(3));
+        empty.deleteTuple(tid, tuples.get(4));
+        assertEquals(0, empty.getFreeSpaceMap().nextFree(0, 2));
+        // the map is persistent
+        assertTrue(new HeapFile(empty.getFile(), empty.getTupleDesc())
+                .getFreeSpaceMap().isFree(0));
+
+        Tuple t = Utility.getHeapTuple(2000, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+        assertTrue(empty.getFreeSpaceMap().isFree(0));
+        empty.insertTuple(tid, Utility.getHeapTuple(2001, 2));
+        assertEquals(2, empty.numPages());
+        assertEquals(-1, empty.getFreeSpaceMap().nextFree(0, 2));
+
+        // a stale entry is corrected by the insert that finds the page full
+        empty.getFreeSpaceMap().setFree(1, true);
+        empty.insertTuple(tid, Utility.getHeapTuple(2002, 2));
+        assertEquals(3, empty.numPages());
+        assertFalse(empty.getFreeSpaceMap().isFree(1));
+    }
+
+    /**
+     * Unit test for a HeapFile growing by whole extents, whose preallocated
+     * pages are not counted until they are used
+     */
+    @Test public void extents() throws Exception {
+        int pageSize = BufferPool.getPageSize();
+        HeapFile.setExtentSize(4 * pageSize);
+        for (int i = 0; i < 505; ++i)
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+        assertEquals(5 * pageSize, empty.getFile().length());
+
+        for (int i = 0; i < 504 * 4; ++i)
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        assertEquals(6, empty.numPages());
+        assertEquals(9 * pageSize, empty.getFile().length());
+
+        // reopened, the file cannot tell its first preallocated page from an
+        // empty page in use, but does not count the others
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        assertEquals(7, new HeapFile(empty.getFile(), empty.getTupleDesc()).numPages());
+    }
+
+    /**
+     * Unit test for inserting a batch of tuples through
+     * BufferPool.insertTuples(), which fills whole pages at a time
+     */
+    @Test public void insertTuples() throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 1200; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        assertEquals(1200, Database.getBufferPool().insertTuples(tid,
+                empty.getId(), tuples.iterator()));
+        assertEquals(3, empty.numPages());
+
+        int count = 0;
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertEquals(count, ((IntField) t.getField(0)).getValue());
+            assertTrue(TestUtil.compareTuples(tuples.get(count), t));
+            count++;
+        }
+        it.close();
+        assertEquals(1200, count);
+    }
+
+    /**
+     * Unit test for a batch holding a tuple of another TupleDesc, which adds
+     * none of the tuples of the page it fails on, so an abort leaves the
+     * table as it was
+     */
+    @Test public void insertTuplesMismatch() throws Exception {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        for (int i = 0; i < 10; ++i)
+            tuples.add(Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().insertTuples(tid, empty.getId(), tuples.iterator());
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        ArrayList<Tuple> mixed = new ArrayList<Tuple>();
+        for (int i = 0; i < 5; ++i)
+            mixed.add(Utility.getHeapTuple(i, 2));
+        mixed.add(Utility.getHeapTuple(5, 3));
+        try {
+            Database.getBufferPool().insertTuples(tid, empty.getId(), mixed.iterator());
+            fail("expected DbException");
+        } catch (DbException e) {
+        }
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        int count = 0;
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(10, count);
+    }
+
+    /**
+     * Unit test for a HeapFile whose pages are larger than the default
+     */
+    @Test public void pageSize() throws Exception {
+        File f = File.createTempFile("wide", ".dat");
+        f.deleteOnExit();
+        int pageSize = BufferPool.getPageSize() * 4;
+        HeapFile wide = new HeapFile(f, Utility.getTupleDesc(2), pageSize);
+        Database.getCatalog().addTable(wide, SystemTestUtil.getUUID());
+        wide.getFreeSpaceMap().getFile().deleteOnExit();
+
+        // floor(16384 * 8 / (8 * 8 + 1)) tuples per page
+        for (int i = 0; i < 2016; ++i) {
+            Database.getBufferPool().insertTuple(tid, wide.getId(), Utility.getHeapTuple(i, 2));
+            assertEquals(1, wide.numPages());
+        }
+        Database.getBufferPool().insertTuple(tid, wide.getId(), Utility.getHeapTuple(0, 2));
+        assertEquals(2, wide.numPages());
+
+        Database.getBufferPool().transactionComplete(tid);
+        HeapPage p = (HeapPage) wide.readPage(new HeapPageId(wide.getId(), 0));
+        assertEquals(0, p.getNumEmptySlots());
+        assertEquals(pageSize, p.getPageData().length);
+        p = (HeapPage) wide.readPage(new HeapPageId(wide.getId(), 1));
+        assertEquals(2015, p.getNumEmptySlots());
+    }
+
+    /**
+     * Unit test for a CompressedHeapFile: its pages read back as written,
+     * also once the file is opened again, in a fraction of the space
+     */
+    @Test public void compressed() throws Exception {
+        File f = File.createTempFile("packed", ".dat");
+        f.deleteOnExit();
+        TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+        CompressedHeapFile packed = new CompressedHeapFile(f, td);
+        Database.getCatalog().addTable(packed, SystemTestUtil.getUUID());
+        packed.getPageOffsetMap().getFile().deleteOnExit();
+        packed.getFreeSpaceMap().getFile().deleteOnExit();
+
+        for (int i = 0; i < 1000; ++i) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("name" + i, Type.STRING_LEN));
+            Database.getBufferPool().insertTuple(tid, packed.getId(), t);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        int pages = packed.numPages();
+        assertEquals((1000 + 29) / 30, pages);
+        assertTrue(f.length() * 3 < (long) pages * BufferPool.getPageSize());
+        assertEquals(pages * PageOffsetMap.ENTRY_SIZE, packed.getPageOffsetMap().getFile().length());
+
+        CompressedHeapFile reopened = new CompressedHeapFile(f, td);
+        assertEquals(pages, reopened.numPages());
+        HeapPage[] read = reopened.readPages(0, pages);
+        int count = 0;
+        for (int pg = 0; pg < pages; ++pg) {
+            assertArrayEquals(read[pg].getPageData(),
+                    reopened.readPage(new HeapPageId(reopened.getId(), pg)).getPageData());
+            Iterator<Tuple> it = read[pg].iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                assertEquals(count, ((IntField) t.getField(0)).getValue());
+                assertEquals("name" + count, ((StringField) t.getField(1)).getValue());
+                count++;
+            }
+        }
+        assertEquals(1000, count);
+    }
+
+    /**
+     * Unit test for pages of a CompressedHeapFile that are rewritten, which
+     * move to free slots and leave theirs to be reused
+     */
+    @Test public void compressedSlots() throws Exception {
+        File f = File.createTempFile("slots", ".pmap");
+        f.delete();
+        f.deleteOnExit();
+        PageOffsetMap map = new PageOffsetMap(f);
+        int unit = PageOffsetMap.SLOT_UNIT;
+        for (int pg = 0; pg < 3; ++pg) {
+            assertEquals(pg, map.add());
+            map.set(pg, map.allocate(100), 100);
+        }
+        assertEquals(unit, map.getOffset(1));
+        assertEquals(3 * unit, map.getEnd());
+
+        // a page is never written over its own slot, which is freed once
+        // the page is recorded elsewhere
+        map.set(1, map.allocate(100), 100);
+        assertEquals(3 * unit, map.getOffset(1));
+        assertEquals(4 * unit, map.getEnd());
+        // too large for the slot it left, so it moves to the end
+        map.set(1, map.allocate(unit + 1), unit + 1);
+        assertEquals(4 * unit, map.getOffset(1));
+        assertEquals(6 * unit, map.getEnd());
+
+        // the slots page 1 left are reused, also once the map is reloaded
+        map = new PageOffsetMap(f);
+        assertEquals(3, map.size());
+        assertEquals(unit + 1, map.getLength(1));
+        assertEquals(3, map.add());
+        map.set(3, map.allocate(100), 100);
+        assertEquals(unit, map.getOffset(3));
+        assertEquals(6 * unit, map.getEnd());
+        // a page that shrinks moves into a hole, and the end slot it leaves
+        // shortens the file
+        map.set(1, map.allocate(100), 100);
+        assertEquals(3 * unit, map.getOffset(1));
+        assertEquals(4 * unit, map.getEnd());
+
+        // a slot whose write failed is free again
+        long offset = map.allocate(unit + 1);
+        assertEquals(4 * unit, offset);
+        map.release(offset, unit + 1);
+        assertEquals(4 * unit, map.getEnd());
+        map.set(0, map.allocate(100), 100);
+        assertEquals(4 * unit, map.getOffset(0));
+        assertEquals(0, map.allocate(100));
+        map.release(0, 100);
+        assertEquals(0, map.allocate(100));
+    }
+
     /**
      * JUnit suite target
      */
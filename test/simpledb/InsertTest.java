@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.util.ArrayList;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -56,6 +58,22 @@ public class InsertTest extends TestUtil.CreateHeapFile {
     assertEquals(1, empty.numPages());
   }
 
+  /**
+   * Unit test for stripping the extra rows of a multi-row VALUES clause
+   * before handing a statement to Zql
+   */
+  @Test public void stripExtraRows() {
+    ArrayList<String> rows = new ArrayList<String>();
+    assertEquals("INSERT INTO t VALUES (1, 'a,)');",
+        Parser.stripExtraRows("INSERT INTO t VALUES (1, 'a,)'), (2, 'b'),(3,'c');", rows));
+    assertEquals(2, rows.size());
+    assertEquals("(2, 'b')", rows.get(0));
+    assertEquals("(3,'c')", rows.get(1));
+    String single = "INSERT INTO t VALUES (1, 'a');";
+    assertEquals(single, Parser.stripExtraRows(single, rows));
+    assertEquals(0, rows.size());
+  }
+
   /**
    * JUnit suite target
    */
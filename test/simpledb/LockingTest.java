@@ -3,6 +3,8 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertNull;
 import junit.framework.JUnit4TestAdapter;
 
@@ -186,6 +188,30 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A transaction waiting for a lock on one page does not hold up
+   * transactions locking other pages, and gets the lock once it is released.
+   */
+  @Test public void waitOnOnePage() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_WRITE);
+    t.start();
+    Thread.sleep(TIMEOUT / 5);
+
+    TransactionId tid3 = new TransactionId();
+    long start = System.currentTimeMillis();
+    bp.getPage(tid3, p1, Permissions.READ_ONLY);
+    assertTrue(System.currentTimeMillis() - start < TIMEOUT);
+    assertFalse(t.acquired());
+
+    bp.releasePage(tid1, p0);
+    t.join(TIMEOUT);
+    assertTrue(t.acquired());
+    assertNull(t.getError());
+    bp.transactionComplete(tid3);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,85 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LzCodecTest {
+
+    private static int roundTrip(byte[] data) {
+        byte[] compressed = new byte[LzCodec.maxCompressedLength(data.length)];
+        int length = LzCodec.compress(data, data.length, compressed);
+        byte[] decompressed = new byte[data.length];
+        assertEquals(data.length, LzCodec.decompress(compressed, length, decompressed));
+        assertArrayEquals(data, decompressed);
+        return length;
+    }
+
+    /**
+     * Unit test for compressing an empty page
+     */
+    @Test public void zeros() {
+        assertTrue(roundTrip(new byte[BufferPool.getPageSize()]) < 32);
+        assertEquals(1, roundTrip(new byte[0]));
+        roundTrip(new byte[3]);
+    }
+
+    /**
+     * Unit test for compressing padded strings, as pages of string fields
+     * hold
+     */
+    @Test public void strings() {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        Random r = new Random(1);
+        for (int offset = 0; offset + 132 <= data.length; offset += 132) {
+            for (int i = 0; i < 4 + r.nextInt(20); i++)
+                data[offset + i] = (byte) ('a' + r.nextInt(26));
+        }
+        assertTrue(roundTrip(data) < data.length / 3);
+    }
+
+    /**
+     * Unit test for data that does not compress, with long runs of literals
+     */
+    @Test public void random() {
+        Random r = new Random(2);
+        for (int length : new int[] { 1, 15, 16, 270, 271, 5000, 65536 * 2 }) {
+            byte[] data = new byte[length];
+            r.nextBytes(data);
+            assertTrue(roundTrip(data) <= LzCodec.maxCompressedLength(length));
+        }
+    }
+
+    /**
+     * Unit test for long matches, and matches further back than the window
+     */
+    @Test public void matches() {
+        byte[] data = new byte[200000];
+        Random r = new Random(3);
+        byte[] block = new byte[1000];
+        r.nextBytes(block);
+        for (int offset = 0; offset < data.length; offset += 1000)
+            System.arraycopy(block, 0, data, offset, Math.min(1000, data.length - offset));
+        Arrays.fill(data, 50000, 51000, (byte) 7);
+        assertTrue(roundTrip(data) < data.length / 50);
+    }
+
+    /**
+     * Unit test for rejecting data that was not compressed
+     */
+    @Test(expected = IllegalArgumentException.class) public void corrupt() {
+        byte[] data = new byte[] { 0x0F, 0x01, 0x00 };
+        LzCodec.decompress(data, data.length, new byte[100]);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LzCodecTest.class);
+    }
+}
@@ -0,0 +1,122 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  @After public void resetSortMemory() {
+    OrderBy.resetSortMemory();
+  }
+
+  /**
+   * Unit test for OrderBy on a single ascending field
+   */
+  @Test public void sortAscending() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(2,
+        new int[] { 3, 1,
+                    1, 2,
+                    2, 3 });
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 1, 2,
+                    2, 3,
+                    3, 1 });
+    OrderBy op = new OrderBy(0, true, scan);
+    op.open();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * Unit test for OrderBy with a multi-column key and mixed directions
+   */
+  @Test public void sortMultiColumn() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(2,
+        new int[] { 1, 5,
+                    2, 1,
+                    1, 7,
+                    2, 9,
+                    1, 6 });
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 1, 7,
+                    1, 6,
+                    1, 5,
+                    2, 9,
+                    2, 1 });
+    OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false }, scan);
+    op.open();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * Unit test for OrderBy when the input does not fit in the sort memory
+   * budget and has to be spilled to runs and merged; also checks rewind.
+   */
+  @Test public void sortSpilled() throws Exception {
+    OrderBy.setSortMemory(1024);
+    Random rand = new Random(1);
+    int rows = 5000;
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = rand.nextInt(100);
+      data[2 * i + 1] = i;
+    }
+    OrderBy op = new OrderBy(0, false, TestUtil.createTupleList(2, data));
+    op.open();
+    for (int pass = 0; pass < 2; pass++) {
+      ArrayList<Tuple> out = new ArrayList<Tuple>();
+      while (op.hasNext())
+        out.add(op.next());
+      assertEquals(rows, out.size());
+      for (int i = 1; i < out.size(); i++) {
+        int prev = ((IntField) out.get(i - 1).getField(0)).getValue();
+        int cur = ((IntField) out.get(i).getField(0)).getValue();
+        assertTrue(prev >= cur);
+        // the sort is stable
+        if (prev == cur)
+          assertTrue(((IntField) out.get(i - 1).getField(1)).getValue()
+              < ((IntField) out.get(i).getField(1)).getValue());
+      }
+      op.rewind();
+    }
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy over string fields spilled to disk
+   */
+  @Test public void sortStringsSpilled() throws Exception {
+    OrderBy.setSortMemory(256);
+    OpIterator scan = TestUtil.createTupleList(2,
+        new Object[] { "pear", 1,
+                       "apple", 2,
+                       "fig", 3,
+                       "banana", 4 });
+    OpIterator expected = TestUtil.createTupleList(2,
+        new Object[] { "apple", 2,
+                       "banana", 4,
+                       "fig", 3,
+                       "pear", 1 });
+    OrderBy op = new OrderBy(0, true, scan);
+    op.open();
+    TestUtil.compareDbIterators(expected, op);
+    assertFalse(op.hasNext());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
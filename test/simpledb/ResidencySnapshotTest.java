@@ -0,0 +1,143 @@
+package simpledb;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ResidencySnapshotTest extends TestUtil.CreateHeapFile {
+    private TransactionId tid;
+    private File file;
+    private ResidencySnapshot snapshot;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tid = new TransactionId();
+        for (int i = 0; i < 504 * 6; ++i)
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(6, empty.numPages());
+        tid = new TransactionId();
+        file = File.createTempFile("residency", ".snapshot");
+        file.deleteOnExit();
+        file.delete();
+        snapshot = new ResidencySnapshot(file);
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        file.delete();
+    }
+
+    private HeapPageId pid(int pgNo) {
+        return new HeapPageId(empty.getId(), pgNo);
+    }
+
+    private void get(int... pgNos) throws Exception {
+        for (int pgNo : pgNos)
+            Database.getBufferPool().getPage(tid, pid(pgNo), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Unit test for saving the pages the pool holds, hottest first
+     */
+    @Test public void save() throws Exception {
+        assertTrue(snapshot.load().isEmpty());
+        Database.resetBufferPool(4);
+        get(5, 5, 5, 1, 1, 3);
+        snapshot.save();
+        assertEquals(Arrays.asList(pid(5), pid(1), pid(3)), snapshot.load());
+    }
+
+    /**
+     * Unit test for warming up a smaller pool with the hottest pages
+     */
+    @Test public void warmUp() throws Exception {
+        Database.resetBufferPool(6);
+        get(5, 5, 5, 1, 1, 3);
+        snapshot.save();
+
+        BufferPool pool = Database.resetBufferPool(2);
+        snapshot.warmUp().join();
+        assertTrue(pool.holdsPage(pid(5)));
+        assertTrue(pool.holdsPage(pid(1)));
+        assertFalse(pool.holdsPage(pid(3)));
+        assertEquals(2, pool.getMetrics().getReads());
+        get(5, 1);
+        assertEquals(2, pool.getMetrics().getHits());
+        assertEquals(0, pool.getMetrics().getMisses());
+    }
+
+    /**
+     * Unit test for warming up with runs of consecutive pages
+     */
+    @Test public void warmUpRuns() throws Exception {
+        Database.resetBufferPool(6);
+        get(4, 0, 2, 3, 1, 5);
+        snapshot.save();
+
+        BufferPool pool = Database.resetBufferPool(6);
+        snapshot.warmUp().join();
+        for (int pgNo = 0; pgNo < 6; pgNo++)
+            assertTrue(pool.holdsPage(pid(pgNo)));
+        assertEquals(6, pool.getMetrics().getReads());
+        assertEquals(0, pool.getMetrics().getEvictions());
+    }
+
+    /**
+     * Unit test for warming up not evicting the pages queries read
+     */
+    @Test public void warmUpFreeFramesOnly() throws Exception {
+        Database.resetBufferPool(4);
+        get(5, 1, 3);
+        snapshot.save();
+
+        BufferPool pool = Database.resetBufferPool(2);
+        get(0);
+        snapshot.warmUp().join();
+        assertTrue(pool.holdsPage(pid(0)));
+        assertEquals(2, pool.getMetrics().getResidentPages());
+        assertEquals(0, pool.getMetrics().getEvictions());
+    }
+
+    /**
+     * Unit test for skipping the pages of tables that are gone
+     */
+    @Test public void warmUpStale() throws Exception {
+        Database.resetBufferPool(4);
+        get(0, 1);
+        snapshot.save();
+
+        Database.reset();
+        BufferPool pool = Database.getBufferPool();
+        snapshot.warmUp().join();
+        assertEquals(0, pool.getMetrics().getResidentPages());
+    }
+
+    /**
+     * Unit test for saving the snapshot periodically
+     */
+    @Test public void periodic() throws Exception {
+        Database.resetBufferPool(4);
+        get(2);
+        snapshot.start(10);
+        for (int i = 0; i < 100 && !file.exists(); i++)
+            Thread.sleep(10);
+        assertTrue(file.exists());
+        get(3, 3);
+        snapshot.stop();
+        assertEquals(Arrays.asList(pid(3), pid(2)), snapshot.load());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ResidencySnapshotTest.class);
+    }
+}
@@ -0,0 +1,132 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class RuntimeFilterTest extends SimpleDbTestBase {
+
+  /**
+   * Unit test for a filter accepting every key added to it, and rejecting
+   * most of the others
+   */
+  @Test public void noFalseNegatives() {
+    RuntimeFilter ints = new RuntimeFilter(1000);
+    RuntimeFilter strings = new RuntimeFilter(1000);
+    for (int i = 0; i < 1000; i++) {
+      ints.add(new IntField(i * 7));
+      strings.add(new StringField("key" + i * 7, Type.STRING_LEN));
+    }
+    assertEquals(1000, ints.numKeys());
+    int falsePositives = 0;
+    for (int i = 0; i < 7000; i++) {
+      if (i % 7 == 0) {
+        assertTrue(ints.mightContain(i));
+        assertTrue(ints.mightContain(new IntField(i)));
+        assertTrue(strings.mightContain(new StringField("key" + i, Type.STRING_LEN)));
+      } else if (strings.mightContain(new StringField("key" + i, Type.STRING_LEN))) {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < 6000 / 20);
+    // keys out of the range of the build side are always rejected
+    assertFalse(ints.mightContain(-1));
+    assertFalse(ints.mightContain(7000));
+    assertFalse(new RuntimeFilter(0).mightContain(new IntField(0)));
+  }
+
+  /**
+   * Unit test for a scan with a runtime filter returning every tuple that
+   * passes it, and not many more
+   */
+  @Test public void filteredScan() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 5000, 10000, null, tuples);
+    RuntimeFilter filter = new RuntimeFilter(100);
+    HashSet<Integer> keys = new HashSet<Integer>();
+    for (int i = 0; i < 100; i++) {
+      keys.add(i * 3);
+      filter.add(new IntField(i * 3));
+    }
+    int expected = 0;
+    for (ArrayList<Integer> t : tuples)
+      if (keys.contains(t.get(2)))
+        expected++;
+
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, f.getId(), "t");
+    scan.setProjection(new int[] { 2, 0 });
+    scan.open();
+    // set on an open scan, the filter applies to the first page too
+    scan.setRuntimeFilter(0, filter);
+    int matches = 0;
+    int count = 0;
+    while (scan.hasNext()) {
+      Tuple t = scan.next();
+      if (keys.contains(((IntField) t.getField(0)).getValue()))
+        matches++;
+      count++;
+    }
+    assertEquals(expected, matches);
+    assertTrue(count < tuples.size() / 4);
+    scan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for a hash join returning the same tuples with the runtime
+   * filter of its build side, also when it needs several build passes
+   */
+  @Test public void hashJoin() throws Exception {
+    ArrayList<ArrayList<Integer>> build = new ArrayList<ArrayList<Integer>>();
+    ArrayList<ArrayList<Integer>> probe = new ArrayList<ArrayList<Integer>>();
+    HeapFile f1 = SystemTestUtil.createRandomHeapFile(1, HashEquiJoin.MAP_SIZE + 5000, 200000, null, build);
+    HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 3000, 200000, null, probe);
+    HashMap<Integer, Integer> counts = new HashMap<Integer, Integer>();
+    for (ArrayList<Integer> t : build) {
+      Integer c = counts.get(t.get(0));
+      counts.put(t.get(0), c == null ? 1 : c + 1);
+    }
+    int expected = 0;
+    for (ArrayList<Integer> t : probe) {
+      Integer c = counts.get(t.get(1));
+      if (c != null)
+        expected += c;
+    }
+
+    TransactionId tid = new TransactionId();
+    SeqScan probeScan = new SeqScan(tid, f2.getId(), "p");
+    HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 1),
+        new SeqScan(tid, f1.getId(), "b"), probeScan);
+    join.open();
+    assertTrue(probeScan.getRuntimeFilter() != null);
+    int count = 0;
+    while (join.hasNext()) {
+      Tuple t = join.next();
+      assertEquals(t.getField(0), t.getField(2));
+      count++;
+    }
+    assertEquals(expected, count);
+    join.close();
+    assertEquals(null, probeScan.getRuntimeFilter());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(RuntimeFilterTest.class);
+  }
+}
@@ -0,0 +1,104 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ScanPredicateTest extends SimpleDbTestBase {
+
+  private static byte[] serialize(Tuple t) throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(baos);
+    dos.write(new byte[3]); // the tuple does not start at offset 0
+    for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+      t.getField(i).serialize(dos);
+    return baos.toByteArray();
+  }
+
+  /**
+   * Unit test for evaluating every operator on the bytes of INT_TYPE and
+   * STRING_TYPE fields, against Predicate.filter on the decoded tuple
+   */
+  @Test public void matchesRawBytes() throws Exception {
+    TupleDesc td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+    Object[][] rows = { { "apple", -5 }, { "banana", 0 }, { "cherry", 7 }, { "", 123456789 } };
+    Field[] ints = { new IntField(-5), new IntField(7), new IntField(Integer.MIN_VALUE) };
+    Field[] strings = { new StringField("banana", Type.STRING_LEN),
+        new StringField("an", Type.STRING_LEN), new StringField("", Type.STRING_LEN) };
+    for (Object[] row : rows) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new StringField((String) row[0], Type.STRING_LEN));
+      t.setField(1, new IntField((Integer) row[1]));
+      byte[] data = serialize(t);
+      for (Predicate.Op op : Predicate.Op.values()) {
+        for (Field f : ints) {
+          Predicate p = new Predicate(1, op, f);
+          assertEquals(p + " on " + t, p.filter(t), new ScanPredicate(p, td).matches(data, 3));
+        }
+        for (Field f : strings) {
+          Predicate p = new Predicate(0, op, f);
+          assertEquals(p + " on " + t, p.filter(t), new ScanPredicate(p, td).matches(data, 3));
+        }
+      }
+    }
+  }
+
+  /**
+   * Unit test for a SeqScan with pushed down predicates returning the same
+   * tuples as Filters over a plain scan, also for tuples modified in memory
+   */
+  @Test public void pushedDownScan() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 3000, 100, null, tuples);
+    Predicate p1 = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(20));
+    Predicate p2 = new Predicate(2, Predicate.Op.LESS_THAN_OR_EQ, new IntField(60));
+
+    TransactionId tid = new TransactionId();
+    // a tuple inserted into an existing page is only held in memory
+    Tuple extra = new Tuple(f.getTupleDesc());
+    extra.setField(0, new IntField(50));
+    extra.setField(1, new IntField(-1));
+    extra.setField(2, new IntField(10));
+    Database.getBufferPool().insertTuple(tid, f.getId(), extra);
+
+    SeqScan pushed = new SeqScan(tid, f.getId(), "t");
+    pushed.addPredicate(p1);
+    pushed.addPredicate(p2);
+    assertEquals(2, pushed.getPredicates().length);
+    OpIterator filtered = new Filter(p2, new Filter(p1, new SeqScan(tid, f.getId(), "t")));
+    filtered.open();
+    pushed.open();
+    TestUtil.matchAllTuples(filtered, pushed);
+    pushed.rewind();
+    filtered.rewind();
+    int count = 0;
+    while (pushed.hasNext()) {
+      pushed.next();
+      count++;
+    }
+    int expected = 1;
+    for (ArrayList<Integer> t : tuples)
+      if (t.get(0) > 20 && t.get(2) <= 60)
+        expected++;
+    assertEquals(expected, count);
+    pushed.close();
+    filtered.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ScanPredicateTest.class);
+  }
+}
@@ -0,0 +1,250 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import Zql.ZQuery;
+import Zql.ZqlParser;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  private static final int[] DATA = new int[] { 5, 0,
+                                                2, 1,
+                                                9, 2,
+                                                2, 3,
+                                                7, 4,
+                                                1, 5 };
+
+  /**
+   * Unit test for TopN returning the smallest tuples in order; ties keep
+   * their input order
+   */
+  @Test public void topAscending() throws Exception {
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 1, 5,
+                    2, 1,
+                    2, 3 });
+    TopN op = new TopN(new int[] { 0 }, new boolean[] { true }, 3, 0,
+        TestUtil.createTupleList(2, DATA));
+    op.open();
+    TestUtil.compareDbIterators(expected, op);
+    assertFalse(op.hasNext());
+  }
+
+  /**
+   * Unit test for TopN with a descending order, an offset and rewind
+   */
+  @Test public void topDescendingOffset() throws Exception {
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 7, 4,
+                    5, 0 });
+    TopN op = new TopN(new int[] { 0 }, new boolean[] { false }, 2, 1,
+        TestUtil.createTupleList(2, DATA));
+    op.open();
+    TestUtil.compareDbIterators(expected, op);
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * Unit test for TopN when the limit exceeds the input size, and LIMIT 0
+   */
+  @Test public void topLimitBounds() throws Exception {
+    TopN op = new TopN(new int[] { 0 }, new boolean[] { true }, 100, 0,
+        TestUtil.createTupleList(2, DATA));
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      op.next();
+      count++;
+    }
+    assertEquals(DATA.length / 2, count);
+
+    op = new TopN(new int[] { 0 }, new boolean[] { true }, 0, 0,
+        TestUtil.createTupleList(2, DATA));
+    op.open();
+    assertFalse(op.hasNext());
+  }
+
+  /**
+   * Unit test for Limit with and without an offset
+   */
+  @Test public void limit() throws Exception {
+    OpIterator expected = TestUtil.createTupleList(2,
+        new int[] { 2, 1,
+                    9, 2 });
+    Limit op = new Limit(2, 1, TestUtil.createTupleList(2, DATA));
+    op.open();
+    TestUtil.compareDbIterators(expected, op);
+    assertFalse(op.hasNext());
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+
+    op = new Limit(10, 5, TestUtil.createTupleList(2, DATA));
+    op.open();
+    assertTrue(op.hasNext());
+    op.next();
+    assertFalse(op.hasNext());
+  }
+
+  /**
+   * Unit test for stripping the LIMIT clause before handing a statement to Zql
+   */
+  @Test public void stripLimit() {
+    int[] clause = new int[2];
+    assertEquals("SELECT * FROM t ORDER BY t.a;",
+        Parser.stripLimit("SELECT * FROM t ORDER BY t.a limit 10 OFFSET 3;", clause));
+    assertEquals(10, clause[0]);
+    assertEquals(3, clause[1]);
+    assertEquals("SELECT * FROM t;", Parser.stripLimit("SELECT * FROM t;", clause));
+    assertEquals(-1, clause[0]);
+  }
+
+  private static int count(OpIterator plan) throws Exception {
+    plan.open();
+    int count = 0;
+    while (plan.hasNext()) {
+      plan.next();
+      count++;
+    }
+    plan.close();
+    return count;
+  }
+
+  /**
+   * Unit test for the LIMIT clause reaching the plan of a query only as the
+   * argument of Parser.handleQueryStatement
+   */
+  @Test public void handleQueryLimit() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+    Database.getCatalog().addTable(f, "limit_t");
+    TableStats.computeStatistics();
+    ZQuery q = (ZQuery) new ZqlParser(new ByteArrayInputStream(
+        "SELECT * FROM limit_t;".getBytes("UTF-8"))).readStatement();
+
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+    Query query = p.handleQueryStatement(q, tid, new int[] { 5, 2 });
+    assertTrue(query.getLogicalPlan().hasLimit());
+    assertEquals(5, count(query.getPhysicalPlan()));
+    query = p.handleQueryStatement(q, tid);
+    assertFalse(query.getLogicalPlan().hasLimit());
+    assertEquals(100, count(query.getPhysicalPlan()));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /** @return the operators of plan of class c, in the order they are found */
+  private static ArrayList<OpIterator> find(OpIterator plan, Class<?> c) {
+    ArrayList<OpIterator> found = new ArrayList<OpIterator>();
+    if (plan.getClass() == c)
+      found.add(plan);
+    if (plan instanceof Operator) {
+      for (OpIterator child : ((Operator) plan).getChildren())
+        found.addAll(find(child, c));
+    }
+    return found;
+  }
+
+  /**
+   * Unit test for the planner answering ORDER BY key [DESC] LIMIT n over a
+   * B+ tree table by scanning its index in order, without sorting
+   */
+  @Test public void indexOrderLimit() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 1000, null, tuples, 0);
+    Database.getCatalog().addTable(
+        new BTreeFile(f.getFile(), 0, Utility.getTupleDesc(2, "c")), "order_t");
+    TableStats.computeStatistics();
+    ArrayList<Integer> keys = new ArrayList<Integer>();
+    for (ArrayList<Integer> t : tuples)
+      keys.add(t.get(0));
+    Collections.sort(keys);
+
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+    for (boolean asc : new boolean[] { true, false }) {
+      LogicalPlan lp = p.generateLogicalPlan(tid, "SELECT order_t.c0 FROM order_t "
+          + "ORDER BY order_t.c0" + (asc ? "" : " DESC") + " LIMIT 10;");
+      OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+      assertEquals(1, find(plan, asc ? BTreeScan.class : BTreeReverseScan.class).size());
+      assertEquals(0, find(plan, SeqScan.class).size());
+      assertEquals(0, find(plan, TopN.class).size());
+      assertEquals(0, find(plan, OrderBy.class).size());
+
+      ArrayList<Integer> expected = new ArrayList<Integer>(keys);
+      if (!asc)
+        Collections.reverse(expected);
+      plan.open();
+      ArrayList<Integer> out = new ArrayList<Integer>();
+      while (plan.hasNext())
+        out.add(((IntField) plan.next().getField(0)).getValue());
+      plan.close();
+      assertEquals(expected.subList(0, 10), out);
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for BTreeReverseScan, which drives ORDER BY key DESC LIMIT n
+   */
+  @Test public void reverseScan() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 1000, null, tuples, 0);
+    Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+    ArrayList<Integer> keys = new ArrayList<Integer>();
+    for (ArrayList<Integer> t : tuples)
+      keys.add(t.get(0));
+    Collections.sort(keys, Collections.reverseOrder());
+
+    TransactionId tid = new TransactionId();
+    BTreeReverseScan scan = new BTreeReverseScan(tid, f.getId(), "t", null);
+    scan.open();
+    for (int pass = 0; pass < 2; pass++) {
+      ArrayList<Integer> out = new ArrayList<Integer>();
+      while (scan.hasNext())
+        out.add(((IntField) scan.next().getField(0)).getValue());
+      assertEquals(keys, out);
+      scan.rewind();
+    }
+    scan.close();
+
+    // with a predicate the scan stops once keys fall below the bound
+    int bound = keys.get(keys.size() / 2);
+    scan = new BTreeReverseScan(tid, f.getId(), "t",
+        new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(bound)));
+    scan.open();
+    int count = 0;
+    while (scan.hasNext()) {
+      assertTrue(((IntField) scan.next().getField(0)).getValue() >= bound);
+      count++;
+    }
+    int expected = 0;
+    for (int k : keys)
+      if (k >= bound)
+        expected++;
+    assertEquals(expected, count);
+    scan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
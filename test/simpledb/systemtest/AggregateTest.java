@@ -7,6 +7,9 @@ import java.util.Map;
 
 import simpledb.*;
 
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
 import org.junit.Test;
 
 public class AggregateTest extends SimpleDbTestBase {
@@ -113,6 +116,63 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    @After public void resetParallelism() {
+        Aggregate.resetParallelism();
+    }
+
+    /**
+     * Aggregates a filtered heap file large enough to be split into several
+     * page ranges that are scanned in parallel.
+     */
+    @Test public void testParallel() throws IOException, DbException, TransactionAbortedException {
+        Aggregate.setParallelism(4);
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 40000, MAX_VALUE, null, createdTuples);
+        assertTrue(table.numPages() >= 64);
+
+        ArrayList<ArrayList<Integer>> filtered = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : createdTuples) {
+            if (t.get(2) > MAX_VALUE / 2) filtered.add(t);
+        }
+
+        for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.AVG }) {
+            TransactionId tid = new TransactionId();
+            Filter f = new Filter(new Predicate(2, Predicate.Op.GREATER_THAN,
+                    new IntField(MAX_VALUE / 2)), new SeqScan(tid, table.getId(), ""));
+            Aggregate ag = new Aggregate(f, 1, 0, op);
+            SystemTestUtil.matchTuples(ag, aggregate(filtered, op, 1, 0));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    /**
+     * Aggregates a filtered scan that only returns some fields, reordered,
+     * in parallel: the filter refers to the fields of the scan, not those of
+     * the table.
+     */
+    @Test public void testParallelProjected() throws IOException, DbException, TransactionAbortedException {
+        Aggregate.setParallelism(4);
+        ArrayList<ArrayList<Integer>> createdTuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, 40000, MAX_VALUE, null, createdTuples);
+        assertTrue(table.numPages() >= 32);
+
+        ArrayList<ArrayList<Integer>> filtered = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : createdTuples) {
+            if (t.get(2) > MAX_VALUE / 2) filtered.add(t);
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "");
+        scan.setProjection(new int[] { 2, 0, 1 });
+        Filter f = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN,
+                new IntField(MAX_VALUE / 2)), scan);
+        Aggregate ag = new Aggregate(f, 2, 1, Aggregator.Op.SUM);
+        SystemTestUtil.matchTuples(ag, aggregate(filtered, Aggregator.Op.SUM, 1, 0));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
@@ -67,6 +67,33 @@ public class ScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    /** Test that a projected SeqScan only returns the requested columns, in
+     * the requested order, combined with a pushed down predicate. */
+    @Test public void testProjection() throws IOException, DbException, TransactionAbortedException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(4, 1000, null, tuples);
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "table");
+        scan.addPredicate(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(1 << 15)));
+        scan.setProjection(new int[] { 3, 0 });
+        TupleDesc td = scan.getTupleDesc();
+        assertEquals(2, td.numFields());
+        assertEquals("table." + f.getTupleDesc().getFieldName(3), td.getFieldName(0));
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(1) < (1 << 15)) {
+                ArrayList<Integer> narrow = new ArrayList<Integer>();
+                narrow.add(t.get(3));
+                narrow.add(t.get(0));
+                expected.add(narrow);
+            }
+        }
+        SystemTestUtil.matchTuples(scan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Verifies that the buffer pool is actually caching data.
      * @throws TransactionAbortedException
      * @throws DbException */